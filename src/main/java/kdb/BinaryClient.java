@@ -0,0 +1,156 @@
+package kdb;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import kdb.proto.XMessage.Message;
+
+/**
+ * Client side of the binary protocol served by
+ * {@link NettyTransport.BinaryKdbServerHandler}. One connection is shared by
+ * every {@link Client} talking to the same address; requests are tagged with
+ * an id so any number of them can be in flight at once.
+ */
+final class BinaryClient {
+  private static Logger log = LogManager.getLogger(BinaryClient.class);
+  private static final EventLoopGroup group = new NioEventLoopGroup(0, new DefaultThreadFactory("kdb-client", true));
+  private static final ConcurrentHashMap<String, BinaryClient> clients = new ConcurrentHashMap<String, BinaryClient>();
+
+  private final Channel channel;
+  private final AtomicLong ids;
+  private final ConcurrentHashMap<Long, CompletableFuture<Message>> pending;
+  private final ConcurrentHashMap<Long, Consumer<Message>> streams;
+
+  private BinaryClient(String host, int port) {
+    ids = new AtomicLong();
+    pending = new ConcurrentHashMap<Long, CompletableFuture<Message>>();
+    streams = new ConcurrentHashMap<Long, Consumer<Message>>();
+    Bootstrap b = new Bootstrap();
+    b.group(group)
+      .channel(NioSocketChannel.class)
+      .option(ChannelOption.TCP_NODELAY, true)
+      .option(ChannelOption.SO_KEEPALIVE, true)
+      .handler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          public void initChannel(SocketChannel ch) {
+            ChannelPipeline p = ch.pipeline();
+            p.addLast(new LengthFieldBasedFrameDecoder(NettyTransport.MAX_FRAME_LENGTH, 0, 4, 0, 4));
+            p.addLast(new LengthFieldPrepender(4));
+            p.addLast(new ResponseHandler());
+          }
+        });
+    try {
+      channel = b.connect(host, port).sync().channel();
+    } catch(InterruptedException e) {
+      throw new KdbException(e);
+    }
+  }
+
+  public static BinaryClient connect(String host, int port) {
+    String addr = host + ":" + port;
+    BinaryClient client = clients.get(addr);
+    if(client == null || !client.channel.isActive()) {
+      synchronized(clients) {
+        client = clients.get(addr);
+        if(client == null || !client.channel.isActive()) {
+          client = new BinaryClient(host, port);
+          clients.put(addr, client);
+        }
+      }
+    }
+    return client;
+  }
+
+  public CompletableFuture<Message> send(Message msg) {
+    return send(msg, null);
+  }
+
+  /**
+   * Sends a streamed request: every response to it is handed to chunks, on
+   * the connection's event loop, and the returned future completes with the
+   * last one, which carries no token.
+   */
+  public CompletableFuture<Message> send(Message msg, Consumer<Message> chunks) {
+    long id = ids.incrementAndGet();
+    CompletableFuture<Message> future = new CompletableFuture<Message>();
+    pending.put(id, future);
+    if(chunks != null)
+      streams.put(id, chunks);
+    future.whenComplete((r, e) -> { pending.remove(id); streams.remove(id); });
+    ByteBuf buf = channel.alloc().buffer(8 + msg.getSerializedSize());
+    buf.writeLong(id);
+    try {
+      msg.writeTo(new ByteBufOutputStream(buf));
+    } catch(IOException e) {
+      buf.release();
+      future.completeExceptionally(e);
+      return future;
+    }
+    channel.writeAndFlush(buf).addListener(f -> {
+        if(!f.isSuccess())
+          future.completeExceptionally(f.cause());
+      });
+    return future;
+  }
+
+  private class ResponseHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+      long id = frame.readLong();
+      CompletableFuture<Message> future = pending.get(id);
+      if(future == null) {
+        // The caller gave up on this request.
+        return;
+      }
+      Message msg = Message.parseFrom(new ByteBufInputStream(frame));
+      Consumer<Message> chunks = streams.get(id);
+      if(chunks != null) {
+        try {
+          chunks.accept(msg);
+        } catch(RuntimeException e) {
+          future.completeExceptionally(e);
+          return;
+        }
+        if(msg.getResponse().getToken().length() > 0)
+          return;
+      }
+      future.complete(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      KdbException e = new KdbException("connection closed");
+      pending.values().forEach(f -> f.completeExceptionally(e));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      log.debug(cause);
+      ctx.close();
+    }
+  }
+
+}
@@ -20,15 +20,21 @@ import kdb.proto.XMessage.InsertOperation;
 import kdb.proto.XMessage.UpdateOperation;
 import kdb.proto.XMessage.GetOperation;
 import kdb.proto.XMessage.DropOperation;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 public final class Client implements Closeable {
   private static Logger log = LogManager.getLogger(Client.class);
   AsyncHttpClient client;
+  BinaryClient binary;
   int timeout;
+  private Semaphore inflight;
+  // The requests waiting for an inflight permit, in order.
+  private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
   private String uri;
   private String table;
-  private String token;
+  // The tokens of the range reads this client left open, released on close.
+  private final Set<String> tokens = ConcurrentHashMap.newKeySet();
 
   public enum QueryType {
     Equal,
@@ -37,6 +43,21 @@ public final class Client implements Closeable {
     Between
   }
 
+  public enum Aggregate {
+    Count,
+    Sum,
+    Min,
+    Max,
+    Distinct
+  }
+
+  public enum Merge {
+    Add,
+    Max,
+    Or,
+    Append
+  }
+
   public enum Status {
     OK,
     Error,
@@ -84,21 +105,113 @@ public final class Client implements Closeable {
       return rsp.getValues(index).toByteArray();
     }
 
+    /**
+     * The count, sum or number of distinct prefixes of an aggregating scan.
+     */
+    public long aggregate() {
+      return rsp.getAggregate();
+    }
+
+    /**
+     * Whether the key at index exists; only a multi-key get can answer with
+     * keys that were not found.
+     */
+    public boolean found(int index) {
+      return rsp.getFoundCount() == 0 || rsp.getFound(index);
+    }
+
     public String toString() {
       return rsp.toString();
     }
   }
 
+  /**
+   * Row filter evaluated on the server for range reads. Every test that is
+   * set must hold; rows that fail are skipped and do not count against the
+   * limit.
+   */
+  public static class Filter {
+    XMessage.Filter.Builder filter = XMessage.Filter.newBuilder();
+
+    public Filter keyPrefix(byte[] prefix) {
+      filter.setKeyPrefix(ByteString.copyFrom(prefix));
+      return this;
+    }
+
+    /**
+     * key[offset..] must equal bytes on the bits set in mask; a null mask
+     * compares every bit.
+     */
+    public Filter key(int offset, byte[] bytes, byte[] mask) {
+      filter.setKeyOffset(offset).setKeyBytes(ByteString.copyFrom(bytes));
+      if(mask != null)
+        filter.setKeyMask(ByteString.copyFrom(mask));
+      return this;
+    }
+
+    public Filter value(int offset, byte[] bytes, byte[] mask) {
+      filter.setValueOffset(offset).setValueBytes(ByteString.copyFrom(bytes));
+      if(mask != null)
+        filter.setValueMask(ByteString.copyFrom(mask));
+      return this;
+    }
+  }
+
+  /**
+   * Writes over any tables that {@link Client#write} applies atomically, as
+   * one replicated transaction.
+   */
+  public static class Batch {
+    List<Message> msgs = new ArrayList<Message>();
+
+    public Batch insert(String table, List<byte[]> keys, List<byte[]> values) {
+      msgs.add(MessageBuilder.buildInsertOp(table, keys, values));
+      return this;
+    }
+
+    public Batch update(String table, List<byte[]> keys, List<byte[]> values) {
+      msgs.add(MessageBuilder.buildUpdateOp(table, keys, values));
+      return this;
+    }
+
+    public Batch delete(String table, List<byte[]> keys) {
+      msgs.add(MessageBuilder.buildDeleteOp(table, keys));
+      return this;
+    }
+  }
+
+  private static Message filter(Message msg, Filter filter) {
+    return MessageBuilder.withFilter(msg, filter == null? null : filter.filter.build());
+  }
+
+  /**
+   * @param uri either an http:// uri or tcp://host:port for the binary
+   * protocol listener (binaryPort).
+   */
   public Client(String uri, String table, int timeout) {
+    this(uri, table, timeout, 128);
+  }
+
+  /**
+   * @param maxInflight the maximum number of requests this client keeps in
+   * flight; further requests are queued and sent as earlier ones complete.
+   */
+  public Client(String uri, String table, int timeout, int maxInflight) {
     try {
-      final AsyncHttpClientConfig config = new DefaultAsyncHttpClientConfig.Builder().setRequestTimeout(timeout).build();
-      client = new DefaultAsyncHttpClient(config);
+      if(uri.startsWith("tcp://")) {
+        java.net.URI u = java.net.URI.create(uri);
+        binary = BinaryClient.connect(u.getHost(), u.getPort());
+      } else {
+        final AsyncHttpClientConfig config = new DefaultAsyncHttpClientConfig.Builder().setRequestTimeout(timeout).build();
+        client = new DefaultAsyncHttpClient(config);
+      }
     } catch(Exception e) {
       throw new KdbException(e);
     }
+    this.timeout = timeout;
+    this.inflight = new Semaphore(maxInflight);
     this.uri = uri;
     this.table = table;
-    this.token = "";
   }
 
   public Client(String uri, String table) {
@@ -117,6 +230,28 @@ public final class Client implements Closeable {
     return new Result(msg.getResponse());
   }
 
+  /**
+   * Creates a table whose data expires after ttl seconds. Its keys must
+   * start with an 8 byte big endian timestamp in milliseconds.
+   */
+  public static Result createTable(String uri, String table, long ttl) {
+    return createTable(uri, table, ttl, 0);
+  }
+
+  /**
+   * Creates a table whose data expires after ttl seconds, whose keys start
+   * with [hour][bucket within the hour] of the UTC time they were written,
+   * bucket seconds per bucket. Buckets are emptied once they fall out of the
+   * ttl, before the next day reuses them.
+   */
+  public static Result createTable(String uri, String table, long ttl, int bucket) {
+    Message msg;
+    try(Client client = new Client(uri)) {
+      msg = client.sendMsg(MessageBuilder.buildCreateOp(table, ttl, bucket));
+    }
+    return new Result(msg.getResponse());
+  }
+
   public static Result dropTable(String uri, String table) {
     Message msg;
     try(Client client = new Client(uri)) {
@@ -130,17 +265,133 @@ public final class Client implements Closeable {
     return new Result(msg.getResponse());
   }
 
+  public CompletableFuture<Result> insertAsync(List<byte[]> keys, List<byte[]> values) {
+    return sendMsgAsync(MessageBuilder.buildInsertOp(table, keys, values)).thenApply(m -> new Result(m.getResponse()));
+  }
+
   public Result update(List<byte[]> keys, List<byte[]> values) {
     Message msg = sendMsg(MessageBuilder.buildUpdateOp(table, keys, values));
     return new Result(msg.getResponse());
   }
 
+  public CompletableFuture<Result> updateAsync(List<byte[]> keys, List<byte[]> values) {
+    return sendMsgAsync(MessageBuilder.buildUpdateOp(table, keys, values)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  /**
+   * Combines values into the stored ones on the server: Add and Max on
+   * signed big endian integers of up to 8 bytes, keeping the width of the
+   * stored value, Or on bitsets, Append by concatenation. A missing key takes
+   * the value as is. A result that does not fit the stored width fails the
+   * merge.
+   */
+  public Result merge(Merge merge, List<byte[]> keys, List<byte[]> values) {
+    Message msg = sendMsg(buildMergeOp(merge, keys, values));
+    return new Result(msg.getResponse());
+  }
+
+  public CompletableFuture<Result> mergeAsync(Merge merge, List<byte[]> keys, List<byte[]> values) {
+    return sendMsgAsync(buildMergeOp(merge, keys, values)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  private Message buildMergeOp(Merge merge, List<byte[]> keys, List<byte[]> values) {
+    UpdateOperation.Merge op = UpdateOperation.Merge.Put;
+    switch(merge) {
+    case Add:
+      op = UpdateOperation.Merge.Add;
+      break;
+    case Max:
+      op = UpdateOperation.Merge.Max;
+      break;
+    case Or:
+      op = UpdateOperation.Merge.Or;
+      break;
+    case Append:
+      op = UpdateOperation.Merge.Append;
+      break;
+    }
+    return MessageBuilder.buildUpdateOp(table, op, keys, values);
+  }
+
+  public Result write(Batch batch) {
+    Message msg = sendMsg(MessageBuilder.buildBatchOp(batch.msgs));
+    return new Result(msg.getResponse());
+  }
+
+  public CompletableFuture<Result> writeAsync(Batch batch) {
+    return sendMsgAsync(MessageBuilder.buildBatchOp(batch.msgs)).thenApply(m -> new Result(m.getResponse()));
+  }
+
   public Result increment(List<byte[]> keys) {
     Message msg = sendMsg(MessageBuilder.buildUpdateOp(table, keys));
     return new Result(msg.getResponse());
   }
 
-  public Result get(QueryType type, byte[] key, int limit) {
+  public CompletableFuture<Result> incrementAsync(List<byte[]> keys) {
+    return sendMsgAsync(MessageBuilder.buildUpdateOp(table, keys)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  public Result delete(List<byte[]> keys) {
+    Message msg = sendMsg(MessageBuilder.buildDeleteOp(table, keys));
+    return new Result(msg.getResponse());
+  }
+
+  public CompletableFuture<Result> deleteAsync(List<byte[]> keys) {
+    return sendMsgAsync(MessageBuilder.buildDeleteOp(table, keys)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  /**
+   * Deletes every key in [key1, key2). The server rejects an empty key2.
+   */
+  public Result delete(byte[] key1, byte[] key2) {
+    Message msg = sendMsg(MessageBuilder.buildDeleteOp(table, key1, key2));
+    return new Result(msg.getResponse());
+  }
+
+  public CompletableFuture<Result> deleteAsync(byte[] key1, byte[] key2) {
+    return sendMsgAsync(MessageBuilder.buildDeleteOp(table, key1, key2)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  /**
+   * Reduces [key1, key2] on the server. Count, Sum (of 4 byte big endian
+   * counters) and Distinct (key prefixes of length prefix) answer in
+   * {@link Result#aggregate}; Min and Max answer with that one row.
+   */
+  public Result aggregate(Aggregate agg, byte[] key1, byte[] key2, int prefix) {
+    return aggregate(agg, key1, key2, prefix, null);
+  }
+
+  public Result aggregate(Aggregate agg, byte[] key1, byte[] key2, int prefix, Filter filter) {
+    return new Result(sendMsg(buildAggregateOp(agg, key1, key2, prefix, filter)).getResponse());
+  }
+
+  public CompletableFuture<Result> aggregateAsync(Aggregate agg, byte[] key1, byte[] key2, int prefix) {
+    return sendMsgAsync(buildAggregateOp(agg, key1, key2, prefix, null)).thenApply(m -> new Result(m.getResponse()));
+  }
+
+  private Message buildAggregateOp(Aggregate agg, byte[] key1, byte[] key2, int prefix, Filter filter) {
+    GetOperation.Aggregate op = GetOperation.Aggregate.None;
+    switch(agg) {
+    case Count:
+      op = GetOperation.Aggregate.Count;
+      break;
+    case Sum:
+      op = GetOperation.Aggregate.Sum;
+      break;
+    case Min:
+      op = GetOperation.Aggregate.Min;
+      break;
+    case Max:
+      op = GetOperation.Aggregate.Max;
+      break;
+    case Distinct:
+      op = GetOperation.Aggregate.Distinct;
+      break;
+    }
+    return filter(MessageBuilder.buildAggregateOp(table, op, key1, key2, prefix), filter);
+  }
+
+  private Message buildGetOp(QueryType type, byte[] key, int limit) {
     GetOperation.Type op = GetOperation.Type.Done;
     switch(type) {
     case Equal:
@@ -155,12 +406,10 @@ public final class Client implements Closeable {
     default:
       throw new KdbException("unknown query type");
     }
-    Message msg = sendMsg(MessageBuilder.buildGetOp(table, op, key, limit));
-    token = msg.getResponse().getToken();
-    return new Result(msg.getResponse());
+    return MessageBuilder.buildGetOp(table, op, key, limit);
   }
 
-  public Result get(QueryType type, String token, int limit) {
+  private Message buildGetOp(QueryType type, String token, int limit) {
     GetOperation.Type op = GetOperation.Type.Done;
     switch(type) {
     case Equal:
@@ -176,27 +425,141 @@ public final class Client implements Closeable {
       op = GetOperation.Type.Between;
       break;
     }
-    Message msg = sendMsg(MessageBuilder.buildGetOp(token, op, limit));
-    token = msg.getResponse().getToken();
-    return new Result(msg.getResponse());
+    return MessageBuilder.buildGetOp(token, op, limit);
+  }
+
+  /**
+   * The token of a read travels in its own result; the client only keeps
+   * the set of open ones so close() can release them.
+   */
+  private Result getResult(String token, Message msg) {
+    Result rsp = new Result(msg.getResponse());
+    if(rsp.token().length() > 0) {
+      tokens.add(rsp.token());
+    } else if(token.length() > 0) {
+      tokens.remove(token);
+    }
+    return rsp;
+  }
+
+  private Result getResult(Message msg) {
+    return getResult("", msg);
+  }
+
+  public Result get(QueryType type, byte[] key, int limit) {
+    return getResult(sendMsg(buildGetOp(type, key, limit)));
+  }
+
+  public Result get(QueryType type, byte[] key, int limit, Filter filter) {
+    return getResult(sendMsg(filter(buildGetOp(type, key, limit), filter)));
+  }
+
+  public CompletableFuture<Result> getAsync(QueryType type, byte[] key, int limit) {
+    return sendMsgAsync(buildGetOp(type, key, limit)).thenApply(m -> getResult(m));
+  }
+
+  public Result get(QueryType type, String token, int limit) {
+    return getResult(token, sendMsg(buildGetOp(type, token, limit)));
+  }
+
+  public CompletableFuture<Result> getAsync(QueryType type, String token, int limit) {
+    return sendMsgAsync(buildGetOp(type, token, limit)).thenApply(m -> getResult(token, m));
+  }
+
+  /**
+   * Releases the server side context of a range read that was not read to
+   * the end.
+   */
+  public void release(Result rsp) {
+    String token = rsp.token();
+    if(token.length() > 0 && tokens.remove(token)) {
+      sendMsg(MessageBuilder.buildGetOp(token, GetOperation.Type.Done, 0));
+    }
+  }
+
+  /**
+   * Looks up every key in one request; the result has one entry per key, in
+   * the same order, with {@link Result#found} false for missing keys.
+   */
+  public Result get(List<byte[]> keys) {
+    return getResult(sendMsg(MessageBuilder.buildGetOp(table, keys)));
+  }
+
+  public CompletableFuture<Result> getAsync(List<byte[]> keys) {
+    return sendMsgAsync(MessageBuilder.buildGetOp(table, keys)).thenApply(m -> getResult(m));
   }
 
   public Result get(byte[] key1, byte[] key2, int limit) {
-    Message msg = sendMsg(MessageBuilder.buildGetOp(table, key1, key2, limit));
-    token = msg.getResponse().getToken();
-    return new Result(msg.getResponse());
+    return getResult(sendMsg(MessageBuilder.buildGetOp(table, key1, key2, limit)));
+  }
+
+  public Result get(byte[] key1, byte[] key2, int limit, Filter filter) {
+    return getResult(sendMsg(filter(MessageBuilder.buildGetOp(table, key1, key2, limit), filter)));
+  }
+
+  public CompletableFuture<Result> getAsync(byte[] key1, byte[] key2, int limit, Filter filter) {
+    return sendMsgAsync(filter(MessageBuilder.buildGetOp(table, key1, key2, limit), filter)).thenApply(m -> getResult(m));
+  }
+
+  public CompletableFuture<Result> getAsync(byte[] key1, byte[] key2, int limit) {
+    return sendMsgAsync(MessageBuilder.buildGetOp(table, key1, key2, limit)).thenApply(m -> getResult(m));
+  }
+
+  /**
+   * Reads [key1, key2] in chunks of up to limit rows, handing each chunk to
+   * consumer. Over the binary protocol the server pushes the whole range on
+   * one request; over http it is paged with tokens. Returns the last chunk.
+   */
+  public Result scan(byte[] key1, byte[] key2, int limit, Consumer<Result> consumer) {
+    return scan(key1, key2, limit, null, consumer);
+  }
+
+  public Result scan(byte[] key1, byte[] key2, int limit, Filter filter, Consumer<Result> consumer) {
+    return scan(filter(MessageBuilder.buildScanOp(table, GetOperation.Type.Between, key1, key2, limit), filter), consumer);
+  }
+
+  /**
+   * Reads from key forward (GreaterEqual) or backward (LessEqual) to the end
+   * of the table, in chunks as {@link #scan(byte[], byte[], int, Consumer)}.
+   */
+  public Result scan(QueryType type, byte[] key, int limit, Consumer<Result> consumer) {
+    GetOperation.Type op;
+    switch(type) {
+    case GreaterEqual:
+      op = GetOperation.Type.GreaterEqual;
+      break;
+    case LessEqual:
+      op = GetOperation.Type.LessEqual;
+      break;
+    default:
+      throw new KdbException("scan needs GreaterEqual or LessEqual");
+    }
+    return scan(MessageBuilder.buildScanOp(table, op, key, new byte[0], limit), consumer);
+  }
+
+  private Result scan(Message msg, Consumer<Result> consumer) {
+    if(binary == null) {
+      Result rsp = new Result(sendMsg(msg).getResponse());
+      consumer.accept(rsp);
+      while(rsp.token().length() > 0) {
+        rsp = new Result(sendMsg(MessageBuilder.buildGetOp(rsp.token(), msg.getGetOp().getOp(), msg.getGetOp().getLimit())).getResponse());
+        consumer.accept(rsp);
+      }
+      return rsp;
+    }
+    try {
+      return new Result(submit(() -> binary.send(msg, m -> consumer.accept(new Result(m.getResponse())))).get().getResponse());
+    } catch(InterruptedException e) {
+      throw new KdbException(e);
+    } catch(ExecutionException e) {
+      throw new KdbException(e);
+    }
   }
 
   private Message sendMsg(Message msg) {
     Message rsp = MessageBuilder.nullMsg;
     try {
-      Response r = client
-        .preparePost(uri)
-        .setBody(msg.toByteArray())
-        .execute()
-        .get();
-      byte[] data = r.getResponseBodyAsBytes();
-      rsp = Message.parseFrom(data);
+      rsp = sendMsgAsync(msg).get(timeout, TimeUnit.MILLISECONDS);
     } catch(InterruptedException e) {
       log.debug(e);
       //e.printStackTrace();
@@ -204,25 +567,89 @@ public final class Client implements Closeable {
       log.debug(e);
       throw new KdbException(e);
       //e.printStackTrace();
-    } catch(InvalidProtocolBufferException e) {
+    } catch(TimeoutException e) {
       log.debug(e);
       throw new KdbException(e);
-      //e.printStackTrace();
     }
     return rsp;
   }
 
-  private void releaseToken() {
-    if(table != null && token.length() > 0) {
-      sendMsg(MessageBuilder.buildGetOp(token, GetOperation.Type.Done, 0));
+  private CompletableFuture<Message> sendMsgAsync(Message msg) {
+    return submit(() -> {
+        if(binary != null)
+          return binary.send(msg);
+        return client
+          .preparePost(uri)
+          .setBody(msg.toByteArray())
+          .execute()
+          .toCompletableFuture()
+          .thenApply(r -> parse(r.getResponseBodyAsBytes()));
+      });
+  }
+
+  // Starts a request once it has an inflight permit. It never blocks: when
+  // all permits are taken the request waits in a queue and starts as an
+  // earlier one completes, which may be on the event loop that completes it.
+  private CompletableFuture<Message> submit(Supplier<CompletableFuture<Message>> request) {
+    CompletableFuture<Message> rsp = new CompletableFuture<Message>();
+    waiting.add(() -> start(request, rsp));
+    startWaiting();
+    return rsp;
+  }
+
+  private void start(Supplier<CompletableFuture<Message>> request, CompletableFuture<Message> rsp) {
+    CompletableFuture<Message> f;
+    try {
+      f = request.get();
+    } catch(RuntimeException e) {
+      inflight.release();
+      startWaiting();
+      rsp.completeExceptionally(e);
+      return;
+    }
+    f.whenComplete((r, e) -> {
+        inflight.release();
+        startWaiting();
+        if(e != null)
+          rsp.completeExceptionally(e);
+        else
+          rsp.complete(r);
+      });
+  }
+
+  private void startWaiting() {
+    while(!waiting.isEmpty() && inflight.tryAcquire()) {
+      Runnable r = waiting.poll();
+      if(r == null) {
+        // Taken by another thread, checks again in case one was added after.
+        inflight.release();
+        continue;
+      }
+      r.run();
+    }
+  }
+
+  private static Message parse(byte[] data) {
+    try {
+      return Message.parseFrom(data);
+    } catch(InvalidProtocolBufferException e) {
+      log.debug(e);
+      throw new KdbException(e);
+    }
+  }
+
+  private void releaseTokens() {
+    for(String token : tokens) {
+      if(tokens.remove(token)) {
+        sendMsg(MessageBuilder.buildGetOp(token, GetOperation.Type.Done, 0));
+      }
     }
     table = null;
-    token = "";
   }
 
   public void close() {
     try {
-      releaseToken();
+      releaseTokens();
     } catch(Exception e) {}
   }
 
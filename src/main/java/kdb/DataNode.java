@@ -4,8 +4,10 @@ import java.io.*;
 import java.util.*;
 import java.util.function.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.nio.ByteBuffer;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -13,7 +15,6 @@ import kdb.proto.XMessage.Message;
 import kdb.proto.XMessage.InsertOperation;
 import kdb.proto.XMessage.UpdateOperation;
 import kdb.proto.XMessage.GetOperation;
-import kdb.rsm.ZabException;
 
 final class DataNode {
   private static Logger log = LogManager.getLogger(DataNode.class);
@@ -30,15 +31,18 @@ final class DataNode {
     int get;
     int update;
     int insert;
+    int delete;
   }
 
   public class Stats {
     public HashMap<String, Integer> sessions;
     public HashMap<String, Metric> metrics;
+    public HashMap<String, Long> expiry;
 
     public Stats() {
       sessions = new HashMap<String, Integer>();
       metrics = new HashMap<String, Metric>();
+      expiry = new HashMap<String, Long>();
     }
   }
 
@@ -48,6 +52,7 @@ final class DataNode {
     AtomicInteger get;
     AtomicInteger update;
     AtomicInteger insert;
+    AtomicInteger delete;
 
     public Counters() {
       create = new AtomicInteger();
@@ -55,6 +60,7 @@ final class DataNode {
       get = new AtomicInteger();
       update = new AtomicInteger();
       insert = new AtomicInteger();
+      delete = new AtomicInteger();
     }
 
     public void incrementCreate() {
@@ -76,6 +82,40 @@ final class DataNode {
     public void incrementInsert() {
       insert.lazySet(insert.get()+1);
     }
+
+    public void incrementDelete() {
+      delete.lazySet(delete.get()+1);
+    }
+  }
+
+  /**
+   * A streamed range read, handing out its rows one chunk of limit rows at a
+   * time; a chunk without a token is the last one.
+   */
+  class Scan implements Closeable {
+    private final Store.Context ctx;
+    private Message next;
+
+    Scan(Store.Context ctx, Message msg) {
+      this.ctx = ctx;
+      this.next = msg;
+    }
+
+    public boolean done() {
+      return next == null;
+    }
+
+    public Message next() {
+      GetOperation op = next.getGetOp();
+      Message r = store.get(ctx, next);
+      String token = r.getResponse().getToken();
+      next = token.equals("")? null : MessageBuilder.buildGetOp(token, op.getOp(), op.getLimit());
+      return r;
+    }
+
+    public void close() {
+      ctx.close();
+    }
   }
 
   public DataNode(List<Ring> rings, Store store, boolean standalone) {
@@ -87,6 +127,72 @@ final class DataNode {
     this.rnd = new Random();
   }
 
+  /**
+   * Periodically deletes the data that has outlived the ttl of its table.
+   * The deletes are replicated like client writes, so every instance
+   * truncates the same ranges in the same order. Only the leader of the
+   * first ring proposes them, with its own clock.
+   */
+  public void startReaper(int seconds) {
+    ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ttl-reaper");
+        t.setDaemon(true);
+        return t;
+      });
+    reaper.scheduleWithFixedDelay(() -> reap(), seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Checkpoints the store every so many seconds when WiredTiger does not
+   * checkpoint on its own. Zab snapshots checkpoint it as well.
+   */
+  public void startCheckpoints(int seconds) {
+    ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "checkpointer");
+        t.setDaemon(true);
+        return t;
+      });
+    checkpointer.scheduleWithFixedDelay(() -> {
+        try {
+          store.checkpoint();
+        } catch(RuntimeException e) {
+          log.info("checkpoint {}", e.getMessage());
+        }
+      }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Snapshots every ring every so many seconds, which lets Zab trim its log.
+   */
+  public void startSnapshots(int seconds) {
+    ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshotter");
+        t.setDaemon(true);
+        return t;
+      });
+    snapshotter.scheduleWithFixedDelay(() -> rings.forEach(r -> r.snapshot()), seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  private void reap() {
+    if(!standalone && !rings.get(0).isLeading())
+      return;
+    try {
+      for(Message msg : store.expired(System.currentTimeMillis())) {
+        String table = msg.getDeleteOp().getTable();
+        if(standalone) {
+          try(Store.Context c = store.getContext(table)) {
+            store.delete(c, msg);
+          }
+        } else {
+          rings.get(0).send(msg, null);
+        }
+      }
+    } catch(RuntimeException e) {
+      // Keep the schedule alive; the next run covers the same ranges.
+      log.info("ttl reaper {}", e.getMessage());
+    }
+  }
+
   public Stats stats() {
     Stats stats = new Stats();
     //log.info("stats {}", store.tables);
@@ -97,10 +203,21 @@ final class DataNode {
         m.get = v.get.get();
         m.update = v.update.get();
         m.insert = v.insert.get();
+        m.delete = v.delete.get();
         stats.metrics.put(k, m); });
+    // The store records an expiry once it is applied.
+    stats.expiry.putAll(store.reaped());
     return stats;
   }
 
+  public Scan scan(Message msg) {
+    String table = msg.getGetOp().getTable();
+    if(table.length() == 0)
+      throw new KdbException("no table");
+    countGet(table);
+    return new Scan(store.getContext(table), msg);
+  }
+
   private void countCreate(String table) {
     Counters counts;
     if((counts = counters.get(table)) == null) {
@@ -156,18 +273,23 @@ final class DataNode {
     counts.incrementInsert();
   }
 
+  private void countDelete(String table) {
+    Counters counts;
+    if((counts = counters.get(table)) == null) {
+      counts = new Counters();
+      Counters old = counters.putIfAbsent(table, counts);
+      if(old != null)
+        counts = old;
+    }
+    counts.incrementDelete();
+  }
+
   private Ring ring() {
     return rings.get(rnd.nextInt(rings.size()));
   }
 
   private void rsend(Message msg, Object ctx) {
-    try {
-      ring().zab.send(ByteBuffer.wrap(msg.toByteArray()), ctx);
-    } catch(ZabException.InvalidPhase e) {
-      throw new KdbException(e);
-    } catch(ZabException.TooManyPendingRequests e) {
-      throw new KdbException(e);
-    }
+    ring().send(msg, ctx);
   }
 
   public void process(Message msg, Object context) {
@@ -180,7 +302,7 @@ final class DataNode {
       table = msg.getCreateOp().getTable();
       countCreate(table);
       if(standalone) {
-        r = store.create(table);
+        r = store.create(table, msg.getCreateOp().getTtl(), msg.getCreateOp().getBucket());
       } else {
         rsend(msg, context);
       }
@@ -247,9 +369,40 @@ final class DataNode {
         rsend(msg, context);
       }
       break;
+    case Batch:
+      for(Message m : msg.getBatchOp().getMsgsList()) {
+        switch(m.getType()) {
+        case Insert:
+          countInsert(m.getInsertOp().getTable());
+          break;
+        case Update:
+          countUpdate(m.getUpdateOp().getTable());
+          break;
+        case Delete:
+          countDelete(m.getDeleteOp().getTable());
+          break;
+        }
+      }
+      if(standalone) {
+        r = store.batch(msg);
+      } else {
+        rsend(msg, context);
+      }
+      break;
+    case Delete:
+      table = msg.getDeleteOp().getTable();
+      countDelete(table);
+      if(standalone) {
+        try(Store.Context c = store.getContext(table)) {
+          r = store.delete(c, msg);
+        }
+      } else {
+        rsend(msg, context);
+      }
+      break;
     }
     if(r != MessageBuilder.nullMsg) {
-      NettyTransport.HttpKdbServerHandler.reply(context, r);
+      NettyTransport.reply(context, r);
     }
   }
 
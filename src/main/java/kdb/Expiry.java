@@ -0,0 +1,85 @@
+package kdb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import kdb.proto.XMessage.Message;
+
+/**
+ * The range deletes that expire the data of a table with a ttl. A table
+ * keys its rows either by the time they were written, an 8 byte big endian
+ * timestamp in milliseconds, or by a time bucket: [hour][bucket within the
+ * hour] of the UTC time of day, which cycles every day. A timestamp table
+ * expires everything below now - ttl. A bucketed table expires the buckets
+ * that are no longer within the ttl, which includes the bucket about to be
+ * reused, so a bucket is empty by the time its next day starts.
+ */
+final class Expiry {
+  static final int DAY = 24*3600;
+
+  private Expiry() {}
+
+  /**
+   * Rejects a ttl and bucket that can not expire anything.
+   *
+   * @param bucket seconds per bucket, or 0 for timestamp keys.
+   */
+  static void check(long ttl, int bucket) {
+    if(ttl < 0 || bucket < 0)
+      throw new KdbException("negative ttl");
+    if(bucket == 0)
+      return;
+    if(3600 % bucket != 0 || 3600/bucket > 256)
+      throw new KdbException("bucket must divide an hour in at most 256 buckets");
+    if(ttl == 0 || ttl + bucket > DAY)
+      throw new KdbException("bucketed ttl must leave at least one bucket of the day");
+  }
+
+  /**
+   * The key prefix of a bucket, index counts the buckets of the day.
+   */
+  static byte[] bucketKey(int index, int bucket) {
+    int seconds = index*bucket;
+    return new byte[] {(byte)(seconds/3600), (byte)(seconds%3600/bucket)};
+  }
+
+  /**
+   * The deletes that expire the data of a table, tagged with the cutoff
+   * time they enforce so the store can report its progress.
+   */
+  static List<Message> deletes(String table, long ttl, int bucket, long now) {
+    List<Message> msgs = new ArrayList<Message>();
+    long cutoff = now - ttl*1000;
+    if(bucket == 0) {
+      ByteBuffer key2 = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+      key2.putLong(cutoff);
+      msgs.add(MessageBuilder.buildDeleteOp(table, new byte[1], key2.array(), cutoff));
+      return msgs;
+    }
+    long size = bucket*1000L;
+    int n = DAY/bucket;
+    // Buckets from the one holding the cutoff to the current one are live,
+    // the others hold data of the previous day.
+    long current = Math.floorDiv(now, size);
+    long live = current - Math.floorDiv(cutoff, size) + 1;
+    if(live >= n)
+      return msgs;
+    int from = (int)Math.floorMod(current + 1, (long)n);
+    int to = from + n - (int)live;
+    if(to <= n) {
+      msgs.add(range(table, from, to, bucket, n, cutoff));
+    } else {
+      msgs.add(range(table, from, n, bucket, n, cutoff));
+      msgs.add(range(table, 0, to - n, bucket, n, cutoff));
+    }
+    return msgs;
+  }
+
+  private static Message range(String table, int from, int to, int bucket, int n, long cutoff) {
+    if(to == n)
+      return MessageBuilder.buildDeleteOp(table, bucketKey(from, bucket), cutoff);
+    return MessageBuilder.buildDeleteOp(table, bucketKey(from, bucket), bucketKey(to, bucket), cutoff);
+  }
+}
@@ -0,0 +1,124 @@
+package kdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import kdb.proto.XMessage.Message;
+import kdb.rsm.Zab;
+import kdb.rsm.ZabException;
+
+/**
+ * Group commit stage in front of {@link Zab#send}. Writes that arrive within
+ * the linger window, up to maxBytes, are coalesced into one Group message so
+ * they share a single PROPOSAL/ACK/COMMIT round trip. Every coalesced request
+ * is still answered through its own context.
+ */
+final class GroupCommit implements Runnable {
+  private static Logger log = LogManager.getLogger(GroupCommit.class);
+  private static final int MAX_PENDING = 5000;
+
+  private final Zab zab;
+  private final int maxBytes;
+  private final long lingerNanos;
+  private final BlockingQueue<Pending> queue;
+
+  static class Pending {
+    final Message msg;
+    final Object ctx;
+    final int size;
+
+    Pending(Message msg, Object ctx) {
+      this.msg = msg;
+      this.ctx = ctx;
+      this.size = msg.getSerializedSize();
+    }
+  }
+
+  public GroupCommit(Zab zab, int maxBytes, int lingerMicros) {
+    this.zab = zab;
+    this.maxBytes = maxBytes;
+    this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+    this.queue = new LinkedBlockingQueue<Pending>(MAX_PENDING);
+    Thread t = new Thread(this, "group-commit");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void submit(Message msg, Object ctx) {
+    if(!queue.offer(new Pending(msg, ctx)))
+      throw new KdbException("too many pending writes");
+  }
+
+  public void run() {
+    List<Pending> batch = new ArrayList<Pending>();
+    try {
+      while(true) {
+        Pending p = queue.take();
+        batch.add(p);
+        int bytes = p.size;
+        long deadline = System.nanoTime() + lingerNanos;
+        while(bytes < maxBytes) {
+          long wait = deadline - System.nanoTime();
+          p = wait > 0? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if(p == null)
+            break;
+          batch.add(p);
+          bytes += p.size;
+        }
+        try {
+          propose(batch);
+        } catch(RuntimeException e) {
+          // The batch fails on its own, the stage keeps serving writes.
+          log.error("group commit failed", e);
+          reply(batch, MessageBuilder.buildErrorResponse("Service Error"));
+        } finally {
+          batch.clear();
+        }
+      }
+    } catch(InterruptedException e) {
+      log.info("group commit interrupted");
+    }
+  }
+
+  private void propose(List<Pending> batch) {
+    Message msg;
+    Object ctx;
+    if(batch.size() == 1) {
+      msg = batch.get(0).msg;
+      ctx = batch.get(0).ctx;
+    } else {
+      List<Message> msgs = new ArrayList<Message>(batch.size());
+      List<Object> ctxs = new ArrayList<Object>(batch.size());
+      for(Pending p : batch) {
+        msgs.add(p.msg);
+        ctxs.add(p.ctx);
+      }
+      msg = MessageBuilder.buildGroupOp(msgs);
+      ctx = ctxs;
+    }
+    try {
+      zab.send(ByteBuffer.wrap(msg.toByteArray()), ctx);
+    } catch(ZabException.TooManyPendingRequests e) {
+      reply(batch, MessageBuilder.busyMsg);
+    } catch(ZabException.InvalidPhase e) {
+      reply(batch, MessageBuilder.buildErrorResponse("InvalidPhase"));
+    }
+  }
+
+  private static void reply(List<Pending> batch, Message r) {
+    for(Pending p : batch) {
+      try {
+        NettyTransport.reply(p.ctx, r);
+      } catch(RuntimeException e) {
+        log.info("group commit reply failed {}", e.getMessage());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+package kdb;
+
+import java.util.Arrays;
+
+import kdb.proto.XMessage.UpdateOperation;
+
+/**
+ * Combines two operands of an UpdateOperation merge. It serves both to fold
+ * the operands of one key within a batch and to fold the result into the
+ * stored value, so every operator is associative.
+ */
+final class MergeOperator {
+
+  private MergeOperator() {}
+
+  /**
+   * Folds two operands; Add and Max answer in the wider of the two.
+   *
+   * @throws KdbException if an Add or Max operand is wider than 8 bytes or
+   * the result does not fit the width.
+   */
+  public static byte[] apply(UpdateOperation.Merge merge, byte[] a, byte[] b) {
+    return apply(merge, a, b, Math.max(a.length, b.length));
+  }
+
+  /**
+   * Folds an operand into the stored value. Add and Max keep the width of
+   * the stored value, so a 4 byte increment counter stays 4 bytes.
+   *
+   * @throws KdbException if an Add or Max operand is wider than 8 bytes or
+   * the result does not fit the stored width.
+   */
+  public static byte[] merge(UpdateOperation.Merge merge, byte[] stored, byte[] operand) {
+    return apply(merge, stored, operand, stored.length == 0? operand.length : stored.length);
+  }
+
+  private static byte[] apply(UpdateOperation.Merge merge, byte[] a, byte[] b, int width) {
+    if((merge == UpdateOperation.Merge.Add || merge == UpdateOperation.Merge.Max) &&
+       (a.length > 8 || b.length > 8))
+      throw new KdbException("integer wider than 8 bytes");
+    switch(merge) {
+    case Add:
+      try {
+        return encode(Math.addExact(decode(a), decode(b)), width);
+      } catch(ArithmeticException e) {
+        throw new KdbException("merge overflows 8 bytes");
+      }
+    case Max:
+      return encode(Math.max(decode(a), decode(b)), width);
+    case Or: {
+      byte[] r = Arrays.copyOf(a.length >= b.length? a : b, Math.max(a.length, b.length));
+      byte[] s = a.length >= b.length? b : a;
+      for(int i = 0; i < s.length; i++)
+        r[i] |= s[i];
+      return r;
+    }
+    case Append: {
+      byte[] r = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, r, a.length, b.length);
+      return r;
+    }
+    default:
+      return b;
+    }
+  }
+
+  // Signed big endian of up to 8 bytes, so the 4 byte counters of
+  // increments and 8 byte values read alike.
+  static long decode(byte[] v) {
+    int n = Math.min(v.length, 8);
+    if(n == 0)
+      return 0;
+    long r = v[0];
+    for(int i = 1; i < n; i++)
+      r = (r << 8) | (v[i] & 0xFF);
+    return r;
+  }
+
+  static byte[] encode(long v, int width) {
+    // The bits above the width must all copy its sign bit.
+    if(width < 8 && (v >> (8*width - 1)) != (v < 0? -1 : 0))
+      throw new KdbException("merge overflows " + width + " bytes");
+    byte[] r = new byte[Math.min(width, 8)];
+    for(int i = r.length - 1; i >= 0; i--) {
+      r[i] = (byte)v;
+      v >>= 8;
+    }
+    return r;
+  }
+
+}
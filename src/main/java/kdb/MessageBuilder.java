@@ -11,9 +11,13 @@ import kdb.proto.XMessage.Message;
 import kdb.proto.XMessage.Message.MessageType;
 import kdb.proto.XMessage.InsertOperation;
 import kdb.proto.XMessage.UpdateOperation;
+import kdb.proto.XMessage.DeleteOperation;
 import kdb.proto.XMessage.GetOperation;
 import kdb.proto.XMessage.CreateOperation;
 import kdb.proto.XMessage.DropOperation;
+import kdb.proto.XMessage.GroupOperation;
+import kdb.proto.XMessage.BatchOperation;
+import kdb.proto.XMessage.Filter;
 import kdb.proto.XMessage.Response;
 
 final class MessageBuilder {
@@ -70,6 +74,28 @@ final class MessageBuilder {
     return Message.newBuilder().setType(MessageType.Response).setResponse(op).build();
   }
 
+  public static Message buildResponse(List<byte[]> keys, List<byte[]> values, List<Boolean> found) {
+    Response op = Response
+      .newBuilder()
+      .setType(Response.Type.OK)
+      .setReason("OK")
+      .addAllKeys(keys.stream().map(k -> ByteString.copyFrom(k)).collect(toList()))
+      .addAllValues(values.stream().map(v -> ByteString.copyFrom(v)).collect(toList()))
+      .addAllFound(found)
+      .build();
+    return Message.newBuilder().setType(MessageType.Response).setResponse(op).build();
+  }
+
+  public static Message buildAggregateResponse(long aggregate) {
+    Response op = Response
+      .newBuilder()
+      .setType(Response.Type.OK)
+      .setReason("OK")
+      .setAggregate(aggregate)
+      .build();
+    return Message.newBuilder().setType(MessageType.Response).setResponse(op).build();
+  }
+
   public static Message buildResponse(byte[] values) {
     ArrayList<byte[]> list = new ArrayList<byte[]>();
     list.add(values);
@@ -87,9 +113,19 @@ final class MessageBuilder {
   }
 
   public static Message buildCreateOp(String table) {
+    return buildCreateOp(table, 0);
+  }
+
+  public static Message buildCreateOp(String table, long ttl) {
+    return buildCreateOp(table, ttl, 0);
+  }
+
+  public static Message buildCreateOp(String table, long ttl, int bucket) {
     CreateOperation op = CreateOperation
       .newBuilder()
       .setTable(table)
+      .setTtl(ttl)
+      .setBucket(bucket)
       .build();
     return Message.newBuilder().setType(MessageType.Create).setCreateOp(op).build();
   }
@@ -131,6 +167,74 @@ final class MessageBuilder {
     return Message.newBuilder().setType(MessageType.Update).setUpdateOp(op).build();
   }
 
+  public static Message buildUpdateOp(String table, UpdateOperation.Merge merge, List<byte[]> keys, List<byte[]> values) {
+    UpdateOperation op = UpdateOperation
+      .newBuilder()
+      .setTable(table)
+      .setMerge(merge)
+      .addAllKeys(keys.stream().map(k -> ByteString.copyFrom(k)).collect(toList()))
+      .addAllValues(values.stream().map(v -> ByteString.copyFrom(v)).collect(toList()))
+      .build();
+    return Message.newBuilder().setType(MessageType.Update).setUpdateOp(op).build();
+  }
+
+  public static Message buildDeleteOp(String table, List<byte[]> keys) {
+    DeleteOperation op = DeleteOperation
+      .newBuilder()
+      .setTable(table)
+      .addAllKeys(keys.stream().map(k -> ByteString.copyFrom(k)).collect(toList()))
+      .build();
+    return Message.newBuilder().setType(MessageType.Delete).setDeleteOp(op).build();
+  }
+
+  public static Message buildDeleteOp(String table, byte[] key, byte[] key2) {
+    DeleteOperation op = DeleteOperation
+      .newBuilder()
+      .setTable(table)
+      .setKey(ByteString.copyFrom(key))
+      .setKey2(ByteString.copyFrom(key2))
+      .build();
+    return Message.newBuilder().setType(MessageType.Delete).setDeleteOp(op).build();
+  }
+
+  public static Message buildDeleteOp(String table, byte[] key, byte[] key2, long expiry) {
+    DeleteOperation op = DeleteOperation
+      .newBuilder()
+      .setTable(table)
+      .setKey(ByteString.copyFrom(key))
+      .setKey2(ByteString.copyFrom(key2))
+      .setExpiry(expiry)
+      .build();
+    return Message.newBuilder().setType(MessageType.Delete).setDeleteOp(op).build();
+  }
+
+  public static Message buildDeleteOp(String table, byte[] key, long expiry) {
+    DeleteOperation op = DeleteOperation
+      .newBuilder()
+      .setTable(table)
+      .setKey(ByteString.copyFrom(key))
+      .setToEnd(true)
+      .setExpiry(expiry)
+      .build();
+    return Message.newBuilder().setType(MessageType.Delete).setDeleteOp(op).build();
+  }
+
+  public static Message buildGroupOp(List<Message> msgs) {
+    GroupOperation op = GroupOperation
+      .newBuilder()
+      .addAllMsgs(msgs)
+      .build();
+    return Message.newBuilder().setType(MessageType.Group).setGroupOp(op).build();
+  }
+
+  public static Message buildBatchOp(List<Message> msgs) {
+    BatchOperation op = BatchOperation
+      .newBuilder()
+      .addAllMsgs(msgs)
+      .build();
+    return Message.newBuilder().setType(MessageType.Batch).setBatchOp(op).build();
+  }
+
   public static Message buildGetOp(String table, GetOperation.Type opt, byte[] key) {
     return buildGetOp(table, opt, key, 1);
   }
@@ -156,6 +260,49 @@ final class MessageBuilder {
     return Message.newBuilder().setType(MessageType.Get).setGetOp(op).build();
   }
 
+  public static Message buildGetOp(String table, List<byte[]> keys) {
+    GetOperation op = GetOperation
+      .newBuilder()
+      .setTable(table)
+      .setOp(GetOperation.Type.Multi)
+      .addAllKeys(keys.stream().map(k -> ByteString.copyFrom(k)).collect(toList()))
+      .setLimit(keys.size())
+      .build();
+    return Message.newBuilder().setType(MessageType.Get).setGetOp(op).build();
+  }
+
+  public static Message buildScanOp(String table, GetOperation.Type opt, byte[] key, byte[] key2, int limit) {
+    GetOperation op = GetOperation
+      .newBuilder()
+      .setTable(table)
+      .setOp(opt)
+      .setKey(ByteString.copyFrom(key))
+      .setKey2(ByteString.copyFrom(key2))
+      .setLimit(limit)
+      .setStream(true)
+      .build();
+    return Message.newBuilder().setType(MessageType.Get).setGetOp(op).build();
+  }
+
+  public static Message buildAggregateOp(String table, GetOperation.Aggregate agg, byte[] key, byte[] key2, int prefix) {
+    GetOperation op = GetOperation
+      .newBuilder()
+      .setTable(table)
+      .setOp(GetOperation.Type.Between)
+      .setKey(ByteString.copyFrom(key))
+      .setKey2(ByteString.copyFrom(key2))
+      .setAggregate(agg)
+      .setPrefix(prefix)
+      .build();
+    return Message.newBuilder().setType(MessageType.Get).setGetOp(op).build();
+  }
+
+  public static Message withFilter(Message msg, Filter filter) {
+    if(filter == null)
+      return msg;
+    return msg.toBuilder().setGetOp(msg.getGetOp().toBuilder().setFilter(filter)).build();
+  }
+
   public static Message buildGetOp(String table, byte[] key, byte[] key2) {
     return buildGetOp(table, key, key2, 1);
   }
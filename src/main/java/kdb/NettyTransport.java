@@ -28,18 +28,27 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.DecoderResult;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.util.AsciiString;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.*;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import io.netty.buffer.ByteBuf;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.commons.configuration2.*;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import kdb.proto.XMessage.Message;
+import kdb.proto.XMessage.Message.MessageType;
 import com.google.protobuf.InvalidProtocolBufferException;
 import kdb.rsm.ZabException;
+import kdb.rsm.ZabConfig;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.ArrayList;
 import com.google.gson.GsonBuilder;
@@ -48,12 +57,47 @@ import com.google.gson.Gson;
 public class NettyTransport {
   private static Logger log = LogManager.getLogger(NettyTransport.class);
 
+  static final int MAX_FRAME_LENGTH = 1000000000;
+
   public NettyTransport() { }
 
+  /**
+   * Replies to a request through the transport it arrived on.
+   */
+  public static void reply(Object ctx, Message msg) {
+    if(ctx instanceof BinaryContext) {
+      BinaryKdbServerHandler.reply((BinaryContext)ctx, msg);
+    } else {
+      HttpKdbServerHandler.reply(ctx, msg);
+    }
+  }
+
+  /**
+   * Copies a request out of a (pooled) buffer once; the parsed keys and
+   * values alias that copy instead of being copied again field by field.
+   */
+  static Message parse(ByteBuf buf) throws IOException {
+    byte[] bytes = new byte[buf.readableBytes()];
+    buf.readBytes(bytes);
+    return Store.parse(ByteBuffer.wrap(bytes));
+  }
+
+  static ZabConfig zabConfig(PropertiesConfiguration config) {
+    ZabConfig zabConfig = new ZabConfig();
+    zabConfig.setLogRetentionTxns(config.getLong("logRetentionTxns", 100000));
+    zabConfig.setLogCodec(config.getString("logCodec", "none"));
+    zabConfig.setBusySpin(config.getBoolean("zabBusySpin", false));
+    zabConfig.setPeerWindowBytes(config.getLong("zabPeerWindowBytes", 128L*1024*1024));
+    zabConfig.setMaxPendingBytes(config.getLong("zabMaxPendingBytes", 512L*1024*1024));
+    return zabConfig;
+  }
+
   static List<Ring> configRings(PropertiesConfiguration config, boolean standalone, Store store) {
     List ringaddrs = config.getList("ringaddr");
     List leaders = config.getList("leader");
     List logs = config.getList("logDir");
+    int groupBytes = config.getInt("groupCommitBytes", 4*1024*1024);
+    int groupMicros = config.getInt("groupCommitMicros", 200);
 
     int len = ringaddrs.size();
     if((leaders.size() > 0 && len != leaders.size()) || len != logs.size())
@@ -61,10 +105,11 @@ public class NettyTransport {
 
     List<Ring> rings = new ArrayList<Ring>();
     for(int i = 0; i < len; i++) {
-      Ring ring = new Ring((String)ringaddrs.get(i), leaders.size() == 0? null: (String)leaders.get(i), (String)logs.get(i));
+      // Ring i of every instance forms one ensemble, so its index names it.
+      Ring ring = new Ring(standalone? null : store, "ring" + i, (String)ringaddrs.get(i), leaders.size() == 0? null: (String)leaders.get(i), (String)logs.get(i), zabConfig(config));
       rings.add(ring);
       if(!standalone) {
-        ring.bind(store);
+        ring.bind(groupBytes, groupMicros);
       }
     }
     return rings;
@@ -86,8 +131,18 @@ public class NettyTransport {
     }
 
     boolean standalone = config.getBoolean("standalone", false);
-    Store store = new Store(config.getString("store"));
+    int sessions = config.getInt("sessionPoolSize", 2*Runtime.getRuntime().availableProcessors() + config.getList("ringaddr").size());
+    // A store under rings checkpoints only with the applied zxids, so a crash
+    // rolls it back to a state the Zab log replays from exactly once. A
+    // standalone store has no Zab log and keeps WiredTiger's own log.
+    boolean zabCheckpoints = !standalone;
+    Store store = new Store(config.getString("store"), sessions, zabCheckpoints);
     DataNode datanode = new DataNode(configRings(config, standalone, store), store, standalone);
+    datanode.startReaper(config.getInt("ttlReapSeconds", 60));
+    if(zabCheckpoints)
+      datanode.startCheckpoints(config.getInt("checkpointSeconds", 30));
+    if(!standalone)
+      datanode.startSnapshots(config.getInt("snapshotSeconds", 3600));
     //DataNode datanode = new DataNode(null, store, standalone);
 
     EventLoopGroup bossGroup = new NioEventLoopGroup(1);
@@ -100,6 +155,17 @@ public class NettyTransport {
         //.handler(new LoggingHandler(LogLevel.INFO))
         .childHandler(new HttpKdbServerInitializer(sslCtx, datanode));
 
+      int binaryPort = config.getInt("binaryPort", 0);
+      if(binaryPort > 0) {
+        ServerBootstrap bb = new ServerBootstrap();
+        bb.option(ChannelOption.SO_BACKLOG, 1024);
+        bb.group(bossGroup, workerGroup)
+          .channel(NioServerSocketChannel.class)
+          .childOption(ChannelOption.TCP_NODELAY, true)
+          .childHandler(new BinaryKdbServerInitializer(sslCtx, datanode));
+        bb.bind(binaryPort).sync();
+      }
+
       Channel ch = b.bind(port).sync().channel();
       ch.closeFuture().sync();
     } catch(Exception e) {
@@ -158,14 +224,14 @@ public class NettyTransport {
           ByteBuf buf = null;
           try {
             buf = m.content();
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            msg = Message.parseFrom(bytes);
+            msg = parse(buf);
             datanode.process(msg, ctx);
             return;
           } catch(InvalidProtocolBufferException e) {
             //log.info(e);
             msg = MessageBuilder.buildErrorResponse("InvalidProtocolBufferException");
+          } catch(IOException e) {
+            msg = MessageBuilder.buildErrorResponse("IOException");
           } catch(KdbException e) {
             //log.info(e);
             msg = MessageBuilder.buildErrorResponse(e.getMessage());
@@ -223,6 +289,144 @@ public class NettyTransport {
     }
   }
 
+  /**
+   * Request context of the binary protocol: the channel a frame arrived on
+   * and the request id the reply must carry.
+   */
+  static class BinaryContext {
+    final ChannelHandlerContext ctx;
+    final long id;
+
+    BinaryContext(ChannelHandlerContext ctx, long id) {
+      this.ctx = ctx;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Serves length-prefixed frames of the form request id(long) + Message.
+   * Replies carry the id of their request, so a connection can have many
+   * requests in flight and responses may come back out of order.
+   * Streamed scans are written a chunk at a time while the channel stays
+   * writable and resume when it drains, taking turns with each other.
+   */
+  public static class BinaryKdbServerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    private DataNode datanode;
+    private ArrayDeque<Stream> streams;
+
+    static class Stream {
+      final BinaryContext context;
+      final DataNode.Scan scan;
+
+      Stream(BinaryContext context, DataNode.Scan scan) {
+        this.context = context;
+        this.scan = scan;
+      }
+    }
+
+    public BinaryKdbServerHandler(DataNode datanode) {
+      this.datanode = datanode;
+      this.streams = new ArrayDeque<Stream>();
+    }
+
+    private void pump(ChannelHandlerContext ctx) {
+      while(ctx.channel().isWritable() && !streams.isEmpty()) {
+        Stream s = streams.poll();
+        Message r;
+        try {
+          r = s.scan.next();
+        } catch(RuntimeException e) {
+          log.info("scan {}", e.getMessage());
+          s.scan.close();
+          reply(s.context, MessageBuilder.buildErrorResponse("scan failed"));
+          continue;
+        }
+        reply(s.context, r);
+        if(s.scan.done())
+          s.scan.close();
+        else
+          streams.add(s);
+      }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      pump(ctx);
+      ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      streams.forEach(s -> s.scan.close());
+      streams.clear();
+      ctx.fireChannelInactive();
+    }
+
+    static void reply(BinaryContext context, Message msg) {
+      ChannelHandlerContext ctx = context.ctx;
+      ByteBuf buf = ctx.alloc().buffer(8 + msg.getSerializedSize());
+      buf.writeLong(context.id);
+      try {
+        msg.writeTo(new ByteBufOutputStream(buf));
+      } catch(IOException e) {
+        buf.release();
+        throw new KdbException(e);
+      }
+      ctx.writeAndFlush(buf);
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+      BinaryContext context = new BinaryContext(ctx, frame.readLong());
+      Message msg;
+      try {
+        msg = parse(frame);
+        if(msg.getType() == MessageType.Get && msg.getGetOp().getStream()) {
+          streams.add(new Stream(context, datanode.scan(msg)));
+          pump(ctx);
+        } else {
+          datanode.process(msg, context);
+        }
+        return;
+      } catch(InvalidProtocolBufferException e) {
+        msg = MessageBuilder.buildErrorResponse("InvalidProtocolBufferException");
+      } catch(IOException e) {
+        msg = MessageBuilder.buildErrorResponse("IOException");
+      } catch(KdbException e) {
+        msg = MessageBuilder.buildErrorResponse(e.getMessage());
+      }
+      reply(context, msg);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      log.warn("closing binary connection {}", ctx.channel().remoteAddress(), cause);
+      ctx.close();
+    }
+  }
+
+  public static class BinaryKdbServerInitializer extends ChannelInitializer<SocketChannel> {
+
+    private final SslContext sslCtx;
+    private DataNode datanode;
+
+    public BinaryKdbServerInitializer(SslContext sslCtx, DataNode datanode) {
+      this.sslCtx = sslCtx;
+      this.datanode = datanode;
+    }
+
+    @Override
+    public void initChannel(SocketChannel ch) {
+      ChannelPipeline p = ch.pipeline();
+      if (sslCtx != null) {
+        p.addLast(sslCtx.newHandler(ch.alloc()));
+      }
+      p.addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+      p.addLast(new LengthFieldPrepender(4));
+      p.addLast(new BinaryKdbServerHandler(datanode));
+    }
+  }
+
   public static void main(String[] args) throws Exception {
     if(args.length < 1) {
       System.out.println("java -cp ./target/kdb-1.0-SNAPSHOT.jar kdb.NettyTransport conf/datanode.properties");
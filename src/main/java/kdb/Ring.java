@@ -18,18 +18,33 @@ import kdb.rsm.ZabConfig;
 import kdb.rsm.ZabException;
 import kdb.rsm.Zxid;
 import kdb.proto.XMessage.Message;
+import kdb.proto.XMessage.Message.MessageType;
 
 class Ring implements Runnable, StateMachine {
   private static Logger log = LogManager.getLogger(Ring.class);
 
   private String serverId;
-  private final ZabConfig config = new ZabConfig();
+  private final String name;
+  private final ZabConfig config;
+  private GroupCommit group;
+  private volatile boolean leading;
   Store store;
 
   public Zab zab;
 
-  public Ring(String serverId, String joinPeer, String logDir) {
+  /**
+   * @param store the store the ring applies to, or null if it only runs the
+   * protocol. It must be given up front because log replay starts with Zab.
+   * @param name the key of the ring's applied zxid in the store. It must be
+   * the same on every member of the ring, unlike serverId, since snapshots
+   * carry it from one member to another.
+   * @param config the Zab settings of the ring, its log directory is set here.
+   */
+  public Ring(Store store, String name, String serverId, String joinPeer, String logDir, ZabConfig config) {
     try {
+      this.store = store;
+      this.name = name;
+      this.config = config;
       this.serverId = serverId;
       if (this.serverId != null && joinPeer == null) {
         // It's the first server in cluster, joins itself.
@@ -55,8 +70,45 @@ class Ring implements Runnable, StateMachine {
     }
   }
 
-  public void bind(Store store) {
-    this.store = store;
+  /**
+   * Asks Zab for a snapshot. Once it is durable Zab trims the log below it,
+   * keeping the retained transactions.
+   */
+  public void snapshot() {
+    try {
+      zab.takeSnapshot(null);
+    } catch(ZabException e) {
+      log.info("snapshot {}", e.getMessage());
+    }
+  }
+
+  public void bind(int groupBytes, int groupMicros) {
+    this.group = new GroupCommit(zab, groupBytes, groupMicros);
+  }
+
+  public void send(Message msg, Object ctx) {
+    group.submit(msg, ctx);
+  }
+
+  /**
+   * Whether this instance leads the ring, as of the last Zab callback.
+   */
+  public boolean isLeading() {
+    return leading;
+  }
+
+  // Applies message index of the transaction zxid along with the ring's
+  // position in the store. Any failure becomes the message's error response,
+  // so the rest of a group is still applied and every context gets a reply.
+  private Message apply(Zxid zxid, int index, Message msg) {
+    try {
+      return store.apply(name, zxid, index, () -> store.handle(msg));
+    } catch(KdbException e) {
+      return MessageBuilder.buildErrorResponse(e.getMessage());
+    } catch(RuntimeException e) {
+      log.warn("apply {} message {} failed", zxid, index, e);
+      return MessageBuilder.buildErrorResponse(String.valueOf(e.getMessage()));
+    }
   }
 
   @Override
@@ -69,13 +121,39 @@ class Ring implements Runnable, StateMachine {
   public void deliver(Zxid zxid, ByteBuffer stateUpdate, String clientId,
                       Object ctx) {
     //log.info("deliver {}, {}", stateUpdate, ctx);
-    Message msg = MessageBuilder.nullMsg;
+    final Message msg;
     try {
-      msg = store.handle(stateUpdate);
+      msg = Store.parse(stateUpdate);
     } catch(IOException e) {
       log.info("deliver callback handle {}", e);
-    } finally {
-      NettyTransport.HttpKdbServerHandler.reply(ctx, msg);
+      reply(ctx, MessageBuilder.nullMsg);
+      return;
+    }
+    // Messages replayed from the log but already in the store's checkpoint
+    // or in a restored snapshot are skipped.
+    if(msg.getType() == MessageType.Group) {
+      // ctx is the list of coalesced request contexts, or null when the
+      // group was submitted by another instance.
+      List<?> ctxs = (List<?>)ctx;
+      int len = msg.getGroupOp().getMsgsCount();
+      for(int i = 0; i < len; i++) {
+        if(store.isApplied(name, zxid, i))
+          continue;
+        Message r = apply(zxid, i, msg.getGroupOp().getMsgs(i));
+        NettyTransport.reply(ctxs == null? null : ctxs.get(i), r);
+      }
+    } else if(!store.isApplied(name, zxid, 0)) {
+      NettyTransport.reply(ctx, apply(zxid, 0, msg));
+    }
+  }
+
+  private static void reply(Object ctx, Message msg) {
+    if(ctx instanceof List) {
+      for(Object c : (List<?>)ctx) {
+        NettyTransport.reply(c, msg);
+      }
+    } else {
+      NettyTransport.reply(ctx, msg);
     }
   }
 
@@ -87,11 +165,27 @@ class Ring implements Runnable, StateMachine {
   @Override
   public void save(FileOutputStream fos) {
     log.info("save snapshot");
+    if(store == null)
+      return;
+    // The backup checkpoints the store, so log replay after this snapshot
+    // finds at least its zxid in place.
+    try {
+      store.backup(fos);
+    } catch(IOException e) {
+      throw new KdbException(e);
+    }
   }
 
   @Override
   public void restore(FileInputStream fis) {
     log.info("restore snapshot");
+    if(store == null)
+      return;
+    try {
+      store.restore(name, fis);
+    } catch(IOException e) {
+      throw new KdbException(e);
+    }
   }
 
   @Override
@@ -106,17 +200,18 @@ class Ring implements Runnable, StateMachine {
 
   @Override
   public void recovering(PendingRequests pendingRequests) {
+    leading = false;
     log.info("<<<Recovering ... pending sizes {}", pendingRequests.pendingSends.size());
     Message msg = MessageBuilder.buildErrorResponse("Service Error");
     for (Tuple tp : pendingRequests.pendingSends) {
-      if(tp.param instanceof io.netty.channel.ChannelHandlerContext)
-        NettyTransport.HttpKdbServerHandler.reply(tp.param, msg);
+      reply(tp.ctx, msg);
     }
     log.info("... Recovering>>>");
   }
 
   @Override
   public void leading(Set<String> activeFollowers, Set<String> clusterMembers) {
+    leading = true;
     log.info("LEADING with active followers : ");
     for (String peer : activeFollowers) {
       log.info(" -- {}", peer);
@@ -129,6 +224,7 @@ class Ring implements Runnable, StateMachine {
 
   @Override
   public void following(String leader, Set<String> clusterMembers) {
+    leading = false;
     log.info("FOLLOWING {}", leader);
     log.info("Cluster configuration change : ", clusterMembers.size());
     for (String peer : clusterMembers) {
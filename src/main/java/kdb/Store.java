@@ -10,58 +10,589 @@ import com.google.gson.*;
 import java.util.*;
 import java.util.stream.*;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.function.LongConsumer;
 import java.util.concurrent.*;
 import java.time.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.UnsafeByteOperations;
 
 import kdb.proto.XMessage.Message;
 import kdb.proto.XMessage.InsertOperation;
 import kdb.proto.XMessage.UpdateOperation;
+import kdb.proto.XMessage.DeleteOperation;
 import kdb.proto.XMessage.GetOperation;
+import kdb.proto.XMessage.Filter;
 import kdb.proto.XMessage.Message.MessageType;
+import kdb.rsm.Zxid;
 
 public class Store implements Closeable {
   private static Logger log = LogManager.getLogger(Store.class);
-  private Connection conn;
+  private volatile Connection conn;
   private String db;
-  private static final String dbconfig = "create,session_max=5000,cache_size=1GB,eviction=(threads_max=5,threads_min=2),lsm_manager=(merge=true,worker_thread_max=8),checkpoint=(log_size=1GB,wait=30000)";
+  private final String location;
+  private final String config;
+  private static final String dbconfig = "create,session_max=5000,cache_size=1GB,eviction=(threads_max=5,threads_min=2),lsm_manager=(merge=true,worker_thread_max=8)";
+  // WiredTiger checkpoints on its own unless the rings drive checkpoints.
+  private static final String autoCheckpoint = ",checkpoint=(log_size=1GB,wait=30000)";
+  private static final String noLog = ",log=(enabled=false)";
+  private static final String appliedTable = "table:kdb_applied";
+  private static final String restoreSuffix = ".restore";
+  private static final String oldSuffix = ".old";
+  // How long a restore waits for the Contexts in use to close.
+  private static final long restoreWait = 30000;
+  private static final int busy = 0;
+  private static final int parked = 1;
+  private static final int revoked = 2;
+  private static final Pattern ttlconfig = Pattern.compile("app_metadata=\"?ttl=(\\d+)(,bucket=(\\d+))?");
   ConcurrentHashMap<String, AtomicInteger> tables;
+  ConcurrentHashMap<String, Long> ttls;
+  // Seconds per bucket of the ttl tables keyed by time buckets.
+  ConcurrentHashMap<String, Integer> buckets;
+  // The cutoff of the last expiry applied to each ttl table.
+  ConcurrentHashMap<String, Long> reaped;
+  private ConcurrentHashMap<String, BlockingQueue<Handle>> pools;
+  private int poolSize;
+  // How far each ring got, as committed in kdb_applied.
+  private ConcurrentHashMap<String, Position> applied;
+  // Ring writes hold the read lock, a restore or close takes the write lock.
+  private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+  // Keeps a backup on the checkpoint it read the positions from.
+  private final Object checkpointing = new Object();
+  // The session of the ring transaction running on this thread, if any.
+  private final ThreadLocal<Session> txn = new ThreadLocal<Session>();
+  // One permit per open Context; a restore takes them all to swap the files.
+  private final Semaphore contexts = new Semaphore(Integer.MAX_VALUE, true);
+  // The open Contexts, so a restore can close the reads parked on a token.
+  private final Set<Context> inUse = ConcurrentHashMap.newKeySet();
 
   public Store(String location) {
+    this(location, 2*Runtime.getRuntime().availableProcessors());
+  }
+
+  public Store(String location, int poolSize) {
+    this(location, poolSize, false);
+  }
+
+  /**
+   * @param poolSize the number of idle sessions kept open per table, which
+   * should cover the transport workers plus the ring deliver threads.
+   * @param zabCheckpoints when true WiredTiger neither logs nor checkpoints
+   * on its own: the Zab log is the journal, {@link #checkpoint} is called in
+   * step with the rings, and recovery replays the log past the checkpointed
+   * zxid of each ring. A store under rings must set it: WiredTiger's own log
+   * and checkpoints would persist writes past the saved zxids, and replay
+   * would apply them twice.
+   */
+  public Store(String location, int poolSize, boolean zabCheckpoints) {
+    recover(new File(location));
     Utils.checkDir(location);
-    conn = wiredtiger.open(location, dbconfig);
+    this.location = location;
+    this.config = dbconfig + (zabCheckpoints? noLog : autoCheckpoint);
     tables = new ConcurrentHashMap<String, AtomicInteger>();
+    pools = new ConcurrentHashMap<String, BlockingQueue<Handle>>();
+    ttls = new ConcurrentHashMap<String, Long>();
+    buckets = new ConcurrentHashMap<String, Integer>();
+    reaped = new ConcurrentHashMap<String, Long>();
+    applied = new ConcurrentHashMap<String, Position>();
+    this.poolSize = poolSize;
+    open();
+  }
+
+  private void open() {
+    conn = wiredtiger.open(location, config);
+    loadTtls();
+    loadApplied();
+  }
+
+  // The ttl of a table is kept in its WiredTiger app_metadata.
+  private void loadTtls() {
+    Session session = conn.open_session(null);
+    Cursor cursor = session.open_cursor("metadata:", null, null);
+    while(cursor.next() == 0) {
+      String uri = cursor.getKeyString();
+      if(!uri.startsWith("table:"))
+        continue;
+      Matcher m = ttlconfig.matcher(cursor.getValueString());
+      if(m.find()) {
+        ttls.put(uri.substring(6), Long.parseLong(m.group(1)));
+        if(m.group(3) != null)
+          buckets.put(uri.substring(6), Integer.parseInt(m.group(3)));
+      }
+    }
+    cursor.close();
+    session.close(null);
+  }
+
+  private void loadApplied() {
+    Session session = conn.open_session(null);
+    session.create(appliedTable, "(key_format=S,value_format=qqi)");
+    applied.putAll(readApplied(session, null));
+    session.close(null);
+  }
+
+  private static Map<String, Position> readApplied(Session session, String config) {
+    Map<String, Position> positions = new HashMap<String, Position>();
+    Cursor cursor = session.open_cursor(appliedTable, null, config);
+    while(cursor.next() == 0) {
+      positions.put(cursor.getKeyString(), new Position(new Zxid(cursor.getValueLong(), cursor.getValueLong()), cursor.getValueInt()));
+    }
+    cursor.close();
+    return positions;
+  }
+
+  /**
+   * How far a ring got: the messages of its transactions are applied in
+   * order, up to message next of transaction zxid.
+   */
+  static final class Position implements Comparable<Position> {
+    final Zxid zxid;
+    final int next;
+
+    Position(Zxid zxid, int next) {
+      this.zxid = zxid;
+      this.next = next;
+    }
+
+    @Override
+    public int compareTo(Position p) {
+      int c = zxid.compareTo(p.zxid);
+      return c != 0? c : Integer.compare(next, p.next);
+    }
+
+    @Override
+    public String toString() {
+      return zxid + "#" + next;
+    }
+  }
+
+  /**
+   * Returns the zxid of the last transaction of the ring that the store
+   * holds a message of, or null if it holds none.
+   */
+  public Zxid applied(String ring) {
+    Position p = applied.get(ring);
+    return p == null? null : p.zxid;
+  }
+
+  /**
+   * Whether message index of the ring transaction zxid is already applied,
+   * so its replay from the log must be skipped.
+   */
+  public boolean isApplied(String ring, Zxid zxid, int index) {
+    Position p = applied.get(ring);
+    return p != null && p.compareTo(new Position(zxid, index + 1)) >= 0;
+  }
+
+  /**
+   * Applies a transaction of one message, see {@link #apply(String, Zxid, int, Supplier)}.
+   */
+  public <T> T apply(String ring, Zxid zxid, Supplier<T> writes) {
+    return apply(ring, zxid, 0, writes);
+  }
+
+  /**
+   * Applies the writes of message index of a ring transaction in one
+   * WiredTiger transaction, which also moves the ring's row in kdb_applied
+   * past it. Every checkpoint then holds the writes of exactly the messages
+   * its rows say, so checkpoints don't stop the rings. A write conflict
+   * retries the message; any other failure rolls its writes back but still
+   * counts it as applied, since its replay would fail the same way.
+   */
+  public <T> T apply(String ring, Zxid zxid, int index, Supplier<T> writes) {
+    Position p = new Position(zxid, index + 1);
+    checkpointLock.readLock().lock();
+    try {
+      Session session = conn.open_session(null);
+      try {
+        while(true) {
+          T r;
+          session.begin_transaction(null);
+          txn.set(session);
+          try {
+            r = writes.get();
+          } catch(RuntimeException e) {
+            session.rollback_transaction(null);
+            if(isRollback(e))
+              continue;
+            session.begin_transaction(null);
+            savePosition(session, ring, p);
+            session.commit_transaction(null);
+            applied.put(ring, p);
+            throw e;
+          } finally {
+            txn.remove();
+          }
+          savePosition(session, ring, p);
+          try {
+            session.commit_transaction(null);
+          } catch(WiredTigerRollbackException e) {
+            // The failed commit rolled the transaction back.
+            continue;
+          }
+          applied.put(ring, p);
+          return r;
+        }
+      } finally {
+        session.close(null);
+      }
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+  }
+
+  private static boolean isRollback(Throwable e) {
+    for(; e != null; e = e.getCause()) {
+      if(e instanceof WiredTigerRollbackException)
+        return true;
+    }
+    return false;
+  }
+
+  private static void savePosition(Session session, String ring, Position p) {
+    Cursor cursor = session.open_cursor(appliedTable, null, null);
+    try {
+      cursor.putKeyString(ring);
+      cursor.putValueLong(p.zxid.getEpoch());
+      cursor.putValueLong(p.zxid.getXid());
+      cursor.putValueInt(p.next);
+      cursor.insert();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Writes a WiredTiger checkpoint. It holds the kdb_applied rows committed
+   * along with the writes it holds, so ring writes go on while it runs.
+   */
+  public void checkpoint() {
+    synchronized(checkpointing) {
+      long start = System.nanoTime();
+      Session session = conn.open_session(null);
+      try {
+        session.checkpoint(null);
+      } finally {
+        session.close(null);
+      }
+      log.info("checkpoint {} in {} ms", applied, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+
+  /**
+   * Writes a hot backup of the store: the ring positions of a fresh
+   * checkpoint, then every file of it as listed by a WiredTiger backup
+   * cursor. Writes go on while the files are copied since the cursor pins
+   * that checkpoint.
+   */
+  public void backup(OutputStream out) throws IOException {
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    Session session = conn.open_session(null);
+    try {
+      Map<String, Position> positions;
+      Cursor cursor;
+      synchronized(checkpointing) {
+        session.checkpoint(null);
+        positions = readApplied(session, "checkpoint=WiredTigerCheckpoint");
+        cursor = session.open_cursor("backup:", null, null);
+      }
+      try {
+        dos.writeInt(positions.size());
+        for(Map.Entry<String, Position> e : positions.entrySet()) {
+          dos.writeUTF(e.getKey());
+          dos.writeLong(e.getValue().zxid.getEpoch());
+          dos.writeLong(e.getValue().zxid.getXid());
+          dos.writeInt(e.getValue().next);
+        }
+        byte[] buf = new byte[1 << 16];
+        while(cursor.next() == 0) {
+          String name = cursor.getKeyString();
+          File file = new File(location, name);
+          // Blocks written after the checkpoint are not part of the backup.
+          long len = file.length();
+          dos.writeBoolean(true);
+          dos.writeUTF(name);
+          dos.writeLong(len);
+          try(FileInputStream in = new FileInputStream(file)) {
+            copy(in, dos, len, buf);
+          }
+        }
+        dos.writeBoolean(false);
+        dos.flush();
+      } finally {
+        cursor.close();
+      }
+      log.info("backup {}", positions);
+    } finally {
+      session.close(null);
+    }
+  }
+
+  /**
+   * Installs a backup written by {@link #backup} unless the store already
+   * holds the given ring at or past the backup's zxid. Ring writes and new
+   * Contexts wait until the reopened store is in place; reads parked on a
+   * token are closed, and the restore fails if other Contexts stay open
+   * longer than restoreWait.
+   *
+   * @throws KdbException if the backup does not carry the ring or can not
+   * be installed.
+   */
+  public void restore(String ring, InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    Map<String, Position> positions = new HashMap<String, Position>();
+    int n = dis.readInt();
+    for(int i = 0; i < n; i++) {
+      positions.put(dis.readUTF(), new Position(new Zxid(dis.readLong(), dis.readLong()), dis.readInt()));
+    }
+    Position have = applied.get(ring);
+    Position snap = positions.get(ring);
+    if(snap == null)
+      throw new KdbException("backup has no zxid for " + ring);
+    if(have != null && have.compareTo(snap) >= 0) {
+      log.info("store has {} at {}, skip backup at {}", ring, have, snap);
+      return;
+    }
+    File dir = new File(location);
+    File staging = new File(location + restoreSuffix);
+    deleteDir(staging);
+    staging.mkdirs();
+    byte[] buf = new byte[1 << 16];
+    while(dis.readBoolean()) {
+      String name = dis.readUTF();
+      long len = dis.readLong();
+      try(FileOutputStream out = new FileOutputStream(new File(staging, name))) {
+        copy(dis, out, len, buf);
+        out.getFD().sync();
+      }
+    }
+    checkpointLock.writeLock().lock();
+    try {
+      // A read in flight parks again when it is done, so keep revoking.
+      long deadline = System.currentTimeMillis() + restoreWait;
+      try {
+        do {
+          inUse.forEach(c -> c.revoke());
+          if(System.currentTimeMillis() > deadline) {
+            deleteDir(staging);
+            throw new KdbException("open contexts hold off the restore of " + ring);
+          }
+        } while(!contexts.tryAcquire(Integer.MAX_VALUE, 100, TimeUnit.MILLISECONDS));
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KdbException(e);
+      }
+      try {
+        pools.keySet().forEach(t -> evict(t));
+        conn.close(null);
+        install(staging, dir);
+        ttls.clear();
+        buckets.clear();
+        reaped.clear();
+        applied.clear();
+        open();
+      } finally {
+        contexts.release(Integer.MAX_VALUE);
+      }
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
+    log.info("restored {}", applied);
+  }
+
+  /**
+   * Swaps the staged directory in for dir. The old files stay aside until
+   * the new ones are in place, and {@link #recover} finishes a swap cut
+   * short by a crash.
+   */
+  static void install(File staging, File dir) throws IOException {
+    File old = new File(dir.getPath() + oldSuffix);
+    deleteDir(old);
+    if(dir.exists() && !dir.renameTo(old))
+      throw new IOException("can not move aside " + dir);
+    if(!staging.renameTo(dir)) {
+      old.renameTo(dir);
+      throw new IOException("can not install backup " + staging);
+    }
+    deleteDir(old);
+  }
+
+  /**
+   * Puts back the old files of an install that crashed between its two
+   * renames, and drops whatever an earlier restore left behind.
+   */
+  static void recover(File dir) {
+    File old = new File(dir.getPath() + oldSuffix);
+    if(!dir.exists() && old.exists())
+      old.renameTo(dir);
+    deleteDir(old);
+    deleteDir(new File(dir.getPath() + restoreSuffix));
+  }
+
+  private static void copy(InputStream in, OutputStream out, long len, byte[] buf) throws IOException {
+    while(len > 0) {
+      int n = in.read(buf, 0, (int)Math.min(buf.length, len));
+      if(n < 0)
+        throw new EOFException();
+      out.write(buf, 0, n);
+      len -= n;
+    }
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if(files != null) {
+      for(File f : files) {
+        if(f.isDirectory())
+          deleteDir(f);
+        else
+          f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  // A session with its cursor on one table. A session is single threaded,
+  // so a handle belongs to one Context at a time and goes back to the pool
+  // of its table, reset rather than closed, when that Context closes.
+  // A shared handle only adds a cursor to a session owned elsewhere, such as
+  // the one running a batch transaction, and is never pooled.
+  static class Handle {
+    Session session;
+    Cursor cursor;
+    byte[] scratch;
+    final boolean shared;
+
+    Handle(Connection conn, String table) {
+      shared = false;
+      session = conn.open_session(null);
+      try {
+        cursor = session.open_cursor("table:"+table, null, null);
+      } catch(WiredTigerException e) {
+        session.close(null);
+        throw e;
+      }
+    }
+
+    Handle(Session session, String table) {
+      shared = true;
+      this.session = session;
+      cursor = session.open_cursor("table:"+table, null, null);
+    }
+
+    void close() {
+      cursor.close();
+      if(!shared)
+        session.close(null);
+    }
+  }
+
+  private BlockingQueue<Handle> pool(String table) {
+    BlockingQueue<Handle> pool = pools.get(table);
+    if(pool == null) {
+      pool = new ArrayBlockingQueue<Handle>(poolSize);
+      BlockingQueue<Handle> old = pools.putIfAbsent(table, pool);
+      if(old != null)
+        pool = old;
+    }
+    return pool;
+  }
+
+  private Handle acquire(String table) {
+    BlockingQueue<Handle> pool = pools.get(table);
+    Handle h = pool == null? null : pool.poll();
+    return h != null? h : new Handle(conn, table);
+  }
+
+  private void release(String table, Handle h) {
+    h.cursor.reset();
+    if(h.shared || tables.get(table) == null || !pool(table).offer(h))
+      h.close();
+  }
+
+  // Closes the idle handles of a table so it can be dropped.
+  private void evict(String table) {
+    BlockingQueue<Handle> pool = pools.remove(table);
+    if(pool != null) {
+      Handle h;
+      while((h = pool.poll()) != null)
+        h.close();
+    }
   }
 
   public class Context implements Closeable {
     private AtomicInteger counts = new AtomicInteger();
     private final static int Count = 5000;
+    private Handle handle;
     Session session;
     String table;
     Cursor cursor;
     boolean done;
     byte[] bound;
+    Filter filter;
+    // Busy while a request uses the context, parked while a read waits for
+    // its token to come back, revoked once a restore closed it.
+    private final AtomicInteger state = new AtomicInteger(busy);
 
     public Context(String table) {
+      this(table, null);
+    }
+
+    /**
+     * A context with its cursor on the given session, or on a pooled one
+     * when session is null.
+     */
+    public Context(String table, Session shared) {
       this.table = table;
       if(counts.getAndIncrement() > 5000) {
         counts.getAndDecrement();
         throw new KdbException("too many sessions");
       }
-      session = Store.this.conn.open_session(null);
-      cursor = session.open_cursor("table:"+table, null, null);
+      contexts.acquireUninterruptibly();
+      try {
+        handle = shared == null? acquire(table) : new Handle(shared, table);
+      } catch(RuntimeException e) {
+        contexts.release();
+        throw e;
+      }
+      session = handle.session;
+      cursor = handle.cursor;
       if(tables.get(table) == null) {
         tables.putIfAbsent(table, new AtomicInteger());
       }
       int v = tables.get(table).getAndIncrement();
       if(v < 0) {
         done = true;
+        handle.close();
+        contexts.release();
         throw new KdbException("table is dropped");
       }
       done = false;
       bound = null;
+      inUse.add(this);
+    }
+
+    // The cursor packs keys and values on put, so one scratch array per
+    // session serves every entry of a request.
+    private byte[] scratch(ByteString data) {
+      if(handle.scratch == null || handle.scratch.length < data.size())
+        handle.scratch = new byte[Math.max(data.size(), 256)];
+      data.copyTo(handle.scratch, 0);
+      return handle.scratch;
+    }
+
+    public void putKey(ByteString key) {
+      cursor.putKeyByteArray(scratch(key), 0, key.size());
+    }
+
+    public void putValue(ByteString value) {
+      cursor.putValueByteArray(scratch(value), 0, value.size());
     }
 
     public String token() {
@@ -73,32 +604,67 @@ public class Store implements Closeable {
     }
 
     public void close() {
-      cursor.close();
-      session.close(null);
+      if(!inUse.remove(this))
+        return;
+      release(table, handle);
+      contexts.release();
       tables.get(table).getAndDecrement();
       counts.getAndDecrement();
       done = true;
       bound = null;
     }
+
+    // Closes the context if it is parked; one in use closes on its own.
+    void revoke() {
+      if(state.compareAndSet(parked, revoked))
+        close();
+    }
   }
 
+  /**
+   * A context on a pooled session, or inside the ring transaction that the
+   * calling thread is applying.
+   */
   public Context getContext(String table) {
-    return new Context(table);
+    Session session = txn.get();
+    return session == null? new Context(table) : new Context(table, session);
   }
 
   public Message create(String table) {
+    return create(table, 0);
+  }
+
+  public Message create(String table, long ttl) {
+    return create(table, ttl, 0);
+  }
+
+  /**
+   * @param bucket seconds per bucket when the keys of the ttl table start
+   * with a time bucket rather than a timestamp, see {@link Expiry}.
+   */
+  public Message create(String table, long ttl, int bucket) {
     if(tables.get(table) != null) {
       //throw new KdbException("table existed");
       //log.info("{} table already existed", table);
       return MessageBuilder.buildResponse("table already existed:" + table);
     }
     //log.info("create {}", table);
+    Expiry.check(ttl, bucket);
     Session session = conn.open_session(null);
-    int r = session.create("table:"+table, "(type=lsm,key_format=u,value_format=u)");
+    String meta = bucket > 0? "ttl=" + ttl + ",bucket=" + bucket : "ttl=" + ttl;
+    // A ttl table is a btree: WiredTiger truncates a range of an lsm tree
+    // key by key, but drops whole btree pages, so the reaper's deletes stay
+    // cheap however much data expires.
+    String config = ttl > 0? "(type=file,key_format=u,value_format=u,app_metadata=\"" + meta + "\")" : "(type=lsm,key_format=u,value_format=u)";
+    int r = session.create("table:"+table, config);
     if(r == 0)
       session.close(null);
     else
       throw new KdbException("errro code:"+ r);
+    if(ttl > 0)
+      ttls.put(table, ttl);
+    if(ttl > 0 && bucket > 0)
+      buckets.put(table, bucket);
     return MessageBuilder.buildResponse("create " + table);
   }
 
@@ -111,6 +677,7 @@ public class Store implements Closeable {
     if(v.get() > 0) {
       return MessageBuilder.buildResponse("table active:" + table);
     }
+    evict(table);
     Session session = conn.open_session(null);
     try {
       session.drop("table:"+table, null);
@@ -119,6 +686,9 @@ public class Store implements Closeable {
     }
     session.close(null);
     tables.remove(table);
+    ttls.remove(table);
+    buckets.remove(table);
+    reaped.remove(table);
     return MessageBuilder.buildResponse("drop " + table);
   }
 
@@ -131,8 +701,8 @@ public class Store implements Closeable {
       throw new RuntimeException("wrong length");
     //log.info("insert {}", msg);
     for(int i = 0; i < len; i++) {
-      ctx.cursor.putKeyByteArray(op.getKeys(i).toByteArray());
-      ctx.cursor.putValueByteArray(op.getValues(i).toByteArray());
+      ctx.putKey(op.getKeys(i));
+      ctx.putValue(op.getValues(i));
       ctx.cursor.insert();
     }
     return MessageBuilder.buildResponse("inserted");
@@ -147,28 +717,43 @@ public class Store implements Closeable {
       if(op.getValuesCount() != 0) {
         throw new KdbException("wrong length");
       }
-      ByteBuffer counter = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-      for(int i = 0; i < len; i++) {
-        ctx.cursor.putKeyByteArray(op.getKeys(i).toByteArray());
-        if(ctx.cursor.search() == 0) {
-          ctx.cursor.getValueByteArray(counter.array(), 0, 4);
-          int c = counter.getInt()+1;
-          counter.clear();
-          counter.putInt(c);
-          ctx.cursor.putValueByteArray(counter.array());
-        } else {
-          counter.putInt(1);
-          ctx.cursor.putValueByteArray(counter.array());
-        }
-        ctx.cursor.putKeyByteArray(op.getKeys(i).toByteArray());
+      // Increments of one key are added up first, so a hot key costs one
+      // read-modify-write per batch, in key order.
+      TreeMap<ByteString, Integer> counts = new TreeMap<ByteString, Integer>(Utils::memcmp);
+      for(int i = 0; i < len; i++)
+        counts.merge(op.getKeys(i), 1, Integer::sum);
+      // New counters are 4 bytes; a stored value keeps its width, so a key
+      // also updated by an Add merge stays readable by both.
+      for(Map.Entry<ByteString, Integer> e : counts.entrySet()) {
+        byte[] value = MergeOperator.encode(e.getValue(), 4);
+        ctx.putKey(e.getKey());
+        if(ctx.cursor.search() == 0)
+          value = MergeOperator.merge(UpdateOperation.Merge.Add, ctx.cursor.getValueByteArray(), value);
+        ctx.cursor.putValueByteArray(value);
+        ctx.putKey(e.getKey());
+        ctx.cursor.update();
+        ctx.cursor.reset();
+      }
+    } else if(op.getMerge() != UpdateOperation.Merge.Put) {
+      // Same for merges: the operands of a key are folded together before
+      // the one read-modify-write against the stored value.
+      TreeMap<ByteString, byte[]> operands = new TreeMap<ByteString, byte[]>(Utils::memcmp);
+      for(int i = 0; i < len; i++)
+        operands.merge(op.getKeys(i), op.getValues(i).toByteArray(), (x, y) -> MergeOperator.apply(op.getMerge(), x, y));
+      for(Map.Entry<ByteString, byte[]> e : operands.entrySet()) {
+        byte[] value = e.getValue();
+        ctx.putKey(e.getKey());
+        if(ctx.cursor.search() == 0)
+          value = MergeOperator.merge(op.getMerge(), ctx.cursor.getValueByteArray(), value);
+        ctx.cursor.putValueByteArray(value);
+        ctx.putKey(e.getKey());
         ctx.cursor.update();
         ctx.cursor.reset();
-        counter.clear();
       }
     } else {
       for(int i = 0; i < len; i++) {
-        ctx.cursor.putKeyByteArray(op.getKeys(i).toByteArray());
-        ctx.cursor.putValueByteArray(op.getValues(i).toByteArray());
+        ctx.putKey(op.getKeys(i));
+        ctx.putValue(op.getValues(i));
         ctx.cursor.update();
         ctx.cursor.reset();
       }
@@ -176,11 +761,131 @@ public class Store implements Closeable {
     return MessageBuilder.buildResponse("updated");
   }
 
+  /**
+   * Range deletes covering the data that has outlived the ttl of each table,
+   * by the leading timestamp or time bucket of the keys.
+   */
+  public List<Message> expired(long now) {
+    List<Message> msgs = new ArrayList<Message>();
+    ttls.forEach((table, ttl) -> msgs.addAll(Expiry.deletes(table, ttl, buckets.getOrDefault(table, 0), now)));
+    return msgs;
+  }
+
+  /**
+   * The cutoff time of the last expiry applied to each ttl table.
+   */
+  public Map<String, Long> reaped() {
+    return reaped;
+  }
+
+  public Message delete(Context ctx, Message msg) {
+    assert msg.getType() == MessageType.Delete;
+    DeleteOperation op = msg.getDeleteOp();
+    // Only the ttl reaper deletes to the end of a table, a client's range
+    // needs its end.
+    if(op.getKey().size() > 0 && op.getKey2().size() == 0 && !op.getToEnd())
+      throw new KdbException("delete range has no end key");
+    ctx.cursor.reset();
+    for(int i = 0; i < op.getKeysCount(); i++) {
+      ctx.putKey(op.getKeys(i));
+      ctx.cursor.remove();
+      ctx.cursor.reset();
+    }
+    if(op.getKey().size() > 0) {
+      truncate(ctx, op.getKey(), op.getToEnd()? ByteString.EMPTY : op.getKey2());
+    }
+    if(op.getExpiry() != 0) {
+      reaped.merge(op.getTable(), op.getExpiry(), Math::max);
+    }
+    return MessageBuilder.buildResponse("deleted");
+  }
+
+  // Removes [key, key2) with one WT_SESSION::truncate, to the end of the
+  // table when key2 is empty. Truncate takes an inclusive stop cursor, so it
+  // is moved back to the last key before key2.
+  private void truncate(Context ctx, ByteString key, ByteString key2) {
+    ctx.putKey(key);
+    SearchStatus status = ctx.cursor.search_near();
+    if(status == SearchStatus.NOTFOUND)
+      return;
+    if(status == SearchStatus.SMALLER && ctx.cursor.next() != 0) {
+      ctx.cursor.reset();
+      return;
+    }
+    if(key2.size() == 0) {
+      ctx.session.truncate(null, ctx.cursor, null, null);
+      ctx.cursor.reset();
+      return;
+    }
+    Cursor stop = ctx.session.open_cursor("table:"+ctx.table, null, null);
+    try {
+      stop.putKeyByteArray(key2.toByteArray());
+      status = stop.search_near();
+      if(status == SearchStatus.NOTFOUND)
+        return;
+      if(status != SearchStatus.SMALLER && stop.prev() != 0)
+        return;
+      if(ctx.cursor.compare(stop) > 0)
+        return;
+      ctx.session.truncate(null, ctx.cursor, stop, null);
+    } finally {
+      stop.close();
+      ctx.cursor.reset();
+    }
+  }
+
+  private static boolean matches(ByteString pattern, ByteString mask, int offset, byte[] data) {
+    if(offset + pattern.size() > data.length)
+      return false;
+    for(int i = 0; i < pattern.size(); i++) {
+      int m = mask.size() > i? mask.byteAt(i) : 0xFF;
+      if(((data[offset+i] ^ pattern.byteAt(i)) & m) != 0)
+        return false;
+    }
+    return true;
+  }
+
+  // Whether the row under the cursor passes ctx.filter. A key past
+  // ctx.bound passes, so the caller stops there instead of skipping on.
+  private boolean accept(Context ctx) {
+    Filter f = ctx.filter;
+    if(f == null)
+      return true;
+    byte[] key = ctx.cursor.getKeyByteArray();
+    if(ctx.bound != null && Utils.memcmp(key, ctx.bound) > 0)
+      return true;
+    if(!matches(f.getKeyPrefix(), ByteString.EMPTY, 0, key))
+      return false;
+    if(!matches(f.getKeyBytes(), f.getKeyMask(), f.getKeyOffset(), key))
+      return false;
+    if(f.getValueBytes().size() > 0)
+      return matches(f.getValueBytes(), f.getValueMask(), f.getValueOffset(), ctx.cursor.getValueByteArray());
+    return true;
+  }
+
+  // Moves from the row under the cursor to the first row that passes the
+  // filter, forward or backward.
+  private boolean skip(Context ctx, boolean forward) {
+    while(!accept(ctx)) {
+      if((forward? ctx.cursor.next() : ctx.cursor.prev()) != 0)
+        return false;
+    }
+    return true;
+  }
+
+  private boolean next(Context ctx) {
+    return ctx.cursor.next() == 0 && skip(ctx, true);
+  }
+
+  private boolean prev(Context ctx) {
+    return ctx.cursor.prev() == 0 && skip(ctx, false);
+  }
+
   private Message buildfwd(Context ctx, int limit) {
     byte[] key, value;
     List<byte[]> keys = new ArrayList<byte[]>();
     List<byte[]> values = new ArrayList<byte[]>();
-    while(--limit>0 && ctx.cursor.next() == 0) {
+    while(--limit>0 && next(ctx)) {
       key = ctx.cursor.getKeyByteArray();
       value = ctx.cursor.getValueByteArray();
       keys.add(key);
@@ -195,7 +900,7 @@ public class Store implements Closeable {
     Message r = MessageBuilder.nullMsg;
     List<byte[]> keys = new ArrayList<byte[]>();
     List<byte[]> values = new ArrayList<byte[]>();
-    while(--limit>0 && ctx.cursor.prev() == 0) {
+    while(--limit>0 && prev(ctx)) {
       key = ctx.cursor.getKeyByteArray();
       value = ctx.cursor.getValueByteArray();
       keys.add(key);
@@ -209,7 +914,7 @@ public class Store implements Closeable {
     byte[] key, value;
     List<byte[]> keys = new ArrayList<byte[]>();
     List<byte[]> values = new ArrayList<byte[]>();
-    while(--limit>0 && ctx.cursor.next() == 0) {
+    while(--limit>0 && next(ctx)) {
       key = ctx.cursor.getKeyByteArray();
       if(Utils.memcmp(key, ctx.bound) > 0)
         break;
@@ -221,7 +926,135 @@ public class Store implements Closeable {
     return MessageBuilder.buildResponse(ctx.done? "" : ctx.token(), keys, values);
   }
 
+  // Looks keys up in key order for cursor locality, but answers them in
+  // request order; found marks which of them exist.
+  private Message multiget(Context ctx, GetOperation op) {
+    int len = op.getKeysCount();
+    Integer[] order = new Integer[len];
+    for(int i = 0; i < len; i++)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> Utils.memcmp(op.getKeys(a), op.getKeys(b)));
+    byte[][] values = new byte[len][];
+    for(int i : order) {
+      ctx.putKey(op.getKeys(i));
+      if(ctx.cursor.search() == 0)
+        values[i] = ctx.cursor.getValueByteArray();
+    }
+    ctx.cursor.reset();
+    List<byte[]> keys = new ArrayList<byte[]>(len);
+    List<byte[]> vals = new ArrayList<byte[]>(len);
+    List<Boolean> found = new ArrayList<Boolean>(len);
+    for(int i = 0; i < len; i++) {
+      keys.add(op.getKeys(i).toByteArray());
+      vals.add(values[i] != null? values[i] : new byte[0]);
+      found.add(values[i] != null);
+    }
+    ctx.done = true;
+    return MessageBuilder.buildResponse(keys, vals, found);
+  }
+
+  // Positions the cursor on the first key >= lo, or the first key of the
+  // table when lo is null.
+  private boolean seekFirst(Context ctx, byte[] lo) {
+    if(lo == null)
+      return ctx.cursor.next() == 0;
+    ctx.cursor.putKeyByteArray(lo);
+    SearchStatus status = ctx.cursor.search_near();
+    if(status == SearchStatus.NOTFOUND)
+      return false;
+    return status != SearchStatus.SMALLER || ctx.cursor.next() == 0;
+  }
+
+  // Positions the cursor on the last key <= hi, or the last key of the
+  // table when hi is null.
+  private boolean seekLast(Context ctx, byte[] hi) {
+    if(hi == null)
+      return ctx.cursor.prev() == 0;
+    ctx.cursor.putKeyByteArray(hi);
+    SearchStatus status = ctx.cursor.search_near();
+    if(status == SearchStatus.NOTFOUND)
+      return false;
+    return status != SearchStatus.LARGER || ctx.cursor.prev() == 0;
+  }
+
+  private Message aggregate(Context ctx, GetOperation op) {
+    byte[] lo = null, hi = null;
+    switch(op.getOp()) {
+    case Equal:
+    case Between:
+      lo = op.getKey().toByteArray();
+      hi = op.getOp() == GetOperation.Type.Equal? lo : op.getKey2().toByteArray();
+      break;
+    case GreaterEqual:
+      lo = op.getKey().toByteArray();
+      break;
+    case LessEqual:
+      hi = op.getKey().toByteArray();
+      break;
+    default:
+      return MessageBuilder.emptyMsg;
+    }
+    ctx.done = true;
+    ctx.bound = hi;
+    ctx.cursor.reset();
+    byte[] key;
+    switch(op.getAggregate()) {
+    case Min:
+      if(seekFirst(ctx, lo) && skip(ctx, true)) {
+        key = ctx.cursor.getKeyByteArray();
+        if(hi == null || Utils.memcmp(key, hi) <= 0)
+          return MessageBuilder.buildResponse(key, ctx.cursor.getValueByteArray());
+      }
+      return MessageBuilder.emptyMsg;
+    case Max:
+      if(seekLast(ctx, hi) && skip(ctx, false)) {
+        key = ctx.cursor.getKeyByteArray();
+        if(lo == null || Utils.memcmp(key, lo) >= 0)
+          return MessageBuilder.buildResponse(key, ctx.cursor.getValueByteArray());
+      }
+      return MessageBuilder.emptyMsg;
+    }
+    long result = 0;
+    if(seekFirst(ctx, lo) && skip(ctx, true)) {
+      byte[] last = null;
+      int prefix = op.getPrefix();
+      do {
+        key = ctx.cursor.getKeyByteArray();
+        if(hi != null && Utils.memcmp(key, hi) > 0)
+          break;
+        switch(op.getAggregate()) {
+        case Count:
+          result++;
+          break;
+        case Sum:
+          result += MergeOperator.decode(ctx.cursor.getValueByteArray());
+          break;
+        case Distinct:
+          int n = Math.min(prefix, key.length);
+          if(last == null || last.length != n || Utils.memcmp(last, key, n) != 0) {
+            last = Arrays.copyOf(key, n);
+            result++;
+          }
+          break;
+        }
+      } while(next(ctx));
+    }
+    ctx.cursor.reset();
+    return MessageBuilder.buildAggregateResponse(result);
+  }
+
   public Message get(Context ctx, Message msg) {
+    if(!ctx.state.compareAndSet(parked, busy) && ctx.state.get() == revoked)
+      throw new KdbException("read closed by a restore");
+    try {
+      return read(ctx, msg);
+    } finally {
+      if(!ctx.done)
+        ctx.state.set(parked);
+    }
+  }
+
+  private Message read(Context ctx, Message msg) {
     Message r = MessageBuilder.emptyMsg;
     byte[] key, value;
     SearchStatus status;
@@ -246,6 +1079,10 @@ public class Store implements Closeable {
       }
       return r;
     }
+    ctx.filter = msg.getGetOp().hasFilter()? msg.getGetOp().getFilter() : null;
+    if(msg.getGetOp().getAggregate() != GetOperation.Aggregate.None) {
+      return aggregate(ctx, msg.getGetOp());
+    }
     ctx.cursor.reset();
     switch(msg.getGetOp().getOp()) {
     case Equal:
@@ -265,12 +1102,13 @@ public class Store implements Closeable {
         //log.info("{} look for {}", this, new String(msg.getGetOp().getKey().toByteArray()));
         //log.info("{} look for {}", this, new String(msg.getGetOp().getKey2().toByteArray()));
         int limit = msg.getGetOp().getLimit();
+        byte[] k2 = msg.getGetOp().getKey2().toByteArray();
+        ctx.bound = k2;
         ctx.cursor.putKeyByteArray(msg.getGetOp().getKey().toByteArray());
         status = ctx.cursor.search_near();
-        if(status == SearchStatus.FOUND || status == SearchStatus.LARGER) {
+        if((status == SearchStatus.FOUND || status == SearchStatus.LARGER) && skip(ctx, true)) {
           List<byte[]> keys = new ArrayList<byte[]>();
           List<byte[]> values = new ArrayList<byte[]>();
-          byte[] k2 = msg.getGetOp().getKey2().toByteArray();
           do {
             key = ctx.cursor.getKeyByteArray();
             if(Utils.memcmp(key, k2) > 0)
@@ -278,9 +1116,8 @@ public class Store implements Closeable {
             value = ctx.cursor.getValueByteArray();
             keys.add(key);
             values.add(value);
-          } while(--limit>0 && ctx.cursor.next() == 0);
+          } while(--limit>0 && next(ctx));
           ctx.done = limit != 0? true : false;
-          ctx.bound = k2;
           r = MessageBuilder.buildResponse(ctx.done? "" : ctx.token(), keys, values);
         }
       }
@@ -289,7 +1126,7 @@ public class Store implements Closeable {
       //log.info("{} look for {}", this, new String(msg.getGetOp().getKey().toByteArray()));
       ctx.cursor.putKeyByteArray(msg.getGetOp().getKey().toByteArray());
       status = ctx.cursor.search_near();
-      if(status == SearchStatus.FOUND || status == SearchStatus.LARGER) {
+      if((status == SearchStatus.FOUND || status == SearchStatus.LARGER) && skip(ctx, true)) {
         int limit = msg.getGetOp().getLimit();
         //log.info("limit {}", limit);
         List<byte[]> keys = new ArrayList<byte[]>();
@@ -300,7 +1137,7 @@ public class Store implements Closeable {
           keys.add(key);
           values.add(value);
           //log.info("key {} value {} ", new String(key), new String(value));
-        } while(--limit>0 && ctx.cursor.next() == 0);
+        } while(--limit>0 && next(ctx));
         ctx.done = limit != 0? true : false;
         r = MessageBuilder.buildResponse(ctx.done? "" : ctx.token(), keys, values);
       }
@@ -309,7 +1146,7 @@ public class Store implements Closeable {
       //log.info("{} look for {}", this, new String(msg.getGetOp().getKey().toByteArray()));
       ctx.cursor.putKeyByteArray(msg.getGetOp().getKey().toByteArray());
       status = ctx.cursor.search_near();
-      if(status == SearchStatus.FOUND || status == SearchStatus.SMALLER) {
+      if((status == SearchStatus.FOUND || status == SearchStatus.SMALLER) && skip(ctx, false)) {
         int limit = msg.getGetOp().getLimit();
         //log.info("limit {}", limit);
         List<byte[]> keys = new ArrayList<byte[]>();
@@ -320,21 +1157,106 @@ public class Store implements Closeable {
           keys.add(key);
           values.add(value);
           //log.info("key {} value {} ", new String(key), new String(value));
-        } while(--limit>0 && ctx.cursor.prev() == 0);
+        } while(--limit>0 && prev(ctx));
         ctx.done = limit != 0? true : false;
         r = MessageBuilder.buildResponse(ctx.done? "" : ctx.token(), keys, values);
       }
       break;
+    case Multi:
+      r = multiget(ctx, msg.getGetOp());
+      break;
     default:
       break;
     }
+    if(r == MessageBuilder.emptyMsg) {
+      // Nothing matched, so there is no token to come back with.
+      ctx.done = true;
+    }
     return r;
   }
 
+  private static String table(Message msg) {
+    switch(msg.getType()) {
+    case Insert:
+      return msg.getInsertOp().getTable();
+    case Update:
+      return msg.getUpdateOp().getTable();
+    case Delete:
+      return msg.getDeleteOp().getTable();
+    default:
+      throw new KdbException("batch only takes insert, update and delete");
+    }
+  }
+
+  /**
+   * Applies every write of a batch in one transaction on one session, with
+   * a cursor per table; an error rolls the whole batch back. Under a ring
+   * the batch runs in the ring's transaction, which rolls back on error.
+   */
+  public Message batch(Message msg) {
+    assert msg.getType() == MessageType.Batch;
+    Session shared = txn.get();
+    Session session = shared != null? shared : conn.open_session(null);
+    Map<String, Context> ctxs = new HashMap<String, Context>();
+    try {
+      if(shared == null)
+        session.begin_transaction(null);
+      try {
+        for(Message m : msg.getBatchOp().getMsgsList()) {
+          String table = table(m);
+          Context ctx = ctxs.get(table);
+          if(ctx == null) {
+            ctx = new Context(table, session);
+            ctxs.put(table, ctx);
+          }
+          switch(m.getType()) {
+          case Insert:
+            insert(ctx, m);
+            break;
+          case Update:
+            update(ctx, m);
+            break;
+          case Delete:
+            delete(ctx, m);
+            break;
+          }
+        }
+      } catch(RuntimeException e) {
+        if(shared == null)
+          session.rollback_transaction(null);
+        throw e instanceof KdbException? (KdbException)e : new KdbException(e);
+      }
+      if(shared == null)
+        session.commit_transaction(null);
+    } finally {
+      ctxs.values().forEach(c -> c.close());
+      if(shared == null)
+        session.close(null);
+    }
+    return MessageBuilder.buildResponse("batched");
+  }
+
+  /**
+   * Parses a message without copying its keys and values: they alias data,
+   * which must not be modified while the message is in use. A direct buffer
+   * is copied once up front.
+   */
+  public static Message parse(ByteBuffer data) throws IOException {
+    if(!data.hasArray()) {
+      byte[] arr = new byte[data.remaining()];
+      data.get(arr);
+      data = ByteBuffer.wrap(arr);
+    }
+    CodedInputStream in = UnsafeByteOperations.unsafeWrap(data).newCodedInput();
+    in.enableAliasing(true);
+    return Message.parseFrom(in);
+  }
+
   public Message handle(ByteBuffer data) throws IOException {
-    byte[] arr = new byte[data.remaining()];
-    data.get(arr);
-    Message msg = Message.parseFrom(arr);
+    return handle(parse(data));
+  }
+
+  public Message handle(Message msg) {
     //log.info("handle {}", msg);
     if(msg.getType() == MessageType.Insert) {
       String table = msg.getInsertOp().getTable();
@@ -346,9 +1268,16 @@ public class Store implements Closeable {
       try(Store.Context ctx = getContext(table)) {
         msg = update(ctx, msg);
       }
+    } else if (msg.getType() == MessageType.Delete) {
+      String table = msg.getDeleteOp().getTable();
+      try(Store.Context ctx = getContext(table)) {
+        msg = delete(ctx, msg);
+      }
+    } else if (msg.getType() == MessageType.Batch) {
+      msg = batch(msg);
     } else if(msg.getType() == MessageType.Create) {
       String table = msg.getCreateOp().getTable();
-      msg = create(table);
+      msg = create(table, msg.getCreateOp().getTtl(), msg.getCreateOp().getBucket());
     } else if(msg.getType() == MessageType.Drop) {
       String table = msg.getDropOp().getTable();
       msg = drop(table);
@@ -357,7 +1286,15 @@ public class Store implements Closeable {
   }
 
   public void close() {
-    conn.close(null);
+    // Closing the connection takes a final checkpoint, no ring write may
+    // be halfway through it.
+    checkpointLock.writeLock().lock();
+    try {
+      pools.keySet().forEach(t -> evict(t));
+      conn.close(null);
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
   }
 
 }
@@ -13,6 +13,7 @@ import java.util.function.LongConsumer;
 import java.util.concurrent.*;
 import java.time.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import com.google.protobuf.ByteString;
 
 class Utils {
   private static Logger log = LogManager.getLogger(Utils.class);
@@ -87,4 +88,14 @@ class Utils {
     return 0;
   }
 
+  public static int memcmp(final ByteString a, final ByteString b) {
+    final int length = Math.min(a.size(), b.size());
+    for (int i = 0; i < length; i++) {
+      if (a.byteAt(i) != b.byteAt(i)) {
+        return (a.byteAt(i) & 0xFF) - (b.byteAt(i) & 0xFF);
+      }
+    }
+    return a.size() - b.size();
+  }
+
 }
@@ -3,14 +3,13 @@ package kdb.rsm;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import kdb.rsm.proto.ZabMessage;
 import kdb.rsm.proto.ZabMessage.Message;
 import kdb.rsm.proto.ZabMessage.Message.MessageType;
@@ -23,8 +22,7 @@ import org.slf4j.LoggerFactory;
  */
 class AckProcessor implements RequestProcessor, Callable<Void> {
 
-  private final BlockingQueue<MessageTuple> ackQueue =
-      new LinkedBlockingQueue<MessageTuple>();
+  private final RequestQueue ackQueue;
 
   /**
    * The quorum set in main thread.
@@ -52,7 +50,9 @@ class AckProcessor implements RequestProcessor, Callable<Void> {
   Future<Void> ft;
 
   public AckProcessor(Map<String, PeerHandler> quorumMap,
-                      ClusterConfiguration cnf) {
+                      ClusterConfiguration cnf,
+                      boolean busySpin) {
+    this.ackQueue = new RequestQueue(busySpin);
     this.quorumMapOriginal = quorumMap;
     this.quorumMap = new HashMap<String, PeerHandler>(quorumMap);
     this.clusterConfig = cnf.clone();
@@ -105,117 +105,130 @@ class AckProcessor implements RequestProcessor, Callable<Void> {
   public Void call() throws Exception {
     LOG.debug("AckProcessor gets started.");
     try {
-      while (true) {
-        MessageTuple request = ackQueue.take();
-        if (request == MessageTuple.REQUEST_OF_DEATH) {
-          break;
-        }
-        Message msg = request.getMessage();
-        String source = request.getServerId();
-        if (msg.getType() == MessageType.ACK) {
-          ZabMessage.Ack ack = request.getMessage().getAck();
-          Zxid zxid = MessageBuilder.fromProtoZxid(ack.getZxid());
-          LOG.debug("Got ACK {} from {}", zxid, source);
-          this.quorumMap.get(source).setLastAckedZxid(zxid);
-          // The zxid of last transaction which could be committed.
-          Zxid zxidCanCommit = null;
-          // Check if there's a pending reconfiguration.
-          if (this.pendingConfig != null) {
-            // Find out the last transaction which can be committed for pending
-            // configuration.
-            zxidCanCommit = getCommittedZxid(this.pendingConfig);
-            LOG.debug("Zxid can be committed for pending configuration is {}.",
-                      zxidCanCommit);
-            if (zxidCanCommit.compareTo(pendingConfig.getVersion()) >= 0) {
-              // The pending configuration is just committed, make it becomes
-              // current configuration.
-              LOG.debug("Pending configuration {} is committed, turn it into" +
-                  " current configuration.", pendingConfig.getVersion());
-              this.clusterConfig = this.pendingConfig;
-              this.pendingConfig = null;
-            } else {
-              // Still hasn't been committed yet.
-              zxidCanCommit = null;
-            }
+      List<MessageTuple> batch = new ArrayList<MessageTuple>();
+      boolean stopped = false;
+      while (!stopped) {
+        // Processes all the pending requests in one pass.
+        ackQueue.drainTo(batch);
+        for (int i = 0; i < batch.size(); ++i) {
+          MessageTuple request = batch.get(i);
+          if (request == MessageTuple.REQUEST_OF_DEATH) {
+            stopped = true;
+            break;
           }
-          if (zxidCanCommit == null) {
-            // Find out the last transaction which can be committed for current
-            // configuration.
-            zxidCanCommit = getCommittedZxid(this.clusterConfig);
-            if (pendingConfig != null &&
-                zxidCanCommit.compareTo(pendingConfig.getVersion()) >= 0) {
-              // We still shouldn't commit any transaction after COP if they
-              // are just acknowledged by a quorum of old configuration.
-              Zxid version = pendingConfig.getVersion();
-              // Then commit the transactions up to the one before COP.
-              if (version.getXid() == 0) {
-                // Means the COP is the first transaction in this epoch, no
-                // transactions before COP needs to be committed.
-                continue;
+          Message msg = request.getMessage();
+          String source = request.getServerId();
+          if (msg.getType() == MessageType.ACK) {
+            ZabMessage.Ack ack = request.getMessage().getAck();
+            Zxid zxid = MessageBuilder.fromProtoZxid(ack.getZxid());
+            LOG.debug("Got ACK {} from {}", zxid, source);
+            this.quorumMap.get(source).setLastAckedZxid(zxid);
+            if (i + 1 < batch.size() &&
+                batch.get(i + 1).getMessage().getType() == MessageType.ACK) {
+              // Commits once for a run of ACKs.
+              continue;
+            }
+            // The zxid of last transaction which could be committed.
+            Zxid zxidCanCommit = null;
+            // Check if there's a pending reconfiguration.
+            if (this.pendingConfig != null) {
+              // Find out the last transaction which can be committed for
+              // pending configuration.
+              zxidCanCommit = getCommittedZxid(this.pendingConfig);
+              LOG.debug("Zxid can be committed for pending configuration is "
+                        + "{}.", zxidCanCommit);
+              if (zxidCanCommit.compareTo(pendingConfig.getVersion()) >= 0) {
+                // The pending configuration is just committed, make it becomes
+                // current configuration.
+                LOG.debug("Pending configuration {} is committed, turn it " +
+                    "into current configuration.", pendingConfig.getVersion());
+                this.clusterConfig = this.pendingConfig;
+                this.pendingConfig = null;
               } else {
-                // We can commit the transaction up to the one before COP.
-                zxidCanCommit =
-                  new Zxid(version.getEpoch(), version.getXid() - 1);
+                // Still hasn't been committed yet.
+                zxidCanCommit = null;
               }
             }
-            LOG.debug("Zxid can be committed for current configuration is {}",
-                      zxidCanCommit);
-          }
-          LOG.debug("Can COMMIT : {}", zxidCanCommit);
-          for (PeerHandler ph : quorumMap.values()) {
-            if (ph.getLastAckedZxid() == null) {
-              // Means the server hasn't acked any proposal.
-              continue;
+            if (zxidCanCommit == null) {
+              // Find out the last transaction which can be committed for
+              // current configuration.
+              zxidCanCommit = getCommittedZxid(this.clusterConfig);
+              if (pendingConfig != null &&
+                  zxidCanCommit.compareTo(pendingConfig.getVersion()) >= 0) {
+                // We still shouldn't commit any transaction after COP if they
+                // are just acknowledged by a quorum of old configuration.
+                Zxid version = pendingConfig.getVersion();
+                // Then commit the transactions up to the one before COP.
+                if (version.getXid() == 0) {
+                  // Means the COP is the first transaction in this epoch, no
+                  // transactions before COP needs to be committed.
+                  continue;
+                } else {
+                  // We can commit the transaction up to the one before COP.
+                  zxidCanCommit =
+                    new Zxid(version.getEpoch(), version.getXid() - 1);
+                }
+              }
+              LOG.debug("Zxid can be committed for current configuration is {}",
+                        zxidCanCommit);
             }
-            Zxid zxidCommit = zxidCanCommit;
-            if (zxidCommit.compareTo(ph.getLastAckedZxid()) > 0) {
-              // We shouldn't send COMMIT with zxid higher than what the peer
-              // acknowledged.
-              zxidCommit = ph.getLastAckedZxid();
+            LOG.debug("Can COMMIT : {}", zxidCanCommit);
+            for (PeerHandler ph : quorumMap.values()) {
+              if (ph.getLastAckedZxid() == null) {
+                // Means the server hasn't acked any proposal.
+                continue;
+              }
+              Zxid zxidCommit = zxidCanCommit;
+              if (zxidCommit.compareTo(ph.getLastAckedZxid()) > 0) {
+                // We shouldn't send COMMIT with zxid higher than what the peer
+                // acknowledged.
+                zxidCommit = ph.getLastAckedZxid();
+              }
+              if (zxidCommit.compareTo(ph.getLastCommittedZxid()) > 0) {
+                // Avoids sending duplicate transactions even the transactions
+                // are idempotent.
+                Message commit = MessageBuilder.buildCommit(zxidCommit);
+                ph.queueMessage(commit);
+                ph.setLastCommittedZxid(zxidCommit);
+              }
             }
-            if (zxidCommit.compareTo(ph.getLastCommittedZxid()) > 0) {
-              // Avoids sending duplicate transactions even the transactions
-              // are idempotent.
-              Message commit = MessageBuilder.buildCommit(zxidCommit);
-              ph.queueMessage(commit);
-              ph.setLastCommittedZxid(zxidCommit);
+          } else if (msg.getType() == MessageType.JOIN ||
+                     msg.getType() == MessageType.ACK_EPOCH) {
+            PeerHandler ph = quorumMapOriginal.get(source);
+            if (ph != null) {
+              this.quorumMap.put(source, ph);
             }
-          }
-        } else if (msg.getType() == MessageType.JOIN ||
-                   msg.getType() == MessageType.ACK_EPOCH) {
-          PeerHandler ph = quorumMapOriginal.get(source);
-          if (ph != null) {
-            this.quorumMap.put(source, ph);
-          }
-          if (msg.getType() == MessageType.JOIN) {
-            LOG.debug("Got JOIN({}) from {}", request.getZxid(), source);
+            if (msg.getType() == MessageType.JOIN) {
+              LOG.debug("Got JOIN({}) from {}", request.getZxid(), source);
+              if (pendingConfig != null) {
+                LOG.error("A pending reconfig is still in progress, a bug?");
+                throw new RuntimeException("Still has pending reconfiguration");
+              }
+              this.pendingConfig = this.clusterConfig.clone();
+              this.pendingConfig.addPeer(source);
+              // Update zxid for this reconfiguration.
+              this.pendingConfig.setVersion(request.getZxid());
+            }
+          } else if (msg.getType() == MessageType.DISCONNECTED) {
+            String peerId = msg.getDisconnected().getServerId();
+            LOG.debug("Got DISCONNECTED from {}.", peerId);
+            this.quorumMap.remove(peerId);
+          } else if (msg.getType() == MessageType.REMOVE) {
+            String serverId = msg.getRemove().getServerId();
+            LOG.debug("Got REMOVE({})for {}", request.getZxid(), serverId);
             if (pendingConfig != null) {
               LOG.error("A pending reconfig is still in progress, a bug?");
               throw new RuntimeException("Still has pending reconfiguration");
             }
             this.pendingConfig = this.clusterConfig.clone();
-            this.pendingConfig.addPeer(source);
+            this.pendingConfig.removePeer(serverId);
             // Update zxid for this reconfiguration.
             this.pendingConfig.setVersion(request.getZxid());
+          } else {
+            LOG.warn("Got unexpected message.");
           }
-        } else if (msg.getType() == MessageType.DISCONNECTED) {
-          String peerId = msg.getDisconnected().getServerId();
-          LOG.debug("Got DISCONNECTED from {}.", peerId);
-          this.quorumMap.remove(peerId);
-        } else if (msg.getType() == MessageType.REMOVE) {
-          String serverId = msg.getRemove().getServerId();
-          LOG.debug("Got REMOVE({})for {}", request.getZxid(), serverId);
-          if (pendingConfig != null) {
-            LOG.error("A pending reconfig is still in progress, a bug?");
-            throw new RuntimeException("Still has pending reconfiguration");
-          }
-          this.pendingConfig = this.clusterConfig.clone();
-          this.pendingConfig.removePeer(serverId);
-          // Update zxid for this reconfiguration.
-          this.pendingConfig.setVersion(request.getZxid());
-        } else {
-          LOG.warn("Got unexpected message.");
         }
+        batch.clear();
       }
     } catch (RuntimeException e) {
       LOG.error("Caught exception in AckProcessor!", e);
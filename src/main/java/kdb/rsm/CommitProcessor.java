@@ -2,18 +2,18 @@ package kdb.rsm;
 
 import com.google.protobuf.TextFormat;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import kdb.rsm.PendingRequests.Tuple;
 import kdb.rsm.proto.ZabMessage;
 import kdb.rsm.proto.ZabMessage.Message;
@@ -27,8 +27,7 @@ import static kdb.rsm.proto.ZabMessage.Proposal.ProposalType;
  */
 class CommitProcessor implements RequestProcessor, Callable<Void> {
 
-  private final BlockingQueue<MessageTuple> commitQueue =
-      new LinkedBlockingQueue<MessageTuple>();
+  private final RequestQueue commitQueue;
 
   private static final Logger LOG =
       LoggerFactory.getLogger(CommitProcessor.class);
@@ -37,8 +36,8 @@ class CommitProcessor implements RequestProcessor, Callable<Void> {
 
   private Zxid lastDeliveredZxid = Zxid.ZXID_NOT_EXIST;
 
-  private final List<ZabMessage.Proposal> pendingTxns =
-      new LinkedList<ZabMessage.Proposal>();
+  private final Queue<ZabMessage.Proposal> pendingTxns =
+      new ArrayDeque<ZabMessage.Proposal>();
 
   private final String serverId;
 
@@ -70,6 +69,8 @@ class CommitProcessor implements RequestProcessor, Callable<Void> {
    * @param clusterConfig the initial cluster configurations.
    * @param leader the current established leader.
    * @param pendings the pending requests.
+   * @param busySpin whether the processor spins instead of parking while it
+   * waits for requests.
    */
   public CommitProcessor(StateMachine stateMachine,
                          Zxid lastDeliveredZxid,
@@ -78,7 +79,9 @@ class CommitProcessor implements RequestProcessor, Callable<Void> {
                          Set<String> quorumSet,
                          ClusterConfiguration clusterConfig,
                          String leader,
-                         PendingRequests pendings) {
+                         PendingRequests pendings,
+                         boolean busySpin) {
+    this.commitQueue = new RequestQueue(busySpin);
     this.stateMachine = stateMachine;
     this.lastDeliveredZxid = lastDeliveredZxid;
     this.serverId = serverId;
@@ -106,100 +109,107 @@ class CommitProcessor implements RequestProcessor, Callable<Void> {
   public Void call() throws Exception {
     LOG.debug("CommitProcessor gets started.");
     try {
-      while (true) {
-        MessageTuple request = this.commitQueue.take();
-        if (request == MessageTuple.REQUEST_OF_DEATH) {
-          break;
-        }
-        Message msg = request.getMessage();
-        String source = request.getServerId();
-        if (msg.getType() == MessageType.PROPOSAL) {
-          // Puts the proposal in queue.
-          LOG.debug("Got proposal.");
-          this.pendingTxns.add(msg.getProposal());
-        } else if (msg.getType() == MessageType.COMMIT) {
-          // Number of bytes delivered to application for this COMMIT.
-          ZabMessage.Commit commit = request.getMessage().getCommit();
-          Zxid zxid = MessageBuilder.fromProtoZxid(commit.getZxid());
-          LOG.debug("Received a commit request {}.", zxid);
-          if (zxid.compareTo(this.lastDeliveredZxid) <= 0) {
-            // The leader may send duplicate committed zxids. Avoid delivering
-            // duplicate transactions even though transactions are idempotent.
-            LOG.debug("{} is duplicated COMMIT message with last {}", zxid,
-                      this.lastDeliveredZxid);
-            continue;
+      List<MessageTuple> batch = new ArrayList<MessageTuple>();
+      boolean stopped = false;
+      while (!stopped) {
+        // Processes all the pending requests in one pass.
+        this.commitQueue.drainTo(batch);
+        for (MessageTuple request : batch) {
+          if (request == MessageTuple.REQUEST_OF_DEATH) {
+            stopped = true;
+            break;
           }
-          int startIdx = 0;
-          int endIdx = startIdx;
-          for (; endIdx < this.pendingTxns.size(); ++endIdx) {
-            ZabMessage.Proposal prop = this.pendingTxns.get(endIdx);
-            Transaction txn = MessageBuilder.fromProposal(prop);
-            String clientId = prop.getClientId();
-            if(zxid.compareTo(txn.getZxid()) < 0) {
-              break;
+          Message msg = request.getMessage();
+          String source = request.getServerId();
+          if (msg.getType() == MessageType.PROPOSAL) {
+            // Puts the proposal in queue.
+            LOG.debug("Got proposal.");
+            this.pendingTxns.add(msg.getProposal());
+          } else if (msg.getType() == MessageType.COMMIT) {
+            // Number of bytes delivered to application for this COMMIT.
+            ZabMessage.Commit commit = request.getMessage().getCommit();
+            Zxid zxid = MessageBuilder.fromProtoZxid(commit.getZxid());
+            LOG.debug("Received a commit request {}.", zxid);
+            if (zxid.compareTo(this.lastDeliveredZxid) <= 0) {
+              // The leader may send duplicate committed zxids. Avoid delivering
+              // duplicate transactions even though transactions are idempotent.
+              LOG.debug("{} is duplicated COMMIT message with last {}", zxid,
+                        this.lastDeliveredZxid);
+              continue;
             }
-            if (txn.getType() == ProposalType.USER_REQUEST_VALUE) {
-              deliverTxn(txn, clientId);
-            } else if (txn.getType() == ProposalType.COP_VALUE) {
-              deliverConfiguration(txn, clientId);
-              if (!clusterConfig.contains(this.serverId)) {
-                // If the new configuration doesn't contain this server, we'll
-                // enqueue SHUT_DOWN message to main thread to let it quit.
-                LOG.debug("The new configuration doesn't contain {}", serverId);
-                Message shutdown = MessageBuilder.buildShutDown();
-                transport.send(this.serverId, shutdown);
-                return null;
+            while (!this.pendingTxns.isEmpty()) {
+              ZabMessage.Proposal prop = this.pendingTxns.peek();
+              Transaction txn = MessageBuilder.fromProposal(prop);
+              String clientId = prop.getClientId();
+              if(zxid.compareTo(txn.getZxid()) < 0) {
+                break;
               }
-            } else {
-              LOG.warn("Unknown proposal type.");
-              continue;
+              // Removes the delivered transaction.
+              this.pendingTxns.poll();
+              if (txn.getType() == ProposalType.USER_REQUEST_VALUE) {
+                deliverTxn(txn, clientId);
+              } else if (txn.getType() == ProposalType.COP_VALUE) {
+                deliverConfiguration(txn, clientId);
+                if (!clusterConfig.contains(this.serverId)) {
+                  // If the new configuration doesn't contain this server, we'll
+                  // enqueue SHUT_DOWN message to main thread to let it quit.
+                  LOG.debug("The new configuration doesn't contain {}",
+                            serverId);
+                  Message shutdown = MessageBuilder.buildShutDown();
+                  transport.send(this.serverId, shutdown);
+                  return null;
+                }
+              } else {
+                LOG.warn("Unknown proposal type.");
+                continue;
+              }
+              this.lastDeliveredZxid = txn.getZxid();
+              // See if any pending flush requests are waiting for this COMMIT.
+              deliverPendingFlushes(lastDeliveredZxid);
             }
-            this.lastDeliveredZxid = txn.getZxid();
-            // See if any pending flush requests are waiting for this COMMIT.
+            if (!zxid.equals(lastDeliveredZxid)) {
+              LOG.error("The last delivered zxid {} doesn't match committed "
+                  + "zxid {}", lastDeliveredZxid, zxid);
+              throw new RuntimeException("Potential bug found");
+            }
+            Message delivered =
+              MessageBuilder.buildDelivered(lastDeliveredZxid);
+            transport.send(this.serverId, delivered);
+          } else if (msg.getType() == MessageType.ACK_EPOCH) {
+            LOG.debug("Got ACK_EPOCH from {}", source);
+            quorumSet.add(source);
+            // Notifies clients of updated current active members.
+            notifyClient();
+          } else if (msg.getType() == MessageType.DISCONNECTED) {
+            LOG.debug("Got DISCONNECTED from {}", source);
+            String peerId = msg.getDisconnected().getServerId();
+            quorumSet.remove(peerId);
+            // Notifies clients of updated current active members.
+            notifyClient();
+          } else if (msg.getType() == MessageType.JOIN) {
+            LOG.debug("Got JOIN from {}", source);
+            quorumSet.add(source);
+          } else if (msg.getType() == MessageType.FLUSH) {
+            LOG.debug("Got FLUSH form {}", source);
+            ZabMessage.Flush flush = msg.getFlush();
+            ByteBuffer body = flush.getBody().asReadOnlyByteBuffer();
+            Zxid zxid = MessageBuilder.fromProtoZxid(flush.getZxid());
+            flushQueue.add(new PendingFlush(zxid, body));
+            // It's possible this flush request can be delivered immediately if
+            // the zxid it's waiting for has already been committed.
             deliverPendingFlushes(lastDeliveredZxid);
-          }
-          if (!zxid.equals(lastDeliveredZxid)) {
-            LOG.error("The last delivered zxid {} doesn't match committed zxid"
-                + " {}", lastDeliveredZxid, zxid);
-            throw new RuntimeException("Potential bug found");
-          }
-          // Removes the delivered transactions.
-          this.pendingTxns.subList(startIdx, endIdx).clear();
-          Message delivered =
-            MessageBuilder.buildDelivered(lastDeliveredZxid);
-          transport.send(this.serverId, delivered);
-        } else if (msg.getType() == MessageType.ACK_EPOCH) {
-          LOG.debug("Got ACK_EPOCH from {}", source);
-          quorumSet.add(source);
-          // Notifies clients of updated current active members.
-          notifyClient();
-        } else if (msg.getType() == MessageType.DISCONNECTED) {
-          LOG.debug("Got DISCONNECTED from {}", source);
-          String peerId = msg.getDisconnected().getServerId();
-          quorumSet.remove(peerId);
-          // Notifies clients of updated current active members.
-          notifyClient();
-        } else if (msg.getType() == MessageType.JOIN) {
-          LOG.debug("Got JOIN from {}", source);
-          quorumSet.add(source);
-        } else if (msg.getType() == MessageType.FLUSH) {
-          LOG.debug("Got FLUSH form {}", source);
-          ZabMessage.Flush flush = msg.getFlush();
-          ByteBuffer body = flush.getBody().asReadOnlyByteBuffer();
-          Zxid zxid = MessageBuilder.fromProtoZxid(flush.getZxid());
-          flushQueue.add(new PendingFlush(zxid, body));
-          // It's possible this flush request can be delivered immediately if
-          // the zxid it's waiting for has already been committed.
-          deliverPendingFlushes(lastDeliveredZxid);
-        } else if (msg.getType() == MessageType.SNAPSHOT_DONE) {
-          // Notify user the snapshot file is stored on disk.
-          Object ctx = pendings.pendingSnapshots.remove(0);
-          stateMachine.snapshotDone(msg.getSnapshotDone().getFilePath(), ctx);
-        } else {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("Unexpected message {}", TextFormat.shortDebugString(msg));
+          } else if (msg.getType() == MessageType.SNAPSHOT_DONE) {
+            // Notify user the snapshot file is stored on disk.
+            Object ctx = pendings.pendingSnapshots.remove(0);
+            stateMachine.snapshotDone(msg.getSnapshotDone().getFilePath(), ctx);
+          } else {
+            if (LOG.isWarnEnabled()) {
+              LOG.warn("Unexpected message {}",
+                       TextFormat.shortDebugString(msg));
+            }
           }
         }
+        batch.clear();
       }
     } catch (RuntimeException e) {
       LOG.error("Caught exception in CommitProcessor!", e);
@@ -236,9 +246,10 @@ class CommitProcessor implements RequestProcessor, Callable<Void> {
         throw new RuntimeException("There's no element in "
             + "pendingSends.");
       }
+      pendings.pendingSendBytes.addAndGet(-tp.bytes);
       ctx = tp.ctx;
     }
-    stateMachine.deliver(txn.getZxid(), txn.getBody(), clientId, ctx);
+    stateMachine.deliver(txn.getZxid(), txn.getPayload(), clientId, ctx);
   }
 
   void deliverConfiguration(Transaction txn, String clientId)
@@ -8,6 +8,10 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Properties;
@@ -124,4 +128,32 @@ final class FileUtils {
   public static void atomicMove(File source, File dest) throws IOException {
     Files.move(source.toPath(), dest.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
   }
+
+  /**
+   * Unmaps a buffer now rather than once it is garbage collected. Some
+   * platforms, Windows among them, refuse to truncate a file while it is
+   * mapped. The buffer must not be touched afterwards.
+   *
+   * @param buffer the mapped buffer.
+   */
+  public static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      try {
+        Method clean = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        clean.invoke(theUnsafe.get(null), buffer);
+        return;
+      } catch (NoSuchMethodException e) {
+        // Before Java 9 the buffer holds its own cleaner.
+      }
+      Method cleaner = buffer.getClass().getMethod("cleaner");
+      cleaner.setAccessible(true);
+      Object c = cleaner.invoke(buffer);
+      c.getClass().getMethod("clean").invoke(c);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.warn("Can't unmap the buffer, it goes when collected.", e);
+    }
+  }
 }
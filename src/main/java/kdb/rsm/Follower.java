@@ -327,13 +327,15 @@ class Follower extends Participant {
   void acceptingInit() throws IOException {
     this.clusterConfig = persistence.getLastSeenConfig();
     this.syncProcessor =
-      new SyncProposalProcessor(persistence, transport, maxBatchSize);
+      new SyncProposalProcessor(persistence, transport, maxBatchSize,
+                                config.getBusySpin());
     this.commitProcessor
       = new CommitProcessor(stateMachine, lastDeliveredZxid, serverId,
                             transport, null, clusterConfig, electedLeader,
-                            pendings);
+                            pendings, config.getBusySpin());
     this.snapProcessor =
-      new SnapshotProcessor(stateMachine, persistence, serverId, transport);
+      new SnapshotProcessor(stateMachine, persistence, serverId, transport,
+                            config.getLogRetentionTxns());
     // Notifies the client current configuration.
     stateMachine.following(electedLeader,
                            new HashSet<String>(clusterConfig.getPeers()));
@@ -8,6 +8,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -68,6 +69,11 @@ class Leader extends Participant {
   private Zxid lastAckedZxid;
   private Zxid lastCommittedZxid;
 
+  /**
+   * The number of bytes of proposals in flight to all the followers.
+   */
+  private final AtomicLong broadcastBytes = new AtomicLong();
+
   private static final Logger LOG = LoggerFactory.getLogger(Leader.class);
 
   public Leader(ParticipantState participantState,
@@ -307,8 +313,7 @@ class Leader extends Participant {
             + source + ", probably a bug?");
       }
       LOG.debug("Got PROPOSED_EPOCH from {}", source);
-      PeerHandler ph = new PeerHandler(source, transport,
-                                       config.getTimeoutMs()/3);
+      PeerHandler ph = newPeerHandler(source);
       ph.setLastProposedEpoch(peerProposedEpoch);
       ph.setSyncTimeoutMs(syncTimeoutMs);
       this.quorumMap.put(source, ph);
@@ -519,16 +524,21 @@ class Leader extends Participant {
     lh.startBroadcastingTask();
     quorumMap.put(this.serverId, lh);
     this.preProcessor =
-      new PreProcessor(stateMachine, quorumMap, clusterConfig);
-    this.ackProcessor = new AckProcessor(quorumMap, clusterConfig);
+      new PreProcessor(stateMachine, quorumMap, clusterConfig,
+                       config.logCodec(), config.getBusySpin());
+    this.ackProcessor =
+        new AckProcessor(quorumMap, clusterConfig, config.getBusySpin());
     this.syncProcessor =
-        new SyncProposalProcessor(persistence, transport, maxBatchSize);
+        new SyncProposalProcessor(persistence, transport, maxBatchSize,
+                                  config.getBusySpin());
     this.commitProcessor =
         new CommitProcessor(stateMachine, lastDeliveredZxid, serverId,
                             transport, quorumMap.keySet(),
-                            clusterConfig, electedLeader, pendings);
+                            clusterConfig, electedLeader, pendings,
+                            config.getBusySpin());
     this.snapProcessor =
-      new SnapshotProcessor(stateMachine, persistence, serverId, transport);
+      new SnapshotProcessor(stateMachine, persistence, serverId, transport,
+                            config.getLogRetentionTxns());
     // First time notifies the client active members and cluster configuration.
     stateMachine.leading(new HashSet<String>(quorumMap.keySet()),
                          new HashSet<String>(clusterConfig.getPeers()));
@@ -712,8 +722,7 @@ class Leader extends Participant {
     Zxid lastZxid =
       MessageBuilder.fromProtoZxid(tuple.getMessage().getJoin().getLastZxid());
     String source = tuple.getServerId();
-    PeerHandler ph =
-      new PeerHandler(source, transport, config.getTimeoutMs()/3);
+    PeerHandler ph = newPeerHandler(source);
     // For joiner, its history must be empty.
     ph.setLastZxid(lastZxid);
     // We'll synchronize the joiner up to last proposed zxid of leader.
@@ -855,8 +864,7 @@ class Leader extends Participant {
     // Last zxid of the peer/follower.
     Zxid lastPeerZxid = MessageBuilder
                         .fromProtoZxid(ackEpoch.getLastZxid());
-    PeerHandler ph =
-      new PeerHandler(source, transport, config.getTimeoutMs()/3);
+    PeerHandler ph = newPeerHandler(source);
     ph.setLastZxid(lastPeerZxid);
     ph.setLastSyncedZxid(lastZxidOfSync);
     // Add to the quorum set of main thread.
@@ -941,6 +949,20 @@ class Leader extends Participant {
     this.quorumMap.put(source, ph);
   }
 
+  // Creates the handler of a follower, which bounds the proposals in flight
+  // to it.
+  private PeerHandler newPeerHandler(String peerId) {
+    PeerHandler ph =
+      new PeerHandler(peerId, transport, config.getTimeoutMs()/3);
+    ph.setFlowControl(config.getPeerWindowBytes(), this.broadcastBytes);
+    return ph;
+  }
+
+  @Override
+  protected long getBroadcastBytes() {
+    return this.broadcastBytes.get();
+  }
+
   void checkFollowerLiveness() {
     long currentTime = System.nanoTime();
     long timeoutNs;
@@ -958,11 +980,14 @@ class Leader extends Participant {
       } else {
         timeoutNs = getSyncTimeoutMs() * (long)1000000;
       }
-      if (currentTime - ph.getLastHeartbeatTime() >= timeoutNs) {
-        // Removes the peer who is likely to be dead.
+      boolean dead = currentTime - ph.getLastHeartbeatTime() >= timeoutNs;
+      if (dead || ph.isLagging()) {
+        // Removes the peer who is likely to be dead, or who falls too far
+        // behind to be kept up by broadcasting, it resynchronizes from the log
+        // when it rejoins.
         String peerId = ph.getServerId();
-        LOG.debug("{} is likely to be dead, enqueue a DISCONNECTED message.",
-                  peerId);
+        LOG.debug("{} is likely to be dead or lagging, enqueue a DISCONNECTED "
+            + "message.", peerId);
         // Enqueue a DISCONNECTED message.
         Message disconnected = MessageBuilder.buildDisconnected(peerId);
         this.messageQueue.add(new MessageTuple(this.serverId,
@@ -970,7 +995,7 @@ class Leader extends Participant {
         // Marks it as disconnected. Avoids duplicate check before receiving
         // DISCONNECTED message.
         ph.markDisconnected();
-        if (ph.isSynchronizing()) {
+        if (dead && ph.isSynchronizing()) {
           LOG.debug("Can't get heartbeat reply from {} in synchronizing phase.",
                     peerId);
           incSyncTimeout();
@@ -88,6 +88,15 @@ interface Log extends AutoCloseable {
    */
   void sync() throws IOException;
 
+  /**
+   * Gets the zxid of the first transaction in the log.
+   *
+   * @return the zxid of the first transaction, or Zxid.ZXID_NOT_EXIST if the
+   * log is empty.
+   * @throws IOException in case of IO failures
+   */
+  Zxid getFirstZxid() throws IOException;
+
   /**
    * Trim the log up to the transaction of zxid inclusively.
    *
@@ -96,6 +105,17 @@ interface Log extends AutoCloseable {
    */
   void trim(Zxid zxid) throws IOException;
 
+  /**
+   * Gets the zxid to trim to so that at least the given number of
+   * transactions below zxid stay in the log, counted across epochs.
+   *
+   * @param zxid the zxid the retained transactions are below.
+   * @param txns the number of transactions to retain.
+   * @return the zxid to trim to, or Zxid.ZXID_NOT_EXIST if nothing can go.
+   * @throws IOException in case of IO failures
+   */
+  Zxid getTrimZxid(Zxid zxid, long txns) throws IOException;
+
   /**
    * Closes the log file and release the resource.
    *
@@ -0,0 +1,139 @@
+package kdb.rsm;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codecs a transaction payload can be compressed with. The codec of a
+ * payload travels with it, in proposals and in the high byte of the type
+ * field of log records, so a compressed payload is written to the log and
+ * sent to peers as is and only decoded when it's delivered. The codec of a
+ * record is its ordinal, 0 for uncompressed payloads, which is what logs
+ * written before codecs hold. New codecs go at the end.
+ */
+enum LogCodec {
+  /**
+   * Payloads are kept as they are.
+   */
+  NONE {
+    @Override
+    ByteBuffer encode(ByteBuffer payload) {
+      return payload;
+    }
+
+    @Override
+    ByteBuffer decode(ByteBuffer frame) {
+      return frame;
+    }
+  },
+
+  /**
+   * Payloads are deflated at the fastest level.
+   *
+   * <p>
+   * <pre>
+   * frame := length(int) deflated-payload
+   * </pre>
+   */
+  DEFLATE {
+    @Override
+    ByteBuffer encode(ByteBuffer payload) {
+      byte[] in = toArray(payload);
+      byte[] out = new byte[in.length];
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(in);
+        deflater.finish();
+        int length = deflater.deflate(out, 4, out.length - 4);
+        if (!deflater.finished()) {
+          // It doesn't get any smaller.
+          return null;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(out, 0, length + 4);
+        frame.putInt(0, in.length);
+        return frame;
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    ByteBuffer decode(ByteBuffer frame) {
+      byte[] in = toArray(frame);
+      byte[] out = new byte[ByteBuffer.wrap(in).getInt()];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(in, 4, in.length - 4);
+        if (inflater.inflate(out) != out.length || !inflater.finished()) {
+          throw new RuntimeException("The deflated payload is truncated.");
+        }
+        return ByteBuffer.wrap(out);
+      } catch (DataFormatException e) {
+        throw new RuntimeException("The deflated payload is corrupted.", e);
+      } finally {
+        inflater.end();
+      }
+    }
+  };
+
+  /**
+   * Payloads smaller than this aren't worth compressing.
+   */
+  static final int MIN_LENGTH = 256;
+
+  /**
+   * Encodes a payload.
+   *
+   * @param payload the payload, it's left as it was.
+   * @return the frame, or null if the payload doesn't compress.
+   */
+  abstract ByteBuffer encode(ByteBuffer payload);
+
+  /**
+   * Decodes a frame made by {@link #encode}.
+   *
+   * @param frame the frame, it's left as it was.
+   * @return the payload.
+   */
+  abstract ByteBuffer decode(ByteBuffer frame);
+
+  /**
+   * Gets the codec with the given id.
+   *
+   * @param id the id of the codec.
+   * @return the codec.
+   */
+  static LogCodec of(int id) {
+    LogCodec[] codecs = values();
+    if (id < 0 || id >= codecs.length) {
+      throw new RuntimeException("Unknown log codec " + id + ".");
+    }
+    return codecs[id];
+  }
+
+  /**
+   * Compresses the body of a transaction.
+   *
+   * @param txn the transaction, with an uncompressed body.
+   * @return the transaction with the compressed body, or txn itself if the
+   * body is too small or doesn't compress.
+   */
+  Transaction compress(Transaction txn) {
+    if (this == NONE || txn.getBody().remaining() < MIN_LENGTH) {
+      return txn;
+    }
+    ByteBuffer frame = encode(txn.getBody());
+    if (frame == null) {
+      return txn;
+    }
+    return new Transaction(txn.getZxid(), txn.getType(), ordinal(), frame);
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
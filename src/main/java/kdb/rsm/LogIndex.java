@@ -0,0 +1,329 @@
+package kdb.rsm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index from zxid to file offset for one log segment. An entry is
+ * taken about every {@link #INTERVAL} bytes of transactions. The entries are
+ * kept in a side file, the segment name followed by ".idx", which is appended
+ * on {@link #flush}, after the segment is synced, so the side file only points
+ * at synced transactions. A missing or stale side file is rebuilt from the
+ * segment.
+ *
+ * <p>
+ * <pre>
+ * index-file := [ entries ]
+ *
+ * entry      := epoch(long) xid(long) offset(int)
+ * </pre>
+ */
+class LogIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(LogIndex.class);
+
+  /**
+   * The number of bytes of transactions between two entries.
+   */
+  static final int INTERVAL = 64 * 1024;
+
+  private static final int ENTRY_LENGTH = 20;
+
+  // The zxid and type fields of a transaction with an empty body.
+  private static final int MIN_TXN_LENGTH = 20;
+
+  private final File indexFile;
+  private long[] epochs = new long[64];
+  private long[] xids = new long[64];
+  private int[] offsets = new int[64];
+  private int size = 0;
+
+  /**
+   * The number of entries already in the side file.
+   */
+  private int written = 0;
+
+  /**
+   * The end of the valid transactions and the last zxid, found when the
+   * index is loaded.
+   */
+  private int end = 0;
+  private Zxid lastZxid = Zxid.ZXID_NOT_EXIST;
+  private boolean sealed = false;
+
+  private LogIndex(File logFile) {
+    this.indexFile = indexFile(logFile);
+  }
+
+  /**
+   * Loads the index of a segment. Entries past the end of the segment or not
+   * matching its transactions are dropped, and the transactions after the
+   * last entry are scanned to bring the index up to date. A sealed segment
+   * with its index in place isn't read at all.
+   *
+   * @param logFile the log segment.
+   * @return the index of the segment.
+   * @throws IOException in case of IO failure
+   */
+  static LogIndex load(File logFile) throws IOException {
+    LogIndex index = new LogIndex(logFile);
+    SegmentFooter footer = SegmentFooter.read(logFile);
+    long length = footer != null ? footer.end : logFile.length();
+    boolean clean = false;
+    if (index.indexFile.exists()) {
+      try (DataInputStream in = new DataInputStream(
+             new BufferedInputStream(new FileInputStream(index.indexFile)))) {
+        while (true) {
+          long epoch = in.readLong();
+          long xid = in.readLong();
+          int offset = in.readInt();
+          if (offset >= length || !index.due(offset)) {
+            break;
+          }
+          index.append(epoch, xid, offset);
+        }
+      } catch (EOFException e) {
+        // A partly written entry ends the index, the whole file was read if
+        // it ends on an entry.
+        clean = index.indexFile.length() == (long)index.size * ENTRY_LENGTH;
+      }
+      if (index.size > 0 && !index.matches(logFile, index.size - 1)) {
+        LOG.warn("The index of {} is stale, rebuilding it.",
+                 logFile.getName());
+        index.size = 0;
+        clean = false;
+      }
+    }
+    int read = index.size;
+    if (footer != null && (read > 0 || footer.end < INTERVAL)) {
+      index.end = footer.end;
+      index.lastZxid = footer.zxid;
+      index.sealed = true;
+    } else {
+      index.scan(logFile);
+    }
+    if (clean && index.size == read) {
+      index.written = index.size;
+    } else {
+      index.rewrite();
+    }
+    return index;
+  }
+
+  // Checks that entry i points at the transaction it names.
+  private boolean matches(File logFile, int i) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+      // Skips the checksum and length fields.
+      file.seek(offsets[i] + 8);
+      return file.readLong() == epochs[i] && file.readLong() == xids[i];
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  // Scans the transactions after the last entry.
+  private void scan(File logFile) throws IOException {
+    int start = this.size == 0 ? 0 : this.offsets[this.size - 1];
+    this.end = start;
+    try (SimpleLog.SimpleLogIterator iter =
+           new SimpleLog.SimpleLogIterator(logFile, start)) {
+      while (iter.hasNext()) {
+        int offset = iter.getPosition();
+        Transaction txn;
+        try {
+          txn = iter.next();
+        } catch (EOFException | RuntimeException e) {
+          if (!isTornTail(logFile, offset)) {
+            throw new IOException("Corrupted transaction at offset " + offset
+                + " of " + logFile.getName() + " after " + this.lastZxid, e);
+          }
+          LOG.warn("Stops at the torn tail of {} after {}.",
+                   logFile.getName(), this.lastZxid);
+          break;
+        }
+        if (due(offset)) {
+          append(txn.getZxid().getEpoch(), txn.getZxid().getXid(), offset);
+        }
+        this.lastZxid = txn.getZxid();
+        this.end = iter.getPosition();
+      }
+    }
+  }
+
+  /**
+   * Checks if the unreadable transaction at offset is a torn tail: one cut
+   * short by the end of the file, or the last one, followed by nothing but
+   * the end of the file or a zeroed length field. A transaction that fails
+   * its checksum with more transactions after it is corruption.
+   */
+  static boolean isTornTail(File logFile, int offset) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+      long length = file.length();
+      if (offset + 8 > length) {
+        return true;
+      }
+      file.seek(offset + 4);
+      int txnLength = file.readInt();
+      if (txnLength < MIN_TXN_LENGTH) {
+        // Lengths are written whole; a partial write leaves a zero.
+        return false;
+      }
+      long next = (long)offset + 8 + txnLength;
+      if (next + 8 > length) {
+        return true;
+      }
+      file.seek(next + 4);
+      return file.readInt() == 0;
+    }
+  }
+
+  private boolean due(int offset) {
+    if (this.size == 0) {
+      return offset >= INTERVAL;
+    }
+    return offset - this.offsets[this.size - 1] >= INTERVAL;
+  }
+
+  private void append(long epoch, long xid, int offset) {
+    if (this.size == this.offsets.length) {
+      this.epochs = Arrays.copyOf(this.epochs, this.size * 2);
+      this.xids = Arrays.copyOf(this.xids, this.size * 2);
+      this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+    }
+    this.epochs[this.size] = epoch;
+    this.xids[this.size] = xid;
+    this.offsets[this.size] = offset;
+    this.size++;
+  }
+
+  /**
+   * Gets the end of the valid transactions found by {@link #load}.
+   */
+  int getEnd() {
+    return this.end;
+  }
+
+  /**
+   * Checks if the segment had a valid footer when loaded.
+   */
+  boolean isSealed() {
+    return this.sealed;
+  }
+
+  /**
+   * Gets the last zxid found by {@link #load}.
+   */
+  Zxid getLastZxid() {
+    return this.lastZxid;
+  }
+
+  /**
+   * Records the transaction at offset if it's far enough from the last entry.
+   *
+   * @param zxid the zxid of the transaction.
+   * @param offset the offset of the transaction in the segment.
+   */
+  synchronized void add(Zxid zxid, int offset) {
+    if (due(offset)) {
+      append(zxid.getEpoch(), zxid.getXid(), offset);
+    }
+  }
+
+  /**
+   * Finds where to start reading for a zxid.
+   *
+   * @param zxid the zxid of the transaction.
+   * @return the offset of the last entry whose zxid is not larger than the
+   * given one, or 0 if there's no such entry.
+   */
+  synchronized int floor(Zxid zxid) {
+    int lo = 0;
+    int hi = this.size - 1;
+    int offset = 0;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compare(mid, zxid) <= 0) {
+        offset = this.offsets[mid];
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return offset;
+  }
+
+  private int compare(int i, Zxid zxid) {
+    int c = Long.compare(this.epochs[i], zxid.getEpoch());
+    return c != 0 ? c : Long.compare(this.xids[i], zxid.getXid());
+  }
+
+  /**
+   * Appends the new entries to the side file.
+   *
+   * @throws IOException in case of IO failure
+   */
+  synchronized void flush() throws IOException {
+    if (this.written == this.size) {
+      return;
+    }
+    write(true);
+  }
+
+  /**
+   * Drops the entries at or after the given offset.
+   *
+   * @param offset the new end of the segment.
+   * @throws IOException in case of IO failure
+   */
+  synchronized void truncate(int offset) throws IOException {
+    while (this.size > 0 && this.offsets[this.size - 1] >= offset) {
+      this.size--;
+    }
+    rewrite();
+  }
+
+  /**
+   * Deletes the side file of a log segment.
+   *
+   * @param logFile the log segment.
+   */
+  static void delete(File logFile) {
+    File indexFile = indexFile(logFile);
+    if (indexFile.exists() && !indexFile.delete()) {
+      LOG.warn("The file {} might not be deleted successfully.",
+               indexFile.getName());
+    }
+  }
+
+  static File indexFile(File logFile) {
+    return new File(logFile.getPath() + ".idx");
+  }
+
+  private void rewrite() throws IOException {
+    this.written = 0;
+    write(false);
+  }
+
+  private void write(boolean append) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+           new BufferedOutputStream(
+             new FileOutputStream(this.indexFile, append)))) {
+      for (int i = this.written; i < this.size; ++i) {
+        out.writeLong(this.epochs[i]);
+        out.writeLong(this.xids[i]);
+        out.writeInt(this.offsets[i]);
+      }
+    }
+    this.written = this.size;
+  }
+}
@@ -0,0 +1,298 @@
+package kdb.rsm;
+
+import kdb.rsm.Log.DivergingTuple;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Adler32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A log segment which is preallocated and memory mapped. Transactions are
+ * written straight into the mapping in the format of {@link SimpleLog}, the
+ * checksum is computed over the mapped bytes, and appending allocates
+ * nothing. The unused tail of the segment reads as zeros, and readers stop at
+ * the first zeroed length field. Closing the segment trims the tail and seals
+ * it with a {@link SegmentFooter}, which readers take for the end of the log.
+ * Each segment keeps a sparse {@link LogIndex} for seeking by zxid.
+ */
+class MappedLog implements Log {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedLog.class);
+  private final File logFile;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+  private final Adler32 checksum = new Adler32();
+  private final byte[] lengthBytes = new byte[LENGTH_LENGTH];
+  private final LogIndex index;
+
+  /**
+   * The offset at which the next transaction will be written.
+   */
+  private int position;
+
+  private Zxid lastSeenZxid;
+
+  // The number of bytes for Zxid field of transaction.
+  private static final int ZXID_LENGTH = 16;
+
+  // The number of bytes for type field of transaction.
+  private static final int TYPE_LENGTH = 4;
+
+  // The number of bytes for checksum field of transaction.
+  private static final int CHECKSUM_LENGTH = 4;
+
+  // The number of bytes for length field of transaction.
+  private static final int LENGTH_LENGTH = 4;
+
+  private static final byte[] ZEROS = new byte[4096];
+
+  /**
+   * Opens a log segment, new or existing. An existing segment is cut after
+   * its last valid transaction, which drops its footer, or a torn
+   * transaction or a zeroed tail a crash left behind.
+   *
+   * @param logFile the log file
+   * @param capacity the number of bytes preallocated for the segment
+   * @throws IOException in case of IO failure
+   */
+  public MappedLog(File logFile, long capacity) throws IOException {
+    this.logFile = logFile;
+    this.file = new RandomAccessFile(logFile, "rw");
+    // Loading the index finds the end of the valid transactions.
+    this.index = LogIndex.load(logFile);
+    int end = this.index.getEnd();
+    Zxid last = this.index.getLastZxid();
+    this.channel = this.file.getChannel();
+    // Zeroes whatever follows the last transaction, then preallocates. The
+    // extension is sparse, the point is that syncs no longer change the
+    // size of the file.
+    this.file.setLength(end);
+    this.file.setLength(Math.min(Math.max(end, capacity), Integer.MAX_VALUE));
+    this.buffer = map(this.file.length());
+    this.position = end;
+    this.lastSeenZxid = last;
+    LOG.debug("MappedLog constructed. The lastSeenZxid is {}.", last);
+  }
+
+  private MappedByteBuffer map(long size) throws IOException {
+    return this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  // Grows the segment if the next transaction doesn't fit.
+  private void ensureCapacity(int size) throws IOException {
+    long needed = (long)this.position + size;
+    if (needed <= this.buffer.capacity()) {
+      return;
+    }
+    if (needed > Integer.MAX_VALUE) {
+      throw new IOException("The log segment " + logFile.getName()
+          + " can't grow past 2GB.");
+    }
+    long grown = Math.min(Math.max(needed, 2L * this.buffer.capacity()),
+                          Integer.MAX_VALUE);
+    this.buffer.force();
+    this.file.setLength(grown);
+    this.buffer = map(grown);
+  }
+
+  /**
+   * Syncs and unmaps the segment, then replaces the preallocated tail of the
+   * file with the footer.
+   *
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.buffer == null) {
+      return;
+    }
+    this.buffer.force();
+    this.index.flush();
+    FileUtils.unmap(this.buffer);
+    this.buffer = null;
+    SegmentFooter.write(this.file, this.position, this.lastSeenZxid);
+    this.file.close();
+  }
+
+  /**
+   * Appends a request to transaction log.
+   *
+   * @param txn the transaction which will be added to log.
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public void append(Transaction txn) throws IOException {
+    if (txn.getZxid().compareTo(this.lastSeenZxid) <= 0) {
+      LOG.error("Cannot append {}. lastSeenZxid = {}",
+                txn.getZxid(), this.lastSeenZxid);
+      throw new RuntimeException("The id of the transaction is less "
+          + "than the id of last seen transaction");
+    }
+    ByteBuffer payload = txn.getBody();
+    int payloadPosition = payload.position();
+    // The number of bytes for Zxid + Type + payload.
+    int length = payload.remaining() + ZXID_LENGTH + TYPE_LENGTH;
+    int size = CHECKSUM_LENGTH + LENGTH_LENGTH + length;
+    ensureCapacity(size);
+    int start = this.position + CHECKSUM_LENGTH + LENGTH_LENGTH;
+    this.buffer.position(start);
+    this.buffer.putLong(txn.getZxid().getEpoch())
+               .putLong(txn.getZxid().getXid())
+               .putInt(SimpleLog.typeField(txn))
+               .put(payload);
+    payload.position(payloadPosition);
+    // The checksum covers the length field too. The length is stored last
+    // so readers never see a partly written transaction.
+    lengthBytes[0] = (byte)(length >>> 24);
+    lengthBytes[1] = (byte)(length >>> 16);
+    lengthBytes[2] = (byte)(length >>> 8);
+    lengthBytes[3] = (byte)length;
+    this.checksum.reset();
+    this.checksum.update(lengthBytes, 0, LENGTH_LENGTH);
+    this.buffer.position(start).limit(start + length);
+    this.checksum.update(this.buffer);
+    this.buffer.limit(this.buffer.capacity());
+    this.buffer.putInt(this.position, (int)this.checksum.getValue());
+    this.buffer.putInt(this.position + CHECKSUM_LENGTH, length);
+    this.index.add(txn.getZxid(), this.position);
+    this.position += size;
+    this.lastSeenZxid = txn.getZxid();
+  }
+
+  /**
+   * Truncates this transaction log at the given zxid.
+   * This method deletes all the transactions with zxids
+   * higher than the given zxid.
+   *
+   * @param zxid the transaction id.
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public void truncate(Zxid zxid) throws IOException {
+    Zxid last = Zxid.ZXID_NOT_EXIST;
+    int end = this.index.floor(zxid);
+    try (SimpleLog.SimpleLogIterator iter =
+           new SimpleLog.SimpleLogIterator(this.logFile, end)) {
+      while (iter.hasNext()) {
+        Transaction txn = iter.next();
+        if (txn.getZxid().compareTo(zxid) > 0) {
+          break;
+        }
+        last = txn.getZxid();
+        end = iter.getPosition();
+      }
+    }
+    // Zeroes the truncated transactions so readers stop at the new end, and
+    // syncs the zeros before appends can reuse the space.
+    this.buffer.position(end);
+    while (this.buffer.position() < this.position) {
+      this.buffer.put(ZEROS, 0,
+                      Math.min(ZEROS.length,
+                               this.position - this.buffer.position()));
+    }
+    this.buffer.force();
+    this.position = end;
+    this.lastSeenZxid = last;
+    this.index.truncate(end);
+  }
+
+  /**
+   * Gets the latest appended transaction id from the log.
+   *
+   * @return the transaction id of the latest transaction.
+   * or Zxid.ZXID_NOT_EXIST if the log is empty.
+   */
+  @Override
+  public Zxid getLatestZxid() {
+    return this.lastSeenZxid;
+  }
+
+  /**
+   * Gets the zxid of the first transaction in this log.
+   *
+   * @return the zxid of the first transaction, or Zxid.ZXID_NOT_EXIST if the
+   * log is empty.
+   */
+  @Override
+  public Zxid getFirstZxid() {
+    if (this.position == 0) {
+      return Zxid.ZXID_NOT_EXIST;
+    }
+    int start = CHECKSUM_LENGTH + LENGTH_LENGTH;
+    return new Zxid(this.buffer.getLong(start),
+                    this.buffer.getLong(start + 8));
+  }
+
+  /**
+   * Gets an iterator to read transactions from this log starting
+   * at the given zxid (including zxid).
+   *
+   * @param zxid the id of the transaction.
+   * @return an iterator to read the next transaction in logs.
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public LogIterator getIterator(Zxid zxid) throws IOException {
+    return SimpleLog.getIterator(this.logFile, this.index.floor(zxid), zxid);
+  }
+
+  /**
+   * See {@link Log#firstDivergingPoint}.
+   *
+   * @param zxid the id of the transaction.
+   * @return a tuple holds first diverging zxid and an iterator points to
+   * subsequent transactions.
+   * @throws IOException in case of IO failures
+   */
+  @Override
+  public DivergingTuple firstDivergingPoint(Zxid zxid) throws IOException {
+    return SimpleLog.firstDivergingPoint(this.logFile, zxid);
+  }
+
+  /**
+   * Syncs all the appended transactions to the physical media.
+   *
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public void sync() throws IOException {
+    this.buffer.force();
+    this.index.flush();
+  }
+
+  /**
+   * Trim the log up to the transaction with Zxid zxid inclusively.
+   *
+   * @param zxid the last zxid(inclusive) which will be trimed to.
+   * @throws IOException in case of IO failures
+   */
+  @Override
+  public void trim(Zxid zxid) throws IOException {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  @Override
+  public Zxid getTrimZxid(Zxid zxid, long txns) throws IOException {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  /**
+   * Gets the number of bytes of transactions in this segment.
+   */
+  long length() {
+    return this.position;
+  }
+
+  LogIndex getIndex() {
+    return this.index;
+  }
+
+  String getName() {
+    return this.logFile.getName();
+  }
+}
@@ -66,7 +66,8 @@ final class MessageBuilder {
   public static Transaction fromProposal(Proposal prop) {
     Zxid zxid = fromProtoZxid(prop.getZxid());
     ByteBuffer buffer = prop.getBody().asReadOnlyByteBuffer();
-    return new Transaction(zxid, prop.getType().getNumber(), buffer);
+    return new Transaction(zxid, prop.getType().getNumber(), prop.getCodec(),
+                           buffer);
   }
 
   /**
@@ -79,7 +80,8 @@ final class MessageBuilder {
     ZabMessage.Zxid zxid = toProtoZxid(txn.getZxid());
     ByteString bs = ByteString.copyFrom(txn.getBody());
     return Proposal.newBuilder().setZxid(zxid).setBody(bs)
-                   .setType(ProposalType.values()[txn.getType()]).build();
+                   .setType(ProposalType.values()[txn.getType()])
+                   .setCodec(txn.getCodec()).build();
   }
 
   /**
@@ -196,6 +198,7 @@ final class MessageBuilder {
                             .setZxid(zxid)
                             .setBody(ByteString.copyFrom(txn.getBody()))
                             .setType(ProposalType.values()[txn.getType()])
+                            .setCodec(txn.getCodec())
                             .build();
 
     return Message.newBuilder().setType(MessageType.PROPOSAL)
@@ -217,6 +220,7 @@ final class MessageBuilder {
                             .setBody(ByteString.copyFrom(txn.getBody()))
                             .setClientId(clientId)
                             .setType(ProposalType.values()[txn.getType()])
+                            .setCodec(txn.getCodec())
                             .build();
 
     return Message.newBuilder().setType(MessageType.PROPOSAL)
@@ -495,16 +499,51 @@ final class MessageBuilder {
   /**
    * Creates a FILE_HEADER message.
    *
+   * @param id the id of the file.
    * @param length the lenght of the file.
    * @return a protobuf message.
    */
-  public static Message buildFileHeader(long length) {
+  public static Message buildFileHeader(String id, long length) {
     ZabMessage.FileHeader header = ZabMessage.FileHeader.newBuilder()
+                                             .setId(id)
                                              .setLength(length).build();
     return Message.newBuilder().setType(MessageType.FILE_HEADER)
                                .setFileHeader(header).build();
   }
 
+  /**
+   * Creates a FILE_CHUNK message.
+   *
+   * @param offset the offset of the chunk in the file.
+   * @param length the length of the chunk.
+   * @param checksum the checksum of the chunk.
+   * @return a protobuf message.
+   */
+  public static Message buildFileChunk(long offset, int length,
+                                       int checksum) {
+    ZabMessage.FileChunk chunk = ZabMessage.FileChunk.newBuilder()
+                                           .setOffset(offset)
+                                           .setLength(length)
+                                           .setChecksum(checksum).build();
+    return Message.newBuilder().setType(MessageType.FILE_CHUNK)
+                               .setFileChunk(chunk).build();
+  }
+
+  /**
+   * Creates a FILE_RESUME message.
+   *
+   * @param id the id of the file.
+   * @param offset the offset to resume the file from.
+   * @return a protobuf message.
+   */
+  public static Message buildFileResume(String id, long offset) {
+    ZabMessage.FileResume resume = ZabMessage.FileResume.newBuilder()
+                                             .setId(id)
+                                             .setOffset(offset).build();
+    return Message.newBuilder().setType(MessageType.FILE_RESUME)
+                               .setFileResume(resume).build();
+  }
+
   /**
    * Creates a FILE_RECEIVED message.
    *
@@ -1,22 +1,22 @@
 package kdb.rsm;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.FileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -29,16 +29,18 @@ import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.AttributeKey;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -47,12 +49,17 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManagerFactory;
+import kdb.rsm.proto.ZabMessage;
 import kdb.rsm.proto.ZabMessage.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,6 +73,19 @@ class NettyTransport extends Transport {
                                     .getLogger(NettyTransport.class);
   static final AttributeKey<String> SENDER = AttributeKey.valueOf("remote");
 
+  // A sender stops writing once this many bytes are buffered in its channel
+  // and resumes when they drop below the low mark.
+  static final int LOW_WATER_MARK = 1024 * 1024;
+  static final int HIGH_WATER_MARK = 4 * 1024 * 1024;
+
+  // Files are sent in chunks of this many bytes, each with a checksum, and a
+  // transfer cut short resumes after the last chunk the receiver verified.
+  static final int FILE_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  // How long a sender waits for the receiver to tell where to resume a file
+  // from before it sends the whole file.
+  static final long FILE_RESUME_TIMEOUT_MS = 5000;
+
   private final String hostPort;
   private final EventLoopGroup bossGroup = new NioEventLoopGroup();
   private final EventLoopGroup workerGroup = new NioEventLoopGroup();
@@ -85,6 +105,11 @@ class NettyTransport extends Transport {
   ConcurrentMap<String, ChannelHandlerContext> receivers =
     new ConcurrentHashMap<>();
 
+  // remote id => the file being received from it, it outlives the
+  // connection so the transfer can resume after a reconnect.
+  final ConcurrentMap<String, PartialFile> partialFiles =
+    new ConcurrentHashMap<>();
+
   public NettyTransport(String hostPort, final Receiver receiver,
                         final File dir)
       throws InterruptedException, GeneralSecurityException, IOException {
@@ -219,6 +244,10 @@ class NettyTransport extends Transport {
                                        TimeUnit.SECONDS);
         wf.await();
         bf.await();
+        for (PartialFile partial : partialFiles.values()) {
+          partial.delete();
+        }
+        partialFiles.clear();
         LOG.debug("Shutdown complete: {}", hostPort);
       } catch (InterruptedException ex) {
         LOG.debug("Interrupted while shutting down NioEventLoopGroup", ex);
@@ -271,12 +300,19 @@ class NettyTransport extends Transport {
         in.resetReaderIndex();
         return null;
       }
+      // The frame is copied once out of the pooled buffer, which is reused
+      // as soon as this returns, and parsed with aliasing so the payloads of
+      // the message point into the copy instead of being copied again.
       byte[] buffer = new byte[messageLength];
       in.readBytes(buffer);
       try {
-        Message msg = Message.parseFrom(buffer);
+        CodedInputStream input =
+          UnsafeByteOperations.unsafeWrap(ByteBuffer.wrap(buffer))
+                              .newCodedInput();
+        input.enableAliasing(true);
+        Message msg = Message.parseFrom(input);
         return msg;
-      } catch (InvalidProtocolBufferException e) {
+      } catch (IOException e) {
         LOG.error("Exception when parse protocol buffer.", e);
         Message msg = MessageBuilder.buildInvalidMessage(buffer);
         return msg;
@@ -292,51 +328,182 @@ class NettyTransport extends Transport {
           return;
         } else if (msg.getType() == MessageType.FILE_HEADER) {
           LOG.debug("Got FILE_HEADER.");
-          fileReceiver = new FileReceiver(msg.getFileHeader().getLength());
+          String remoteId = ctx.channel().attr(SENDER).get();
+          fileReceiver = new FileReceiver(remoteId, msg.getFileHeader());
+        } else if (msg.getType() == MessageType.FILE_RESUME) {
+          // It's for the sender of the file, not for Zab.
+          String remoteId = ctx.channel().attr(SENDER).get();
+          Sender sender = senders.get(remoteId);
+          if (sender != null) {
+            sender.fileReplies.add(msg);
+          }
+          return;
         } else {
           out.add(msg);
+          return;
         }
       } else {
         fileReceiver.process(in);
-        if (fileReceiver.isDone()) {
-          String filePath = fileReceiver.file.getPath();
-          Message msg = MessageBuilder.buildFileReceived(filePath);
-          out.add(msg);
-          // Resets it to null to switch back to normal decode mode.
+      }
+      if (fileReceiver.isDone()) {
+        String filePath = fileReceiver.partial.file.getPath();
+        Message msg = MessageBuilder.buildFileReceived(filePath);
+        out.add(msg);
+        // Resets it to null to switch back to normal decode mode.
+        fileReceiver = null;
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      try {
+        super.channelInactive(ctx);
+      } finally {
+        if (fileReceiver != null) {
+          // Keeps what's verified so far for the sender to resume from.
+          fileReceiver.close();
           fileReceiver = null;
         }
       }
     }
 
+    /**
+     * Receives a file as a sequence of chunks, each a FILE_CHUNK header
+     * followed by the raw bytes of the chunk, which are written to the file
+     * straight from the buffer and checked against the checksum of the
+     * header. A corrupted chunk fails the connection.
+     */
     class FileReceiver {
-      final long fileLength;
-      long receivedLength = 0;
-      final File file;
-      final FileOutputStream fout;
-
-      public FileReceiver(long length) throws IOException {
-        this.file = File.createTempFile("transport", "", dir);
-        this.fileLength = length;
-        this.fout = new FileOutputStream(this.file);
+      final String remoteId;
+      final PartialFile partial;
+      final FileChannel channel;
+      final Adler32 checksum = new Adler32();
+      // The chunk being received.
+      long chunkOffset = 0;
+      int chunkLength = 0;
+      int chunkChecksum = 0;
+      int remainingBytes = 0;
+
+      public FileReceiver(String remoteId, ZabMessage.FileHeader header)
+          throws IOException {
+        this.remoteId = remoteId;
+        PartialFile current = partialFiles.get(remoteId);
+        if (current != null && current.matches(header)) {
+          LOG.debug("Resuming the file {} from {}.", header.getId(),
+                    current.verified);
+          this.partial = current;
+        } else {
+          if (current != null) {
+            current.delete();
+          }
+          File file = File.createTempFile("transport", "", dir);
+          this.partial = new PartialFile(header.getId(), file,
+                                         header.getLength());
+          partialFiles.put(remoteId, this.partial);
+        }
+        this.channel = new RandomAccessFile(partial.file, "rw").getChannel();
+        send(remoteId,
+             MessageBuilder.buildFileResume(partial.id, partial.verified));
+        if (isDone()) {
+          finish();
+        }
       }
 
       public void process(ByteBuf in) throws IOException {
-        long readableBytes = in.readableBytes();
-        long remainingBytes = fileLength - receivedLength;
-        long bytesToRead =
-          (remainingBytes < readableBytes)? remainingBytes : readableBytes;
-        byte[] buffer = new byte[(int)bytesToRead];
-        in.readBytes(buffer);
-        fout.write(buffer);
-        receivedLength += bytesToRead;
-        if (receivedLength == fileLength) {
-          fout.getChannel().force(false);
-          fout.close();
+        if (remainingBytes == 0) {
+          Message msg = decodeToMessage(in);
+          if (msg == null) {
+            return;
+          }
+          if (msg.getType() != MessageType.FILE_CHUNK) {
+            throw new IOException("Expected FILE_CHUNK but got "
+                + msg.getType() + ".");
+          }
+          ZabMessage.FileChunk chunk = msg.getFileChunk();
+          // The sender starts over if it didn't hear where to resume from,
+          // but it never skips what isn't verified.
+          if (chunk.getOffset() > partial.verified || chunk.getLength() <= 0
+              || chunk.getOffset() + chunk.getLength() > partial.length) {
+            throw new IOException("Unexpected chunk of " + chunk.getLength()
+                + " bytes at " + chunk.getOffset() + ", verified "
+                + partial.verified + " of " + partial.length + " bytes.");
+          }
+          chunkOffset = chunk.getOffset();
+          chunkLength = chunk.getLength();
+          chunkChecksum = chunk.getChecksum();
+          remainingBytes = chunkLength;
+          checksum.reset();
+          return;
+        }
+        int bytesToRead = Math.min(remainingBytes, in.readableBytes());
+        long position = chunkOffset + chunkLength - remainingBytes;
+        for (ByteBuffer buffer : in.nioBuffers(in.readerIndex(),
+                                               bytesToRead)) {
+          checksum.update(buffer.duplicate());
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+        }
+        in.skipBytes(bytesToRead);
+        remainingBytes -= bytesToRead;
+        if (remainingBytes > 0) {
+          return;
+        }
+        if ((int)checksum.getValue() != chunkChecksum) {
+          throw new IOException("The chunk of " + chunkLength + " bytes at "
+              + chunkOffset + " of the file " + partial.id
+              + " is corrupted.");
+        }
+        partial.verified = chunkOffset + chunkLength;
+        if (isDone()) {
+          finish();
+        }
+      }
+
+      // Syncs and closes the received file, it's no longer resumable.
+      private void finish() throws IOException {
+        channel.force(false);
+        channel.close();
+        partialFiles.remove(remoteId, partial);
+      }
+
+      void close() throws IOException {
+        if (channel.isOpen()) {
+          channel.truncate(partial.verified);
+          channel.close();
         }
       }
 
       boolean isDone() {
-        return receivedLength == fileLength;
+        return partial.verified == partial.length;
+      }
+    }
+  }
+
+  /**
+   * A file being received, up to the last verified chunk.
+   */
+  static class PartialFile {
+    final String id;
+    final File file;
+    final long length;
+    volatile long verified = 0;
+
+    PartialFile(String id, File file, long length) {
+      this.id = id;
+      this.file = file;
+      this.length = length;
+    }
+
+    boolean matches(ZabMessage.FileHeader header) {
+      return id.equals(header.getId()) && length == header.getLength()
+          && file.exists();
+    }
+
+    void delete() {
+      if (file.exists() && !file.delete()) {
+        LOG.warn("The file {} might not be deleted successfully.",
+                 file.getName());
       }
     }
   }
@@ -408,10 +575,9 @@ class NettyTransport extends Transport {
       receiver.onReceived(destination, message);
       return;
     }
-    ByteBuffer bytes = ByteBuffer.wrap(message.toByteArray());
     Sender currentSender = senders.get(destination);
     if (currentSender != null) {
-      currentSender.requests.add(bytes);
+      currentSender.enqueue(message);
     } else {
       // no connection exists.
       LOG.debug("No connection from {} to {}. Creating a new one",
@@ -419,14 +585,28 @@ class NettyTransport extends Transport {
       Sender newSender = new Sender(hostPort, destination);
       currentSender = senders.putIfAbsent(destination, newSender);
       if (currentSender == null) {
-        newSender.requests.add(bytes);
+        newSender.enqueue(message);
         newSender.startHandshake();
       } else {
-        currentSender.requests.add(bytes);
+        currentSender.enqueue(message);
       }
     }
   }
 
+  @Override
+  public long getPendingBytes(String destination) {
+    Sender sender = senders.get(destination);
+    return sender == null ? 0 : sender.pendingBytes.get();
+  }
+
+  @Override
+  public boolean awaitPendingBytes(String destination, long bytes,
+                                   long timeoutMs)
+      throws InterruptedException {
+    Sender sender = senders.get(destination);
+    return sender == null || sender.awaitPendingBytes(bytes, timeoutMs);
+  }
+
   @Override
   public void send(final String destination, File file) {
     if (destination.equals(hostPort)) {
@@ -482,6 +662,14 @@ class NettyTransport extends Transport {
     private Channel channel;
     Future<Void> future;
     BlockingDeque<Object> requests = new LinkedBlockingDeque<>();
+    // The replies of the receiver to the headers of the files sent to it.
+    final BlockingQueue<Message> fileReplies = new LinkedBlockingQueue<>();
+    // The bytes of the messages queued or being written to the socket.
+    final AtomicLong pendingBytes = new AtomicLong();
+    // Signalled as written messages drain pendingBytes while a thread
+    // waits for it to go down.
+    private final Object drained = new Object();
+    private final AtomicInteger drainWaiters = new AtomicInteger();
 
     public Sender(final String source, final String destination) {
       this.destination = destination;
@@ -491,6 +679,9 @@ class NettyTransport extends Transport {
       bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 1000);
       bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
       bootstrap.option(ChannelOption.TCP_NODELAY, true);
+      bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                       new WriteBufferWaterMark(LOW_WATER_MARK,
+                                                HIGH_WATER_MARK));
       bootstrap.handler(new ChannelInitializer<SocketChannel>() {
         @Override
         public void initChannel(SocketChannel ch) throws Exception {
@@ -501,6 +692,7 @@ class NettyTransport extends Transport {
           }
           // Inbound handlers.
           ch.pipeline().addLast("clientError", new ClientErrorHandler());
+          ch.pipeline().addLast("writability", new WritabilityHandler());
           // Outbound handlers.
           ch.pipeline().addLast("frameEncoder", new LengthFieldPrepender(4));
         }
@@ -523,8 +715,7 @@ class NettyTransport extends Transport {
             // has been established.
             channel.attr(SENDER).set(destination);
             Message msg = MessageBuilder.buildHandshake(hostPort);
-            ByteBuffer bb = ByteBuffer.wrap(msg.toByteArray());
-            channel.writeAndFlush(Unpooled.wrappedBuffer(bb));
+            channel.writeAndFlush(encode(msg));
             start();
           } else {
             LOG.debug("Failed to connect to {}: {}", destination,
@@ -536,54 +727,218 @@ class NettyTransport extends Transport {
       });
     }
 
+    // Messages are queued as they are and serialized by the sender thread,
+    // the serialized size is computed once and memoized by the message.
+    void enqueue(Message message) {
+      this.pendingBytes.addAndGet(message.getSerializedSize());
+      this.requests.add(message);
+    }
+
+    // Serializes a message straight into a buffer of the channel's pooled
+    // allocator, which the channel releases once it's written.
+    private ByteBuf encode(Message message) {
+      int size = message.getSerializedSize();
+      ByteBuf buf = channel.alloc().directBuffer(size);
+      try {
+        CodedOutputStream output =
+          CodedOutputStream.newInstance(buf.nioBuffer(buf.writerIndex(),
+                                                      size));
+        message.writeTo(output);
+        output.flush();
+        buf.writerIndex(buf.writerIndex() + size);
+        return buf;
+      } catch (IOException ex) {
+        buf.release();
+        // The buffer is sized for the message, it can't run out of space.
+        throw new RuntimeException("Failed to serialize a message.", ex);
+      }
+    }
+
     void sendFile(File file) throws Exception {
       long length = file.length();
       LOG.debug("Got request of sending file {} of length {}.",
                 file, length);
-      Message handshake = MessageBuilder.buildFileHeader(length);
-      byte[] bytes = handshake.toByteArray();
+      // The same file sent again, after a reconnect, has the same id.
+      String id = file.getName() + "-" + length + "-" + file.lastModified();
+      fileReplies.clear();
+      Message handshake = MessageBuilder.buildFileHeader(id, length);
       // Sends HANDSHAKE first before transferring actual file data, the
       // HANDSHAKE will tell the peer's channel to prepare for the file
       // transferring.
-      channel.writeAndFlush(Unpooled.wrappedBuffer(bytes)).sync();
-      ChannelHandler prepender = channel.pipeline().get("frameEncoder");
-      // Removes length prepender, we don't need this handler for file
-      // transferring.
-      channel.pipeline().remove(prepender);
-      // Adds ChunkedWriteHandler for file transferring.
-      ChannelHandler cwh = new ChunkedWriteHandler();
-      channel.pipeline().addLast(cwh);
-      // Begins file transferring.
-      RandomAccessFile raf = new RandomAccessFile(file, "r");
-      if (channel.pipeline().get(SslHandler.class) != null) {
-        // Zero-Copy file transferring is not supported for ssl.
-        channel.writeAndFlush(new ChunkedFile(raf, 0, length, 8912));
-      } else {
-        // Use Zero-Copy file transferring in non-ssl mode.
-        FileRegion region = new DefaultFileRegion(raf.getChannel(), 0, length);
-        channel.writeAndFlush(region);
+      channel.writeAndFlush(encode(handshake)).sync();
+      long offset = awaitResume(id, length);
+      if (offset > 0) {
+        LOG.info("Resuming the transfer of {} to {} from {} of {} bytes.",
+                 file, destination, offset, length);
+      }
+      // The chunk headers go through the length prepender, the chunks pass
+      // it as they are.
+      boolean ssl = channel.pipeline().get(SslHandler.class) != null;
+      ChunkedWriteHandler cwh = null;
+      if (ssl) {
+        // Zero-Copy file transferring is not supported for ssl, the file is
+        // read in chunks to be encrypted.
+        cwh = new ChunkedWriteHandler();
+        channel.pipeline().addBefore("frameEncoder", "chunkedWriter", cwh);
+      }
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        ChannelFuture previous = null;
+        while (offset < length) {
+          int size = (int)Math.min(FILE_CHUNK_SIZE, length - offset);
+          int checksum = checksum(raf.getChannel(), offset, size, buffer);
+          channel.write(encode(MessageBuilder.buildFileChunk(offset, size,
+                                                             checksum)));
+          Object chunk;
+          if (ssl) {
+            chunk = new ChunkedFile(new RandomAccessFile(file, "r"), offset,
+                                    size, 8912);
+          } else {
+            // Use Zero-Copy file transferring in non-ssl mode.
+            chunk = new DefaultFileRegion(file, offset, size);
+          }
+          ChannelFuture future = channel.writeAndFlush(chunk);
+          // Keeps one chunk in flight while the next one is checksummed.
+          if (previous != null) {
+            previous.sync();
+          }
+          previous = future;
+          offset += size;
+        }
+        if (previous != null) {
+          previous.sync();
+        }
+      } finally {
+        if (cwh != null) {
+          channel.pipeline().remove(cwh);
+        }
+      }
+    }
+
+    // Waits for the receiver to tell where to resume the file from, or
+    // sends the whole file if it doesn't answer in time.
+    private long awaitResume(String id, long length)
+        throws InterruptedException {
+      long deadline = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(FILE_RESUME_TIMEOUT_MS);
+      while (true) {
+        Message reply = fileReplies.poll(deadline - System.nanoTime(),
+                                         TimeUnit.NANOSECONDS);
+        if (reply == null) {
+          LOG.warn("{} didn't tell where to resume {} from, sending all of it.",
+                   destination, id);
+          return 0;
+        }
+        ZabMessage.FileResume resume = reply.getFileResume();
+        if (resume.getId().equals(id)) {
+          long offset = resume.getOffset();
+          return offset < 0 || offset > length ? 0 : offset;
+        }
+      }
+    }
+
+    // Computes the checksum of the given range of the file.
+    private int checksum(FileChannel fc, long offset, int size,
+                         ByteBuffer buffer) throws IOException {
+      Adler32 checksum = new Adler32();
+      long position = offset;
+      long end = offset + size;
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), end - position));
+        int read = fc.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("The file is shorter than it was.");
+        }
+        buffer.flip();
+        checksum.update(buffer);
+        position += read;
+      }
+      return (int)checksum.getValue();
+    }
+
+    // Writes a message without flushing it, waiting while the channel is
+    // above its high water mark.
+    private void write(Message message) throws InterruptedException {
+      if (!channel.isWritable()) {
+        // The written messages must go out for the channel to drain.
+        channel.flush();
+        synchronized (this) {
+          while (!channel.isWritable() && channel.isActive()) {
+            wait(100);
+          }
+        }
+      }
+      final int size = message.getSerializedSize();
+      channel.write(encode(message))
+             .addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture f) {
+          pendingBytes.addAndGet(-size);
+          if (drainWaiters.get() > 0) {
+            synchronized (drained) {
+              drained.notifyAll();
+            }
+          }
+        }
+      });
+    }
+
+    boolean awaitPendingBytes(long bytes, long timeoutMs)
+        throws InterruptedException {
+      long deadline = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      synchronized (drained) {
+        drainWaiters.incrementAndGet();
+        try {
+          while (pendingBytes.get() > bytes) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+              return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(drained, left);
+          }
+          return true;
+        } finally {
+          drainWaiters.decrementAndGet();
+        }
       }
-      // Restores pipeline to original state.
-      channel.pipeline().remove(cwh);
-      channel.pipeline().addLast("frameEncoder", prepender);
     }
 
     @Override
     public Void call() throws Exception {
       LOG.debug("Started the sender: {} => {}", hostPort, destination);
+      List<Object> batch = new ArrayList<Object>();
+      boolean shutdown = false;
       try {
-        while (true) {
-          Object req  = requests.take();
-          if (req instanceof ByteBuffer) {
-            ByteBuffer buf = (ByteBuffer)req;
-            channel.writeAndFlush(Unpooled.wrappedBuffer(buf));
-          } else if (req instanceof File) {
-            File file = (File)req;
-            sendFile(file);
-          } else if (req instanceof Shutdown) {
-            LOG.debug("Got shutdown request.");
-            break;
+        while (!shutdown) {
+          batch.add(requests.take());
+          // Writes everything queued and flushes once.
+          requests.drainTo(batch);
+          boolean unflushed = false;
+          for (Object req : batch) {
+            if (req instanceof Message) {
+              write((Message)req);
+              unflushed = true;
+            } else {
+              if (unflushed) {
+                channel.flush();
+                unflushed = false;
+              }
+              if (req instanceof File) {
+                File file = (File)req;
+                sendFile(file);
+              } else if (req instanceof Shutdown) {
+                LOG.debug("Got shutdown request.");
+                shutdown = true;
+                break;
+              }
+            }
+          }
+          if (unflushed) {
+            channel.flush();
           }
+          batch.clear();
         }
       } catch (InterruptedException ex) {
         LOG.debug("Sender to {} got interrupted", destination);
@@ -625,5 +980,19 @@ class NettyTransport extends Transport {
     class Shutdown {
       // We use it to shutdown the sender thread.
     }
+
+    /**
+     * Wakes up the sender once its channel drains below the low water mark.
+     */
+    class WritabilityHandler extends ChannelInboundHandlerAdapter {
+      @Override
+      public void channelWritabilityChanged(ChannelHandlerContext ctx)
+          throws Exception {
+        synchronized (Sender.this) {
+          Sender.this.notifyAll();
+        }
+        ctx.fireChannelWritabilityChanged();
+      }
+    }
   }
 }
@@ -190,7 +190,16 @@ abstract class Participant {
       // TooManyPendingRequests exception.
       throw new TooManyPendingRequests();
     }
-    pendings.pendingSends.add(new Tuple(request, ctx));
+    int bytes = request.remaining();
+    if (!pendings.pendingSends.isEmpty() &&
+        pendings.pendingSendBytes.get() + getBroadcastBytes() + bytes >
+        config.getMaxPendingBytes()) {
+      // The pending requests take up the memory budget.
+      throw new TooManyPendingRequests("Pending requests exceed "
+          + config.getMaxPendingBytes() + " bytes");
+    }
+    pendings.pendingSendBytes.addAndGet(bytes);
+    pendings.pendingSends.add(new Tuple(request, ctx, bytes));
     Message msg = MessageBuilder.buildRequest(request);
     sendMessage(this.electedLeader, msg);
   }
@@ -236,6 +245,14 @@ abstract class Participant {
     sendMessage(this.serverId, msg);
   }
 
+  /**
+   * Gets the number of bytes of proposals in flight to followers, which
+   * count against the memory budget of pending requests.
+   */
+  protected long getBroadcastBytes() {
+    return 0;
+  }
+
   protected abstract void join(String peer) throws Exception;
 
   /**
@@ -455,9 +472,11 @@ abstract class Participant {
     Zxid snapshotZxid = persistence.getSnapshotZxid();
     LOG.debug("The last applied zxid in snapshot is {}", snapshotZxid);
     if (snapshotZxid != Zxid.ZXID_NOT_EXIST &&
-        lastDeliveredZxid == Zxid.ZXID_NOT_EXIST) {
-      // Restores from snapshot only if the lastDeliveredZxid == ZXID_NOT_EXIST,
-      // which means it's the application's first time recovery.
+        snapshotZxid.compareTo(lastDeliveredZxid) > 0) {
+      // Restores from snapshot only if the application is behind it, which
+      // is the case on its first time recovery or after a state transfer
+      // truncated the transactions it had yet to deliver. The application
+      // may skip the restore if it already holds the snapshot's state.
       File snapshot = persistence.getSnapshotFile();
       try (FileInputStream fin = new FileInputStream(snapshot)) {
         LOG.debug("Restoring application's state from snapshot {}", snapshot);
@@ -483,7 +502,7 @@ abstract class Participant {
         Transaction txn = iter.next();
         if (txn.getType() == ProposalType.USER_REQUEST_VALUE) {
           // Only delivers REQUEST proposal, ignores COP.
-          stateMachine.deliver(txn.getZxid(), txn.getBody(), null, null);
+          stateMachine.deliver(txn.getZxid(), txn.getPayload(), null, null);
         }
         lastDeliveredZxid = txn.getZxid();
       }
@@ -627,7 +646,7 @@ abstract class Participant {
     // all the pending synchronization first, thus we maintain this flag to
     // stop the synchronization at the earliest convenience to avoid blocking
     // the main thread.
-    private boolean stop = false;
+    private volatile boolean stop = false;
 
    /**
     * Constructs the SyncPeerTask object.
@@ -682,11 +701,29 @@ abstract class Participant {
             break;
           }
           Message prop = MessageBuilder.buildProposal(txn);
+          awaitWindow();
           sendMessage(peerId, prop);
         }
       }
     }
 
+    // Waits while the peer has a window of messages pending in transport, the
+    // log is read no faster than the peer takes it. The transport wakes the
+    // wait as the messages drain; the timeout only rechecks stop.
+    private void awaitWindow() {
+      try {
+        while (!stop &&
+               !transport.awaitPendingBytes(peerId,
+                                            config.getPeerWindowBytes(),
+                                            100)) {
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        stop = true;
+      }
+    }
+
     void syncFromLog(Log log) throws IOException {
       // Synchronizes peer from log.
       Log.DivergingTuple dp = log.firstDivergingPoint(peerLatestZxid);
@@ -707,6 +744,7 @@ abstract class Participant {
           }
           Transaction txn = iter.next();
           Message prop = MessageBuilder.buildProposal(txn);
+          awaitWindow();
           sendMessage(peerId, prop);
         }
       }
@@ -748,9 +786,14 @@ abstract class Participant {
           stateTransfer(snapFile, snapZxid, log);
         }
       } else {
-        if (snapZxid != null && snapZxid.compareTo(peerLatestZxid) >= 0) {
+        Zxid firstZxid = log.getFirstZxid();
+        boolean inLog = firstZxid != Zxid.ZXID_NOT_EXIST &&
+                        firstZxid.compareTo(peerLatestZxid) <= 0;
+        if (snapZxid != null && snapZxid.compareTo(peerLatestZxid) >= 0 &&
+            !inLog) {
           // If the latest zxid of the syncee is smaller than the zxid of
-          // snapshot of the syncer, we'll do the whole state transfer.
+          // snapshot of the syncer and the log has been trimmed past it,
+          // we'll do the whole state transfer.
           stateTransfer(snapFile, snapZxid, log);
         } else {
           syncFromLog(log);
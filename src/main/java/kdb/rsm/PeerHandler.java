@@ -2,6 +2,9 @@ package kdb.rsm;
 
 import com.google.protobuf.TextFormat;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -10,6 +13,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import kdb.rsm.proto.ZabMessage.Message;
 import kdb.rsm.proto.ZabMessage.Message.MessageType;
 import org.slf4j.Logger;
@@ -131,6 +135,47 @@ class PeerHandler {
    */
   private boolean disconnected = false;
 
+  /**
+   * The proposals in flight to the peer, queued or sent but not acknowledged,
+   * in zxid order. They are only tracked if the peer has a window.
+   */
+  private final ArrayDeque<InFlight> inFlight = new ArrayDeque<InFlight>();
+
+  /**
+   * The number of bytes of the proposals in flight.
+   */
+  private long inFlightBytes = 0;
+
+  /**
+   * The maximum number of bytes in flight, 0 if it's unbounded.
+   */
+  private long windowBytes = 0;
+
+  /**
+   * The number of bytes in flight to all the followers.
+   */
+  private AtomicLong broadcastBytes = null;
+
+  /**
+   * If the broadcasting task runs. The window applies from then on: the
+   * proposals queued while the peer synchronizes, which can take long for a
+   * large snapshot, are bounded by the leader's pending bytes instead.
+   */
+  volatile boolean broadcasting = false;
+
+  /**
+   * If the window applies, once the peer broadcasts and has worked off the
+   * proposals queued while it synchronized.
+   */
+  private boolean windowed = false;
+
+  /**
+   * If the peer fell behind its window. Nothing more is sent to it, not even
+   * a COMMIT or HEARTBEAT, and the leader disconnects it, it catches up from
+   * the log once it rejoins.
+   */
+  private volatile boolean lagging = false;
+
   private static final Logger LOG = LoggerFactory.getLogger(PeerHandler.class);
 
   /**
@@ -196,6 +241,14 @@ class PeerHandler {
 
   void setLastAckedZxid(Zxid zxid) {
     this.lastAckedZxid = zxid;
+    if (this.windowBytes > 0) {
+      synchronized (this.inFlight) {
+        while (!this.inFlight.isEmpty() &&
+               this.inFlight.peek().zxid.compareTo(zxid) <= 0) {
+          release(this.inFlight.poll().bytes);
+        }
+      }
+    }
   }
 
   Zxid getLastAckedZxid() {
@@ -246,22 +299,87 @@ class PeerHandler {
     return this.disconnected;
   }
 
+  /**
+   * Bounds the bytes of proposals in flight to the peer.
+   *
+   * @param windowBytes the maximum number of bytes in flight.
+   * @param broadcastBytes the number of bytes in flight to all the followers,
+   * which this peer adds to.
+   */
+  void setFlowControl(long windowBytes, AtomicLong broadcastBytes) {
+    this.windowBytes = windowBytes;
+    this.broadcastBytes = broadcastBytes;
+  }
+
+  boolean isLagging() {
+    return this.lagging;
+  }
+
   /**
    * Puts message in queue.
    *
    * @param msg the message which will be sent.
    */
   void queueMessage(Message msg) {
+    if (this.lagging) {
+      return;
+    }
+    if (this.windowBytes > 0 && msg.getType() == MessageType.PROPOSAL &&
+        !admit(msg)) {
+      return;
+    }
     this.broadcastingQueue.add(msg);
   }
 
+  // Counts a proposal in flight, or drops it if the peer is behind its
+  // window.
+  private boolean admit(Message msg) {
+    synchronized (this.inFlight) {
+      if (this.lagging) {
+        return false;
+      }
+      int bytes = msg.getSerializedSize();
+      if (!this.windowed && this.broadcasting &&
+          this.inFlightBytes + bytes <= this.windowBytes) {
+        this.windowed = true;
+      }
+      if (this.windowed && !this.inFlight.isEmpty() &&
+          this.inFlightBytes + bytes > this.windowBytes) {
+        LOG.warn("{} falls behind by {} bytes of proposals, it will catch up "
+            + "from the log.", this.serverId, this.inFlightBytes);
+        this.lagging = true;
+        releaseAll();
+        return false;
+      }
+      Zxid zxid = MessageBuilder.fromProtoZxid(msg.getProposal().getZxid());
+      this.inFlight.add(new InFlight(zxid, bytes));
+      this.inFlightBytes += bytes;
+      this.broadcastBytes.addAndGet(bytes);
+      return true;
+    }
+  }
+
+  private void release(int bytes) {
+    this.inFlightBytes -= bytes;
+    this.broadcastBytes.addAndGet(-bytes);
+  }
+
+  private void releaseAll() {
+    synchronized (this.inFlight) {
+      while (!this.inFlight.isEmpty()) {
+        release(this.inFlight.poll().bytes);
+      }
+    }
+  }
+
   void setSyncTask(Participant.SyncPeerTask task, long newLeaderEpoch) {
     this.syncTask = task;
     this.newleaderEpoch = newLeaderEpoch;
   }
 
   synchronized void sendMessage(Message msg) {
-    if (!this.disableSending) {
+    // The messages queued before the peer fell behind are dropped as well.
+    if (!this.disableSending && !this.lagging) {
       this.transport.send(this.serverId, msg);
     }
   }
@@ -282,6 +400,9 @@ class PeerHandler {
       this.ftBroad.get();
     }
     this.transport.clear(this.serverId);
+    if (this.windowBytes > 0) {
+      releaseAll();
+    }
     LOG.debug("PeerHandler of {} has been shut down {}.", this.serverId);
     this.es.shutdown();
   }
@@ -304,9 +425,23 @@ class PeerHandler {
     if (this.ftBroad != null) {
       throw new RuntimeException("Broadcast task can be only started once!");
     }
+    this.broadcasting = true;
     this.ftBroad = this.es.submit(new BroadcastingFollower());
   }
 
+  /**
+   * A proposal in flight and its size.
+   */
+  static final class InFlight {
+    final Zxid zxid;
+    final int bytes;
+
+    InFlight(Zxid zxid, int bytes) {
+      this.zxid = zxid;
+      this.bytes = bytes;
+    }
+  }
+
   class SyncFollower implements Callable<Void> {
     @Override
     public Void call() throws IOException {
@@ -325,42 +460,61 @@ class PeerHandler {
     public Void call() throws InterruptedException {
       LOG.debug("BroadcastingFollower to {} task gets started.", serverId);
       Message heartbeat = MessageBuilder.buildHeartbeat();
+      List<Message> batch = new ArrayList<Message>();
       while (true) {
-        Message msg = broadcastingQueue.poll(heartbeatIntervalMs,
-                                             TimeUnit.MILLISECONDS);
-        if (msg == null) {
+        Message first = broadcastingQueue.poll(heartbeatIntervalMs,
+                                               TimeUnit.MILLISECONDS);
+        if (first == null) {
           // Only send HEARTBEAT message if there hasn't been any other outgoing
           // messages for a certain duration.
           sendMessage(heartbeat);
           continue;
         }
-        if (msg.getType() == MessageType.SHUT_DOWN) {
-          // shutdown method is called.
-          return null;
-        }
-        if (msg.getType() == MessageType.PROPOSAL) {
-          // Got PROPOSAL message, send it to follower.
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Received PROPOSAL {}",
-                      TextFormat.shortDebugString(msg));
+        batch.add(first);
+        broadcastingQueue.drainTo(batch);
+        // A COMMIT covers all the transactions before it, so only the last
+        // COMMIT of the batch is sent.
+        int lastCommit = -1;
+        for (int i = batch.size() - 1; i >= 0; --i) {
+          if (batch.get(i).getType() == MessageType.COMMIT) {
+            lastCommit = i;
+            break;
           }
-          // Sends this PROPOSAL if it's not the duplicate.
-          sendMessage(msg);
-        } else if (msg.getType() == MessageType.COMMIT) {
-          // Got COMMIT message, send it to follower.
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Received COMMIT {}",
-                      TextFormat.shortDebugString(msg));
+        }
+        for (int i = 0; i < batch.size(); ++i) {
+          Message msg = batch.get(i);
+          if (msg.getType() == MessageType.SHUT_DOWN) {
+            // shutdown method is called.
+            return null;
           }
-          // Sends this COMMIT if it's not the duplicate.
-          sendMessage(msg);
-        } else {
-          // Got FLUSH message.
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Received msg {}", TextFormat.shortDebugString(msg));
+          if (msg.getType() == MessageType.PROPOSAL) {
+            // Got PROPOSAL message, send it to follower.
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Received PROPOSAL {}",
+                        TextFormat.shortDebugString(msg));
+            }
+            // Sends this PROPOSAL if it's not the duplicate.
+            sendMessage(msg);
+          } else if (msg.getType() == MessageType.COMMIT) {
+            if (i != lastCommit) {
+              continue;
+            }
+            // Got COMMIT message, send it to follower.
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Received COMMIT {}",
+                        TextFormat.shortDebugString(msg));
+            }
+            // Sends this COMMIT if it's not the duplicate.
+            sendMessage(msg);
+          } else {
+            // Got FLUSH message.
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Received msg {}", TextFormat.shortDebugString(msg));
+            }
+            sendMessage(msg);
           }
-          sendMessage(msg);
         }
+        batch.clear();
       }
     }
   }
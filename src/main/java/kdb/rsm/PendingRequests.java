@@ -3,6 +3,7 @@ package kdb.rsm;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Stores different kinds of pending requests.
@@ -18,6 +19,11 @@ public class PendingRequests {
    */
   public final List<Tuple> pendingSends= Collections.synchronizedList(new LinkedList<>());
 
+  /**
+   * The number of bytes of the pending send requests.
+   */
+  final AtomicLong pendingSendBytes = new AtomicLong();
+
   /**
    * The pending flush requests.
    * The first element of the tuple is flush request, the second element is ctx.
@@ -41,10 +47,16 @@ public class PendingRequests {
   public static class Tuple {
     public final Object param;
     public final Object ctx;
+    final int bytes;
 
     Tuple(Object param, Object ctx) {
+      this(param, ctx, 0);
+    }
+
+    Tuple(Object param, Object ctx, int bytes) {
       this.param = param;
       this.ctx = ctx;
+      this.bytes = bytes;
     }
   }
 }
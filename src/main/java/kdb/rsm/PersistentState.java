@@ -275,6 +275,20 @@ class PersistentState {
     return snapshot;
   }
 
+  /**
+   * Deletes the snapshot files older than the latest one.
+   */
+  void cleanupSnapshots() {
+    List<File> files = getFilesWithPrefix(this.dataDir, "snapshot");
+    for (int i = 0; i < files.size() - 1; ++i) {
+      File file = files.get(i);
+      if (!file.delete()) {
+        LOG.warn("The file {} might not be deleted successfully.",
+                 file.getName());
+      }
+    }
+  }
+
   /**
    * Gets the last snapshot file.
    *
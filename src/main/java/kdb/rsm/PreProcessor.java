@@ -1,13 +1,13 @@
 package kdb.rsm;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.HashMap;
 import java.util.Map;
 import kdb.rsm.proto.ZabMessage;
@@ -22,8 +22,7 @@ import org.slf4j.LoggerFactory;
  */
 class PreProcessor implements RequestProcessor, Callable<Void> {
 
-  private final BlockingQueue<MessageTuple> requestQueue =
-      new LinkedBlockingQueue<MessageTuple>();
+  private final RequestQueue requestQueue;
 
   private static final Logger LOG =
       LoggerFactory.getLogger(PreProcessor.class);
@@ -38,10 +37,16 @@ class PreProcessor implements RequestProcessor, Callable<Void> {
 
   private ClusterConfiguration clusterConfig;
 
+  private final LogCodec codec;
+
   public PreProcessor(StateMachine stateMachine,
                       Map<String, PeerHandler> quorumMap,
-                      ClusterConfiguration config) {
+                      ClusterConfiguration config,
+                      LogCodec codec,
+                      boolean busySpin) {
+    this.requestQueue = new RequestQueue(busySpin);
     this.stateMachine = stateMachine;
+    this.codec = codec;
     this.quorumMapOriginal = quorumMap;
     this.quorumMap = new HashMap<String, PeerHandler>(quorumMap);
     this.clusterConfig = config.clone();
@@ -71,65 +76,74 @@ class PreProcessor implements RequestProcessor, Callable<Void> {
   public Void call() throws Exception {
     LOG.debug("PreProcessor gets started.");
     try {
-      while (true) {
-        MessageTuple request = this.requestQueue.take();
-        if (request == MessageTuple.REQUEST_OF_DEATH) {
-          break;
-        }
-        Message msg = request.getMessage();
-        String source = request.getServerId();
-        Zxid zxid = request.getZxid();
-        if (msg.getType() == MessageType.REQUEST) {
-          ZabMessage.Request req = request.getMessage().getRequest();
-          String clientId = request.getServerId();
-          ByteBuffer bufReq = req.getRequest().asReadOnlyByteBuffer();
-          // Invoke the callback to convert the request into transaction.
-          ByteBuffer update = this.stateMachine.preprocess(zxid,
-                                                           bufReq);
-          Transaction txn = new Transaction(zxid, update);
-          Message prop = MessageBuilder.buildProposal(txn, clientId);
-          for (PeerHandler ph : quorumMap.values()) {
-            ph.queueMessage(prop);
-          }
-        } else if (msg.getType() == MessageType.JOIN) {
-          LOG.debug("Got JOIN from {}.", source);
-          if (!clusterConfig.contains(source)) {
-            clusterConfig.addPeer(source);
-          }
-          clusterConfig.setVersion(zxid);
-          Message prop =
-            MessageBuilder.buildProposal(clusterConfig.toTransaction());
-          // Broadcasts COP.
-          for (PeerHandler ph : quorumMap.values()) {
-            ph.queueMessage(prop);
+      List<MessageTuple> batch = new ArrayList<MessageTuple>();
+      boolean stopped = false;
+      while (!stopped) {
+        // Processes all the pending requests in one pass.
+        this.requestQueue.drainTo(batch);
+        for (MessageTuple request : batch) {
+          if (request == MessageTuple.REQUEST_OF_DEATH) {
+            stopped = true;
+            break;
           }
-          // Adds it to quorum set.
-          addToQuorumSet(source);
-        } else if (msg.getType() == MessageType.ACK_EPOCH) {
-          LOG.debug("Got ACK_EPOCH from {}.", source);
-          addToQuorumSet(source);
-        } else if (msg.getType() == MessageType.REMOVE) {
-          String peerId = msg.getRemove().getServerId();
-          String clientId = request.getServerId();
-          LOG.debug("Got REMOVE for {}.", peerId);
-          clusterConfig.removePeer(peerId);
-          clusterConfig.setVersion(zxid);
-          Message prop =
-            MessageBuilder.buildProposal(clusterConfig.toTransaction(),
-                                         clientId);
-          // Broadcasts COP.
-          for (PeerHandler ph : quorumMap.values()) {
-            ph.queueMessage(prop);
+          Message msg = request.getMessage();
+          String source = request.getServerId();
+          Zxid zxid = request.getZxid();
+          if (msg.getType() == MessageType.REQUEST) {
+            ZabMessage.Request req = request.getMessage().getRequest();
+            String clientId = request.getServerId();
+            ByteBuffer bufReq = req.getRequest().asReadOnlyByteBuffer();
+            // Invoke the callback to convert the request into transaction.
+            ByteBuffer update = this.stateMachine.preprocess(zxid,
+                                                             bufReq);
+            // The transaction is logged and sent to peers compressed.
+            Transaction txn =
+              this.codec.compress(new Transaction(zxid, update));
+            Message prop = MessageBuilder.buildProposal(txn, clientId);
+            for (PeerHandler ph : quorumMap.values()) {
+              ph.queueMessage(prop);
+            }
+          } else if (msg.getType() == MessageType.JOIN) {
+            LOG.debug("Got JOIN from {}.", source);
+            if (!clusterConfig.contains(source)) {
+              clusterConfig.addPeer(source);
+            }
+            clusterConfig.setVersion(zxid);
+            Message prop =
+              MessageBuilder.buildProposal(clusterConfig.toTransaction());
+            // Broadcasts COP.
+            for (PeerHandler ph : quorumMap.values()) {
+              ph.queueMessage(prop);
+            }
+            // Adds it to quorum set.
+            addToQuorumSet(source);
+          } else if (msg.getType() == MessageType.ACK_EPOCH) {
+            LOG.debug("Got ACK_EPOCH from {}.", source);
+            addToQuorumSet(source);
+          } else if (msg.getType() == MessageType.REMOVE) {
+            String peerId = msg.getRemove().getServerId();
+            String clientId = request.getServerId();
+            LOG.debug("Got REMOVE for {}.", peerId);
+            clusterConfig.removePeer(peerId);
+            clusterConfig.setVersion(zxid);
+            Message prop =
+              MessageBuilder.buildProposal(clusterConfig.toTransaction(),
+                                           clientId);
+            // Broadcasts COP.
+            for (PeerHandler ph : quorumMap.values()) {
+              ph.queueMessage(prop);
+            }
+            // Removes it from quorum set.
+            removeFromQuorumSet(peerId);
+          } else if (msg.getType() == MessageType.DISCONNECTED) {
+            String peerId = msg.getDisconnected().getServerId();
+            LOG.debug("Got DISCONNECTED from {}.", peerId);
+            removeFromQuorumSet(peerId);
+          } else {
+            LOG.warn("Got unexpected Message.");
           }
-          // Removes it from quorum set.
-          removeFromQuorumSet(peerId);
-        } else if (msg.getType() == MessageType.DISCONNECTED) {
-          String peerId = msg.getDisconnected().getServerId();
-          LOG.debug("Got DISCONNECTED from {}.", peerId);
-          removeFromQuorumSet(peerId);
-        } else {
-          LOG.warn("Got unexpected Message.");
         }
+        batch.clear();
       }
     } catch (RuntimeException e) {
       LOG.error("Caught exception in PreProcessor!", e);
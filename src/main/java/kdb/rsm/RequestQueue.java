@@ -0,0 +1,121 @@
+package kdb.rsm;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of requests for the single thread of a processor. Any
+ * thread can add to it, without locks, into a ring of preallocated slots. The
+ * processor drains everything available at once. An empty slot is null, a
+ * producer claims a slot by advancing the tail and fills it, and the
+ * processor empties it before advancing the head.
+ *
+ * <p>
+ * The processor waits for requests by spinning a while and then parking, or
+ * by spinning only if the queue is busy spinning, which trades a core for the
+ * wakeup latency. Producers wait for room if the queue is full, the number of
+ * pending requests in Zab is bounded well below its capacity.
+ */
+final class RequestQueue {
+  /**
+   * The number of slots.
+   */
+  static final int CAPACITY = 1 << 16;
+
+  // The number of spins before the processor yields, then parks.
+  private static final int SPINS = 100;
+  private static final int YIELDS = 100;
+
+  private final AtomicReferenceArray<MessageTuple> slots =
+      new AtomicReferenceArray<MessageTuple>(CAPACITY);
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+  private final boolean busySpin;
+
+  /**
+   * The processor thread while it's parked, or null.
+   */
+  private volatile Thread waiter;
+
+  RequestQueue(boolean busySpin) {
+    this.busySpin = busySpin;
+  }
+
+  /**
+   * Adds a request, waiting for room if the queue is full.
+   *
+   * @param request the request.
+   */
+  void add(MessageTuple request) {
+    long t;
+    int waits = 0;
+    while (true) {
+      t = this.tail.get();
+      if (t - this.head.get() >= CAPACITY) {
+        // Full, waits for the processor to catch up.
+        if (++waits < YIELDS) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(10000);
+        }
+      } else if (this.tail.compareAndSet(t, t + 1)) {
+        break;
+      }
+    }
+    this.slots.set((int)t & (CAPACITY - 1), request);
+    Thread thread = this.waiter;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Moves all the available requests to the batch, in order, waiting for
+   * one if there's none. Only the processor thread calls it.
+   *
+   * @param batch the list to add the requests to.
+   */
+  void drainTo(List<MessageTuple> batch) {
+    int waits = 0;
+    while (drain(batch) == 0) {
+      if (this.busySpin || waits < SPINS) {
+        ++waits;
+      } else if (waits < SPINS + YIELDS) {
+        ++waits;
+        Thread.yield();
+      } else {
+        this.waiter = Thread.currentThread();
+        // Checks again after announcing itself, a producer which filled a
+        // slot before that didn't see the waiter.
+        if (this.slots.get((int)this.head.get() & (CAPACITY - 1)) == null) {
+          LockSupport.park(this);
+        }
+        this.waiter = null;
+      }
+    }
+  }
+
+  // Moves the requests filled so far, up to the first slot still being
+  // filled.
+  private int drain(List<MessageTuple> batch) {
+    long h = this.head.get();
+    int count = 0;
+    while (true) {
+      int index = (int)h & (CAPACITY - 1);
+      MessageTuple request = this.slots.get(index);
+      if (request == null) {
+        break;
+      }
+      this.slots.lazySet(index, null);
+      batch.add(request);
+      ++h;
+      ++count;
+    }
+    if (count > 0) {
+      this.head.lazySet(h);
+    }
+    return count;
+  }
+}
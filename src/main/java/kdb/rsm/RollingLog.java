@@ -1,19 +1,29 @@
 package kdb.rsm;
 
 import kdb.rsm.Log.DivergingTuple;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Collections;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Rolling log implementation. It's a wrapper of SimpleLog. It maintains
+ * Rolling log implementation. It's a wrapper of MappedLog segments, which are
+ * read back as SimpleLog files. It maintains
  * a list of log files, once the size of the log file reaches certain threshold,
- * we'll roll the log.
+ * we'll roll the log. Files which only hold transactions covered by a
+ * snapshot are removed by {@link #trim}, which may run on another thread.
  */
 class RollingLog implements Log {
   private static final Logger LOG = LoggerFactory.getLogger(RollingLog.class);
@@ -25,14 +35,22 @@ class RollingLog implements Log {
   private final long rollingSize;
 
   /**
-   * The list of log files, they are sorted by zxid order.
+   * The list of log files, they are sorted by zxid order. Iterators walk it
+   * while trim removes the head, so it's copied on write.
    */
-  private final List<File> logFiles = new ArrayList<File>();
+  private final List<File> logFiles = new CopyOnWriteArrayList<File>();
+
+  /**
+   * The sparse indexes of the log files, loaded on first use. The index of
+   * the current log is the one it appends to.
+   */
+  private final ConcurrentHashMap<File, LogIndex> indexes =
+    new ConcurrentHashMap<File, LogIndex>();
 
   /**
    * The current log. Transaction will be appended to this log file.
    */
-  SimpleLog currentLog;
+  MappedLog currentLog;
 
   /**
    * The log directory for all the log files.
@@ -56,6 +74,7 @@ class RollingLog implements Log {
     this.rollingSize =  rollingSize;
     // Initialize from log directory.
     initFromDir();
+    recoverSegments();
     this.currentLog = getLastLog();
     this.lastSeenZxid = getLatestZxid();
   }
@@ -73,25 +92,6 @@ class RollingLog implements Log {
     }
   }
 
-  private void auto_purge() {
-    int count = 3;
-    if(logFiles.size() < count) {
-      return;
-    }
-
-    for (int i = 0; i < count; ++i) {
-      File file = logFiles.get(i);
-      boolean result = file.delete();
-      if (result) {
-        LOG.info("removed RSM log file {} ", file.getName());
-      } else {
-        LOG.info("The file {} might not be deleted successfully.",
-                 file.getName());
-      }
-    }
-    logFiles.subList(0, count).clear();
-  }
-
   /**
    * Appends a request to transaction log.
    *
@@ -99,14 +99,13 @@ class RollingLog implements Log {
    * @throws IOException in case of IO failure
    */
   @Override
-  public void append(Transaction txn) throws IOException {
+  public synchronized void append(Transaction txn) throws IOException {
     if (this.lastSeenZxid.compareTo(txn.getZxid()) >= 0) {
       String exStr = String.format("The zxid %s is not larger than last seen"
           + " zxid %s in the log.", txn.getZxid(), lastSeenZxid);
       throw new RuntimeException(exStr);
     }
     if (currentLog == null || currentLog.length() >= this.rollingSize) {
-      auto_purge();
       Zxid zxid = txn.getZxid();
       // Close the old one if any.
       this.close();
@@ -114,7 +113,7 @@ class RollingLog implements Log {
       LOG.debug("Rolling to the new log {}.", logFile.getName());
       // Adds new created log file to list.
       this.logFiles.add(logFile);
-      this.currentLog = new SimpleLog(logFile);
+      this.currentLog = openLog(logFile);
     }
     this.lastSeenZxid = txn.getZxid();
     this.currentLog.append(txn);
@@ -129,12 +128,15 @@ class RollingLog implements Log {
    * @throws IOException in case of IO failure
    */
   @Override
-  public void truncate(Zxid zxid) throws IOException {
+  public synchronized void truncate(Zxid zxid) throws IOException {
+    // The current segment is reopened once the log is cut.
+    this.close();
     int lastKeepIdx = getFileIdx(zxid);
     for (int i = lastKeepIdx + 1; i < logFiles.size(); ++i) {
       // Deletes all the log files after the file which contains the
       // transaction with zxid.
       File file = logFiles.get(i);
+      removeIndex(file);
       boolean result = file.delete();
       if (!result) {
         LOG.warn("The file {} might not be deleted successfully.",
@@ -143,9 +145,11 @@ class RollingLog implements Log {
     }
     if (lastKeepIdx != -1) {
       File file = this.logFiles.get(lastKeepIdx);
-      try (SimpleLog log = new SimpleLog(file)) {
+      try (MappedLog log = new MappedLog(file, this.rollingSize)) {
         log.truncate(zxid);
       }
+      // Reloaded along with the current log below.
+      this.indexes.remove(file);
     }
     logFiles.subList(lastKeepIdx+ 1, logFiles.size()).clear();
     this.currentLog = getLastLog();
@@ -160,13 +164,40 @@ class RollingLog implements Log {
    * @throws IOException in case of IO failure
    */
   @Override
-  public Zxid getLatestZxid() throws IOException {
+  public synchronized Zxid getLatestZxid() throws IOException {
     if (logFiles.isEmpty()) {
       return Zxid.ZXID_NOT_EXIST;
     }
-    try (SimpleLog log = getLastLog()) {
-      return log.getLatestZxid();
+    if (this.currentLog != null) {
+      return this.currentLog.getLatestZxid();
+    }
+    File last = logFiles.get(logFiles.size() - 1);
+    SegmentFooter footer = SegmentFooter.read(last);
+    if (footer != null) {
+      return footer.zxid;
+    }
+    Zxid zxid = Zxid.ZXID_NOT_EXIST;
+    try (Log.LogIterator iter = new SimpleLog.SimpleLogIterator(last)) {
+      while (iter.hasNext()) {
+        zxid = iter.next().getZxid();
+      }
+    }
+    return zxid;
+  }
+
+  /**
+   * Gets the zxid of the first transaction in the log, which names the
+   * first log file.
+   *
+   * @return the zxid of the first transaction, or Zxid.ZXID_NOT_EXIST if the
+   * log is empty.
+   */
+  @Override
+  public synchronized Zxid getFirstZxid() {
+    if (logFiles.isEmpty()) {
+      return Zxid.ZXID_NOT_EXIST;
     }
+    return getZxidFromFileName(logFiles.get(0));
   }
 
   /**
@@ -191,15 +222,17 @@ class RollingLog implements Log {
    * @throws IOException in case of IO failures
    */
   @Override
-  public DivergingTuple firstDivergingPoint(Zxid zxid) throws IOException {
+  public synchronized DivergingTuple firstDivergingPoint(Zxid zxid)
+      throws IOException {
     int idx = getFileIdx(zxid);
     if (idx == -1) {
       Log.LogIterator iter = new RollingLogIterator(Zxid.ZXID_NOT_EXIST);
       return new DivergingTuple(iter, Zxid.ZXID_NOT_EXIST);
     }
-    Zxid firstZxid = getZxidFromFileName(logFiles.get(idx));
-    Log.LogIterator iter = new RollingLogIterator(firstZxid);
-    Zxid prevZxid = firstZxid;
+    // Starts from the closest indexed transaction before zxid.
+    File file = logFiles.get(idx);
+    Log.LogIterator iter = new RollingLogIterator(file, index(file).floor(zxid));
+    Zxid prevZxid = getZxidFromFileName(file);
     while (iter.hasNext()) {
       Zxid curZxid = iter.next().getZxid();
       if (curZxid.compareTo(zxid) == 0) {
@@ -227,14 +260,88 @@ class RollingLog implements Log {
   }
 
   /**
-   * Trim the log up to the transaction with Zxid zxid inclusively.
+   * Trim the log up to the transaction with Zxid zxid inclusively. Only
+   * whole files are removed: a file goes once the next one starts at or
+   * below zxid, and the file being appended to is always kept.
    *
    * @param zxid the last zxid(inclusive) which will be trimed to.
    * @throws IOException in case of IO failures
    */
   @Override
   public void trim(Zxid zxid) throws IOException {
-    throw new UnsupportedOperationException("Not supported");
+    List<File> trimmed;
+    synchronized (this) {
+      int idx = 0;
+      while (idx < logFiles.size() - 1 &&
+             getZxidFromFileName(logFiles.get(idx + 1)).compareTo(zxid) <= 0) {
+        idx++;
+      }
+      trimmed = new ArrayList<File>(logFiles.subList(0, idx));
+      logFiles.subList(0, idx).clear();
+    }
+    // Iterators still reading a trimmed file keep it open until they move on.
+    for (File file : trimmed) {
+      removeIndex(file);
+      if (file.delete()) {
+        LOG.info("Trimmed log file {}.", file.getName());
+      } else {
+        LOG.warn("The file {} might not be deleted successfully.",
+                 file.getName());
+      }
+    }
+  }
+
+  /**
+   * Gets the zxid to trim to so that at least txns transactions below zxid
+   * stay in the log, counted across epochs. Trim only removes whole files,
+   * so it's the first zxid of the file holding the oldest one to keep.
+   *
+   * @param zxid the zxid the retained transactions are below.
+   * @param txns the number of transactions to retain.
+   * @return the zxid to trim to, or Zxid.ZXID_NOT_EXIST if the log doesn't
+   * hold more than txns transactions below zxid.
+   * @throws IOException in case of IO failures
+   */
+  @Override
+  public synchronized Zxid getTrimZxid(Zxid zxid, long txns)
+      throws IOException {
+    long kept = 0;
+    for (int idx = getFileIdx(zxid); idx >= 0; --idx) {
+      File file = logFiles.get(idx);
+      kept += countBelow(file, idx == logFiles.size() - 1, zxid);
+      if (kept >= txns) {
+        return getZxidFromFileName(file);
+      }
+    }
+    return Zxid.ZXID_NOT_EXIST;
+  }
+
+  // Counts the transactions of a log file below zxid. Xids are consecutive
+  // within an epoch, so a file holding one epoch is counted from its first
+  // and last zxids; one an election fell in is read through.
+  private long countBelow(File file, boolean current, Zxid zxid)
+      throws IOException {
+    Zxid first = getZxidFromFileName(file);
+    Zxid last = null;
+    if (current && this.currentLog != null) {
+      last = this.currentLog.getLatestZxid();
+    } else {
+      SegmentFooter footer = SegmentFooter.read(file);
+      if (footer != null) {
+        last = footer.zxid;
+      }
+    }
+    if (last != null && first.getEpoch() == last.getEpoch()) {
+      long top = last.compareTo(zxid) < 0 ? last.getXid() : zxid.getXid() - 1;
+      return Math.max(top - first.getXid() + 1, 0);
+    }
+    long count = 0;
+    try (Log.LogIterator iter = new SimpleLog.SimpleLogIterator(file)) {
+      while (iter.hasNext() && iter.next().getZxid().compareTo(zxid) < 0) {
+        ++count;
+      }
+    }
+    return count;
   }
 
   // Initialize from the log directory.
@@ -252,6 +359,109 @@ class RollingLog implements Log {
     }
   }
 
+  /**
+   * Recovers the log files in parallel. Every sealed file has its checksums
+   * verified in full and must end where its footer says, with the zxid it
+   * names. A file other than the last one without a footer, written before
+   * files were sealed, has its checksums verified from its last index entry
+   * on, or in full if it has no index, and gets sealed. An unsealed last
+   * file is recovered by MappedLog, which cuts whatever a crash left after
+   * its last transaction.
+   *
+   * @throws IOException in case of IO failure
+   */
+  void recoverSegments() throws IOException {
+    int count = logFiles.size();
+    if (count == 0) {
+      return;
+    }
+    int threads =
+      Math.min(count, Runtime.getRuntime().availableProcessors());
+    ExecutorService es =
+      Executors.newFixedThreadPool(threads, DaemonThreadFactory.FACTORY);
+    try {
+      List<Future<LogIndex>> futures = new ArrayList<Future<LogIndex>>();
+      for (int i = 0; i < count; ++i) {
+        File file = logFiles.get(i);
+        boolean last = i == count - 1;
+        futures.add(es.submit(() -> recoverSegment(file, last)));
+      }
+      // The last file's index is loaded again when it's opened for appends.
+      for (int i = 0; i < count - 1; ++i) {
+        this.indexes.put(logFiles.get(i), futures.get(i).get());
+      }
+      futures.get(count - 1).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while recovering the log.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      es.shutdownNow();
+    }
+  }
+
+  static LogIndex recoverSegment(File file, boolean last) throws IOException {
+    LogIndex index = LogIndex.load(file);
+    if (index.isSealed()) {
+      verifySegment(file, index);
+    } else if (!last) {
+      if (index.getEnd() != file.length()) {
+        String exStr = String.format("The log file %s is corrupted after %s.",
+                                     file.getName(), index.getLastZxid());
+        LOG.error(exStr);
+        throw new RuntimeException(exStr);
+      }
+      try (RandomAccessFile ra = new RandomAccessFile(file, "rw")) {
+        SegmentFooter.write(ra, index.getEnd(), index.getLastZxid());
+      }
+      LOG.info("Sealed log file {}.", file.getName());
+    }
+    return index;
+  }
+
+  /**
+   * Reads a sealed file through, checking every checksum, that zxids go up,
+   * and that the transactions end at the footer's offset and zxid.
+   *
+   * @param file the log file.
+   * @param index the index loaded from the file's footer.
+   * @throws IOException if the file doesn't match its footer.
+   */
+  static void verifySegment(File file, LogIndex index) throws IOException {
+    Zxid last = Zxid.ZXID_NOT_EXIST;
+    int end = 0;
+    try (SimpleLog.SimpleLogIterator iter =
+           new SimpleLog.SimpleLogIterator(file)) {
+      while (iter.hasNext()) {
+        Transaction txn;
+        try {
+          txn = iter.next();
+        } catch (EOFException | RuntimeException e) {
+          throw new IOException(String.format(
+              "The sealed log file %s is corrupted after %s.",
+              file.getName(), last), e);
+        }
+        if (txn.getZxid().compareTo(last) <= 0) {
+          throw new IOException(String.format(
+              "The sealed log file %s has %s after %s.",
+              file.getName(), txn.getZxid(), last));
+        }
+        last = txn.getZxid();
+        end = iter.getPosition();
+      }
+    }
+    if (end != index.getEnd() || !last.equals(index.getLastZxid())) {
+      throw new IOException(String.format(
+          "The footer of %s ends at %s, offset %d, but its transactions end"
+          + " at %s, offset %d.", file.getName(), index.getLastZxid(),
+          index.getEnd(), last, end));
+    }
+  }
+
   /**
    * Given the zxid, find out the idx of the file in list which contains the
    * transaction with this zxid if and only if the transaction with the zxid
@@ -269,29 +479,22 @@ class RollingLog implements Log {
       // of the rolling log, returns -1.
       return -1;
     }
-    int idx = 0;
-    while (idx < logFiles.size() - 1) {
-      Zxid firstZxid = getZxidFromFileName(logFiles.get(idx));
-      if (zxid.compareTo(firstZxid) == 0) {
-        break;
-      } else if (zxid.compareTo(firstZxid) > 0) {
-        int nextIdx = idx + 1;
-        if (nextIdx < logFiles.size()) {
-          Zxid nextFirstZxid = getZxidFromFileName(logFiles.get(nextIdx));
-          if (zxid.compareTo(nextFirstZxid) < 0) {
-            // Means the zxid is larger than the smallest allowed zxid of log
-            // file of index i but smaller than the smallest allowed zxid of
-            // log file of index i + 1. So the transaction with zxid only
-            // can be possibly in log file with idx i.
-            break;
-          }
-        }
+    // Binary searches for the last file whose smallest allowed zxid is not
+    // larger than zxid, only that file can possibly hold the transaction.
+    int lo = 0;
+    int hi = logFiles.size() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (zxid.compareTo(getZxidFromFileName(logFiles.get(mid))) >= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
       }
-      idx++;
     }
-    return idx;
+    return lo;
   }
 
+
   /**
    * Given the log file, finds out the smallest allowed zxid for thi file. It's
    * infered by looking at the name of the file.
@@ -305,38 +508,91 @@ class RollingLog implements Log {
   }
 
   /**
-   * Gets the last log file in the list of logs.
+   * Opens the last log file in the list of logs for appending.
    *
-   * @return the SimpleLog instance of the last log.
+   * @return the MappedLog instance of the last log.
    */
-  SimpleLog getLastLog() throws IOException {
+  MappedLog getLastLog() throws IOException {
     if (logFiles.isEmpty()) {
       return null;
     }
-    return new SimpleLog(logFiles.get(logFiles.size() - 1));
+    return openLog(logFiles.get(logFiles.size() - 1));
+  }
+
+  // Opens a log file for appending, its index becomes the file's index.
+  MappedLog openLog(File file) throws IOException {
+    MappedLog log = new MappedLog(file, this.rollingSize);
+    this.indexes.put(file, log.getIndex());
+    return log;
+  }
+
+  /**
+   * Gets the sparse index of a log file.
+   */
+  LogIndex index(File file) throws IOException {
+    LogIndex index = this.indexes.get(file);
+    if (index == null) {
+      index = LogIndex.load(file);
+      LogIndex old = this.indexes.putIfAbsent(file, index);
+      if (old != null) {
+        index = old;
+      }
+    }
+    return index;
+  }
+
+  // Forgets the index of a log file which is being deleted.
+  void removeIndex(File file) {
+    this.indexes.remove(file);
+    LogIndex.delete(file);
   }
 
   /**
    * An implementation of LogIterator for RollingLog.
    */
   class RollingLogIterator implements Log.LogIterator {
-    int fileIdx;
+    // The file being read, it's located by zxid rather than by index since
+    // trim shifts the list.
+    File file;
     Log.LogIterator iter;
 
     public RollingLogIterator(Zxid startZxid) throws IOException {
-      int idx = getFileIdx(startZxid);
-      if (logFiles.isEmpty()) {
-        this.fileIdx = -1;
-        this.iter = null;
-      } else {
-        if (idx == -1) {
-          idx = 0;
+      synchronized (RollingLog.this) {
+        int idx = getFileIdx(startZxid);
+        if (logFiles.isEmpty()) {
+          this.file = null;
+          this.iter = null;
+        } else {
+          if (idx == -1) {
+            idx = 0;
+          }
+          this.file = logFiles.get(idx);
+          this.iter = SimpleLog.getIterator(this.file,
+                                            index(this.file).floor(startZxid),
+                                            startZxid);
         }
-        this.fileIdx = idx;
-        try (SimpleLog log = new SimpleLog(logFiles.get(this.fileIdx))) {
-          this.iter = log.getIterator(startZxid);
+      }
+    }
+
+    /**
+     * Creates an iterator reading from the transaction at offset of file.
+     */
+    RollingLogIterator(File file, int offset) throws IOException {
+      this.file = file;
+      this.iter = new SimpleLog.SimpleLogIterator(file, offset);
+    }
+
+    /**
+     * Gets the log file following the current one, or null if it's the last.
+     */
+    File nextFile() {
+      Zxid zxid = getZxidFromFileName(this.file);
+      for (File f : logFiles) {
+        if (getZxidFromFileName(f).compareTo(zxid) > 0) {
+          return f;
         }
       }
+      return null;
     }
 
     /**
@@ -358,8 +614,8 @@ class RollingLog implements Log {
      */
     @Override
     public boolean hasNext() {
-      return this.fileIdx != -1 &&
-             (this.iter.hasNext() || this.fileIdx < (logFiles.size() - 1));
+      return this.file != null &&
+             (this.iter.hasNext() || nextFile() != null);
     }
 
     /**
@@ -379,9 +635,8 @@ class RollingLog implements Log {
       }
       if (!this.iter.hasNext()) {
         this.iter.close();
-        this.fileIdx++;
-        File nextFile = logFiles.get(this.fileIdx);
-        this.iter = new SimpleLog.SimpleLogIterator(nextFile);
+        this.file = nextFile();
+        this.iter = new SimpleLog.SimpleLogIterator(this.file);
       }
       return this.iter.next();
     }
@@ -0,0 +1,90 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * The footer which seals a log segment once nothing more is appended to it.
+ * It records where the transactions end and the last zxid, so opening a
+ * sealed segment needn't scan it; recovery checks the footer against the
+ * transactions. The length slot of the footer is zero, which ends the log for
+ * readers.
+ *
+ * <p>
+ * <pre>
+ * footer   := magic(int) 0(int) zxid end(int) checksum(int)
+ *
+ * checksum := checksum of the preceding fields of the footer
+ * </pre>
+ */
+final class SegmentFooter {
+  static final int LENGTH = 32;
+  private static final int MAGIC = 0x5345414c;
+
+  final int end;
+  final Zxid zxid;
+
+  private SegmentFooter(int end, Zxid zxid) {
+    this.end = end;
+    this.zxid = zxid;
+  }
+
+  /**
+   * Reads the footer of a segment.
+   *
+   * @param logFile the log segment.
+   * @return the footer, or null if the segment isn't sealed.
+   * @throws IOException in case of IO failure
+   */
+  static SegmentFooter read(File logFile) throws IOException {
+    long length = logFile.length();
+    if (length < LENGTH) {
+      return null;
+    }
+    ByteBuffer footer = ByteBuffer.allocate(LENGTH);
+    try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+      file.seek(length - LENGTH);
+      file.readFully(footer.array());
+    }
+    if (footer.getInt(0) != MAGIC || footer.getInt(4) != 0 ||
+        footer.getInt(24) != length - LENGTH ||
+        footer.getInt(28) != checksum(footer)) {
+      return null;
+    }
+    return new SegmentFooter(footer.getInt(24),
+                             new Zxid(footer.getLong(8), footer.getLong(16)));
+  }
+
+  /**
+   * Seals a segment whose transactions end at the given offset, the file is
+   * cut to end with the footer and synced.
+   *
+   * @param file the log segment.
+   * @param end the end of the transactions.
+   * @param zxid the last zxid in the segment.
+   * @throws IOException in case of IO failure
+   */
+  static void write(RandomAccessFile file, int end, Zxid zxid)
+      throws IOException {
+    ByteBuffer footer = ByteBuffer.allocate(LENGTH);
+    footer.putInt(MAGIC)
+          .putInt(0)
+          .putLong(zxid.getEpoch())
+          .putLong(zxid.getXid())
+          .putInt(end);
+    footer.putInt(checksum(footer));
+    file.setLength(end);
+    file.seek(end);
+    file.write(footer.array());
+    file.getChannel().force(true);
+  }
+
+  private static int checksum(ByteBuffer footer) {
+    Adler32 checksum = new Adler32();
+    checksum.update(footer.array(), 0, LENGTH - 4);
+    return (int)checksum.getValue();
+  }
+}
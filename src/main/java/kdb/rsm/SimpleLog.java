@@ -24,7 +24,7 @@ import org.slf4j.LoggerFactory;
  *
  * <p>
  * <pre>
- * log-file     := [ transactions ]
+ * log-file     := [ transactions ] [ footer ]
  *
  * transactions := transaction | transaction transactions
  *
@@ -36,9 +36,14 @@ import org.slf4j.LoggerFactory;
  *
  * zxid         := epoch(long) xid(long)
  *
- * type         := type(int)
+ * type         := codec(byte) type(3 bytes)
+ *
+ * codec        := the {@link LogCodec} of the payload, 0 if it's
+ *                 uncompressed, which is how logs before codecs read
  *
  * payload      := byte array
+ *
+ * footer       := see {@link SegmentFooter}
  * </pre>
  */
 class SimpleLog implements Log {
@@ -114,8 +119,8 @@ class SimpleLog implements Log {
       // Writes Zxid.
       dout.writeLong(txn.getZxid().getEpoch());
       dout.writeLong(txn.getZxid().getXid());
-      // Writes the type of the transaction.
-      dout.writeInt(txn.getType());
+      // Writes the codec and the type of the transaction.
+      dout.writeInt(typeField(txn));
       // Writes the body of the transaction.
       while (payload.hasRemaining()) {
         dout.writeByte(payload.get());
@@ -196,6 +201,20 @@ class SimpleLog implements Log {
     }
   }
 
+  /**
+   * Gets the zxid of the first transaction in this log.
+   *
+   * @return the zxid of the first transaction, or Zxid.ZXID_NOT_EXIST if the
+   * log is empty.
+   * @throws IOException in case of IO failure
+   */
+  @Override
+  public Zxid getFirstZxid() throws IOException {
+    try (LogIterator iter = new SimpleLogIterator(this.logFile)) {
+      return iter.hasNext() ? iter.next().getZxid() : Zxid.ZXID_NOT_EXIST;
+    }
+  }
+
   /**
    * Gets an iterator to read transactions from this log starting
    * at the given zxid (including zxid).
@@ -206,7 +225,36 @@ class SimpleLog implements Log {
    */
   @Override
   public LogIterator getIterator(Zxid zxid) throws IOException {
-    SimpleLogIterator iter = new SimpleLogIterator(this.logFile);
+    return getIterator(this.logFile, zxid);
+  }
+
+  /**
+   * Gets an iterator to read transactions from the given log file starting
+   * at the given zxid (including zxid).
+   *
+   * @param logFile the log file.
+   * @param zxid the id of the transaction.
+   * @return an iterator to read the next transaction in the file.
+   * @throws IOException in case of IO failure
+   */
+  static SimpleLogIterator getIterator(File logFile, Zxid zxid)
+      throws IOException {
+    return getIterator(logFile, 0, zxid);
+  }
+
+  /**
+   * Gets an iterator to read transactions from the given log file starting
+   * at the given zxid (including zxid), scanning from offset on.
+   *
+   * @param logFile the log file.
+   * @param offset the offset of a transaction not after zxid.
+   * @param zxid the id of the transaction.
+   * @return an iterator to read the next transaction in the file.
+   * @throws IOException in case of IO failure
+   */
+  static SimpleLogIterator getIterator(File logFile, int offset, Zxid zxid)
+      throws IOException {
+    SimpleLogIterator iter = new SimpleLogIterator(logFile, offset);
     while(iter.hasNext()) {
       Transaction txn = iter.next();
       if(txn.getZxid().compareTo(zxid) >= 0) {
@@ -227,8 +275,15 @@ class SimpleLog implements Log {
    */
   @Override
   public DivergingTuple firstDivergingPoint(Zxid zxid) throws IOException {
-    SimpleLogIterator iter =
-      (SimpleLogIterator)getIterator(Zxid.ZXID_NOT_EXIST);
+    return firstDivergingPoint(this.logFile, zxid);
+  }
+
+  /**
+   * See {@link Log#firstDivergingPoint}, for the given log file.
+   */
+  static DivergingTuple firstDivergingPoint(File logFile, Zxid zxid)
+      throws IOException {
+    SimpleLogIterator iter = getIterator(logFile, Zxid.ZXID_NOT_EXIST);
     Zxid prevZxid = Zxid.ZXID_NOT_EXIST;
     while (iter.hasNext()) {
       Zxid curZxid = iter.next().getZxid();
@@ -266,10 +321,22 @@ class SimpleLog implements Log {
     throw new UnsupportedOperationException("Not supported");
   }
 
+  @Override
+  public Zxid getTrimZxid(Zxid zxid, long txns) throws IOException {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
   long length() {
     return this.logFile.length();
   }
 
+  /**
+   * Packs the codec and the type of a transaction into the type field.
+   */
+  static int typeField(Transaction txn) {
+    return txn.getCodec() << 24 | txn.getType();
+  }
+
   String getName() {
     return this.logFile.getName();
   }
@@ -286,8 +353,17 @@ class SimpleLog implements Log {
     private Zxid prevZxid = Zxid.ZXID_NOT_EXIST;
 
     public SimpleLogIterator(File logFile) throws IOException {
+      this(logFile, 0);
+    }
+
+    /**
+     * Creates an iterator reading from the transaction at offset.
+     */
+    public SimpleLogIterator(File logFile, int offset) throws IOException {
       this.logFile = logFile;
       this.fin = new FileInputStream(logFile);
+      this.fin.getChannel().position(offset);
+      this.position = offset;
       this.logStream = new DataInputStream(new BufferedInputStream(this.fin));
     }
 
@@ -310,13 +386,32 @@ class SimpleLog implements Log {
     }
 
     /**
-     * Checks if it has more transactions.
+     * Checks if it has more transactions. A preallocated log ends at the first
+     * zeroed length field, see {@link MappedLog}.
      *
      * @return true if it has more transactions, false otherwise.
      */
     @Override
     public boolean hasNext() {
-      return this.position < this.logFile.length();
+      try {
+        // The size of the open file, it may have been trimmed from the log
+        // directory while it's read.
+        if (this.position >= this.fin.getChannel().size()) {
+          return false;
+        }
+        int length;
+        this.logStream.mark(CHECKSUM_LENGTH + LENGTH_LENGTH);
+        try {
+          this.logStream.readInt();
+          length = this.logStream.readInt();
+        } finally {
+          this.logStream.reset();
+        }
+        return length != 0;
+      } catch (IOException e) {
+        // Let next() report the truncated transaction.
+        return true;
+      }
     }
 
     /**
@@ -382,7 +477,8 @@ class SimpleLog implements Log {
       this.lastTransactionLength = CHECKSUM_LENGTH + LENGTH_LENGTH + length;
       // Updates the position of file.
       this.position += this.lastTransactionLength;
-      return new Transaction(zxid, type, ByteBuffer.wrap(payload));
+      return new Transaction(zxid, type & 0xffffff, type >>> 24,
+                             ByteBuffer.wrap(payload));
     }
 
     // Moves the transaction log backward to last transaction.
@@ -3,13 +3,14 @@ package kdb.rsm;
 import com.google.protobuf.TextFormat;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import kdb.rsm.proto.ZabMessage.Message;
 import kdb.rsm.proto.ZabMessage.Message.MessageType;
 import org.slf4j.Logger;
@@ -20,8 +21,8 @@ import org.slf4j.LoggerFactory;
  * when it's required.
  */
 class SnapshotProcessor implements RequestProcessor, Callable<Void> {
-  private final BlockingQueue<MessageTuple> requestQueue =
-      new LinkedBlockingQueue<MessageTuple>();
+  // Snapshots are rare, the processor always parks while it waits.
+  private final RequestQueue requestQueue = new RequestQueue(false);
 
   private static final Logger LOG =
       LoggerFactory.getLogger(SnapshotProcessor.class);
@@ -34,22 +35,39 @@ class SnapshotProcessor implements RequestProcessor, Callable<Void> {
 
   private final String serverId;
 
+  /**
+   * The number of transactions kept in log below a snapshot.
+   */
+  private final long retentionTxns;
+
   Future<Void> ft;
 
   public SnapshotProcessor(StateMachine stateMachine,
                            PersistentState persistence,
                            String serverId,
-                           Transport transport) {
+                           Transport transport,
+                           long retentionTxns) {
     this.stateMachine = stateMachine;
     this.persistence = persistence;
     this.serverId = serverId;
     this.transport = transport;
+    this.retentionTxns = retentionTxns;
     ExecutorService es =
         Executors.newSingleThreadExecutor(DaemonThreadFactory.FACTORY);
     ft = es.submit(this);
     es.shutdown();
   }
 
+  /**
+   * Removes what the snapshot of zxid makes redundant: older snapshots and
+   * the log files below it, except for the retained transactions.
+   */
+  void compact(Zxid zxid) throws IOException {
+    persistence.cleanupSnapshots();
+    Log log = persistence.getLog();
+    log.trim(log.getTrimZxid(zxid, retentionTxns));
+  }
+
   @Override
   public void processRequest(MessageTuple request) {
     this.requestQueue.add(request);
@@ -66,34 +84,42 @@ class SnapshotProcessor implements RequestProcessor, Callable<Void> {
   public Void call() throws Exception {
     LOG.debug("SnapshotProcessor gets started.");
     try {
-      while (true) {
-        MessageTuple request = requestQueue.take();
-        if (request == MessageTuple.REQUEST_OF_DEATH) {
-          break;
-        }
-        Message msg = request.getMessage();
-        if (msg.getType() == MessageType.SNAPSHOT) {
-          Zxid zxid =
-            MessageBuilder.fromProtoZxid(msg.getSnapshot().getLastZxid());
-          LOG.debug("Got SNAPSHOT, the zxid of last transaction which is " +
-              "guaranteed in log is {}.", zxid);
-          // Create a temporary file for snapshot.
-          File temp = persistence.createTempFile("snapshot");
-          try (FileOutputStream fout = new FileOutputStream(temp)) {
-            stateMachine.save(fout);
-            fout.close();
-            // Mark it valid.
-            File file = persistence.setSnapshotFile(temp, zxid);
-            Message done = MessageBuilder.buildSnapshotDone(file.getPath());
-            // Sends it back to main thread.
-            this.transport.send(this.serverId, done);
+      List<MessageTuple> batch = new ArrayList<MessageTuple>();
+      boolean stopped = false;
+      while (!stopped) {
+        // Processes all the pending requests in one pass.
+        requestQueue.drainTo(batch);
+        for (MessageTuple request : batch) {
+          if (request == MessageTuple.REQUEST_OF_DEATH) {
+            stopped = true;
+            break;
           }
-        } else {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("Got unexpected message {}.",
-                     TextFormat.shortDebugString(msg));
+          Message msg = request.getMessage();
+          if (msg.getType() == MessageType.SNAPSHOT) {
+            Zxid zxid =
+              MessageBuilder.fromProtoZxid(msg.getSnapshot().getLastZxid());
+            LOG.debug("Got SNAPSHOT, the zxid of last transaction which is " +
+                "guaranteed in log is {}.", zxid);
+            // Create a temporary file for snapshot.
+            File temp = persistence.createTempFile("snapshot");
+            try (FileOutputStream fout = new FileOutputStream(temp)) {
+              stateMachine.save(fout);
+              fout.close();
+              // Mark it valid.
+              File file = persistence.setSnapshotFile(temp, zxid);
+              Message done = MessageBuilder.buildSnapshotDone(file.getPath());
+              // Sends it back to main thread.
+              this.transport.send(this.serverId, done);
+            }
+            compact(zxid);
+          } else {
+            if (LOG.isWarnEnabled()) {
+              LOG.warn("Got unexpected message {}.",
+                       TextFormat.shortDebugString(msg));
+            }
           }
         }
+        batch.clear();
       }
     } catch (RuntimeException e) {
       LOG.error("Caught exception", e);
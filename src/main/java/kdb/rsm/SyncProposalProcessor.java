@@ -2,13 +2,13 @@ package kdb.rsm;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import kdb.rsm.proto.ZabMessage.Message;
 import kdb.rsm.proto.ZabMessage.Message.MessageType;
 import kdb.rsm.proto.ZabMessage.Proposal.ProposalType;
@@ -25,8 +25,7 @@ class SyncProposalProcessor implements RequestProcessor, Callable<Void> {
 
   private final PersistentState persistence;
 
-  private final BlockingQueue<MessageTuple> proposalQueue =
-      new LinkedBlockingQueue<MessageTuple>();
+  private final RequestQueue proposalQueue;
 
   Future<Void> ft;
 
@@ -48,10 +47,14 @@ class SyncProposalProcessor implements RequestProcessor, Callable<Void> {
    * @param persistence the persistent variables.
    * @param transport used to send acknowledgment.
    * @param maxBatchSize the maximum batch size.
+   * @param busySpin whether the processor spins instead of parking while it
+   * waits for proposals.
    * @throws IOException in case of IO failure.
    */
   public SyncProposalProcessor(PersistentState persistence, Transport transport,
-                               int maxBatchSize) throws IOException {
+                               int maxBatchSize, boolean busySpin)
+      throws IOException {
+    this.proposalQueue = new RequestQueue(busySpin);
     this.persistence = persistence;
     this.log = persistence.getLog();
     this.transport = transport;
@@ -73,41 +76,35 @@ class SyncProposalProcessor implements RequestProcessor, Callable<Void> {
     this.transport.send(source, ack);
   }
 
+  // Syncs the batched transactions to disk and acknowledges the last one.
+  private void syncAndAck(MessageTuple lastReq) throws IOException {
+    this.log.sync();
+    Zxid zxid = MessageBuilder.fromProtoZxid(lastReq.getMessage()
+                                                    .getProposal()
+                                                    .getZxid());
+    sendAck(lastReq.getServerId(), zxid);
+  }
+
   @Override
   public Void call() throws Exception {
     try {
       LOG.debug("Batched SyncRequestProcessor gets started.");
-      MessageTuple lastReq = null;
-      // Number of transactions batched so far.
-      int batchCount = 0;
-
-      while (true) {
-        MessageTuple req;
-        if (lastReq == null) {
-          req = this.proposalQueue.take();
-        } else {
-          req = this.proposalQueue.poll();
-          if (req == null ||
-              batchCount == maxBatchSize ||
-              req == MessageTuple.REQUEST_OF_DEATH) {
-            // Sync to disk and send ACK to leader.
-            this.log.sync();
-            Zxid zxid = MessageBuilder
-                        .fromProtoZxid(lastReq.getMessage()
-                                              .getProposal()
-                                              .getZxid());
-            sendAck(lastReq.getServerId(), zxid);
-            batchCount = 0;
+      List<MessageTuple> batch = new ArrayList<MessageTuple>();
+      boolean stopped = false;
+      while (!stopped) {
+        // Appends all the pending proposals, then syncs them at once.
+        this.proposalQueue.drainTo(batch);
+        MessageTuple lastReq = null;
+        // Number of transactions batched so far.
+        int batchCount = 0;
+        for (MessageTuple req : batch) {
+          if (req == MessageTuple.REQUEST_OF_DEATH) {
+            stopped = true;
+            break;
+          }
+          if (req.getMessage().getType() != MessageType.PROPOSAL) {
+            continue;
           }
-        }
-        if (req == MessageTuple.REQUEST_OF_DEATH) {
-          break;
-        }
-        if (req == null) {
-          lastReq = null;
-          continue;
-        }
-        if (req.getMessage().getType() == MessageType.PROPOSAL) {
           // It's PROPOSAL, sync to disk.
           Message msg = req.getMessage();
           Transaction txn = MessageBuilder
@@ -132,6 +129,16 @@ class SyncProposalProcessor implements RequestProcessor, Callable<Void> {
           // and appending to log. In this case cluster_config is one more txn
           // ahead the log file and we'll just delete it when we restart Zab.
           this.log.append(txn);
+          if (batchCount == maxBatchSize) {
+            syncAndAck(lastReq);
+            batchCount = 0;
+            lastReq = null;
+          }
+        }
+        batch.clear();
+        if (lastReq != null) {
+          // Sync to disk and send ACK to leader.
+          syncAndAck(lastReq);
         }
       }
     } catch (Exception e) {
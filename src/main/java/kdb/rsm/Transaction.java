@@ -10,14 +10,20 @@ class Transaction {
   private final Zxid zxid;
   private final ByteBuffer body;
   private final int type;
+  private final int codec;
 
   public Transaction(Zxid zxid, ByteBuffer body) {
     this(zxid, ProposalType.USER_REQUEST_VALUE, body);
   }
 
   public Transaction(Zxid zxid, int type, ByteBuffer body) {
+    this(zxid, type, LogCodec.NONE.ordinal(), body);
+  }
+
+  public Transaction(Zxid zxid, int type, int codec, ByteBuffer body) {
     this.zxid = zxid;
     this.type = type;
+    this.codec = codec;
     this.body = body;
   }
 
@@ -31,7 +37,7 @@ class Transaction {
   }
 
   /**
-   * Get the body of the transaction.
+   * Get the body of the transaction, as encoded by its codec.
    *
    * @return an array of bytes representing the body of the transaction
    */
@@ -39,6 +45,15 @@ class Transaction {
     return this.body;
   }
 
+  /**
+   * Get the decoded body of the transaction.
+   *
+   * @return an array of bytes representing the payload of the transaction
+   */
+  public ByteBuffer getPayload() {
+    return LogCodec.of(this.codec).decode(this.body);
+  }
+
   @Override
   public String toString() {
     return this.zxid + " : " + this.body;
@@ -47,4 +62,13 @@ class Transaction {
   public int getType() {
     return this.type;
   }
+
+  /**
+   * Get the codec of the body, see {@link LogCodec}.
+   *
+   * @return the id of the codec
+   */
+  public int getCodec() {
+    return this.codec;
+  }
 }
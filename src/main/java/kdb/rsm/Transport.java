@@ -52,6 +52,34 @@ abstract class Transport {
    */
   public abstract void clear(String destination);
 
+  /**
+   * Gets the number of bytes of the messages to the destination which are
+   * queued or being written, 0 if the transport doesn't keep count.
+   *
+   * @param destination the id of the destination
+   * @return the number of bytes pending.
+   */
+  public long getPendingBytes(String destination) {
+    return 0;
+  }
+
+  /**
+   * Waits until at most the given number of bytes are pending to the
+   * destination. A transport which doesn't keep count doesn't wait.
+   *
+   * @param destination the id of the destination
+   * @param bytes the number of bytes to wait for.
+   * @param timeoutMs the maximum time to wait.
+   * @return true if the pending bytes are down to bytes, false if the wait
+   * timed out.
+   * @throws InterruptedException if the thread is interrupted.
+   */
+  public boolean awaitPendingBytes(String destination, long bytes,
+                                   long timeoutMs)
+      throws InterruptedException {
+    return true;
+  }
+
   /**
    * Broadcasts a message to a set of peers.
    *
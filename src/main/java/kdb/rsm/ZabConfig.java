@@ -16,6 +16,11 @@ public class ZabConfig {
   // The default logDir is current working directory.
   private String logDir = System.getProperty("user.dir");
   private int maxBatchSize = 500;
+  private long logRetentionTxns = 100000;
+  private LogCodec logCodec = LogCodec.NONE;
+  private boolean busySpin = false;
+  private long peerWindowBytes = 128L * 1024 * 1024;
+  private long maxPendingBytes = 512L * 1024 * 1024;
   private SslParameters sslParam = new SslParameters();
 
   /**
@@ -93,6 +98,117 @@ public class ZabConfig {
     this.maxBatchSize = batchSize;
   }
 
+  /**
+   * Gets the number of transactions kept in log below the latest snapshot,
+   * across epochs, so lagging peers can catch up without a state transfer. Its default value is 100000 transactions.
+   *
+   * @return the number of transactions retained below the snapshot.
+   */
+  public long getLogRetentionTxns() {
+    return this.logRetentionTxns;
+  }
+
+  /**
+   * Sets the number of transactions kept in log below the latest snapshot.
+   *
+   * @param txns the number of transactions retained below the snapshot.
+   */
+  public void setLogRetentionTxns(long txns) {
+    this.logRetentionTxns = txns;
+  }
+
+  /**
+   * Gets the codec the leader compresses proposals with, which are logged
+   * and synced to peers compressed. Its default value is "none".
+   *
+   * @return the name of the codec, "none" or "deflate".
+   */
+  public String getLogCodec() {
+    return this.logCodec.name().toLowerCase();
+  }
+
+  /**
+   * Sets the codec the leader compresses proposals with.
+   *
+   * @param codec the name of the codec, "none" or "deflate".
+   */
+  public void setLogCodec(String codec) {
+    try {
+      this.logCodec = LogCodec.valueOf(codec.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown log codec " + codec + ".");
+    }
+  }
+
+  LogCodec logCodec() {
+    return this.logCodec;
+  }
+
+  /**
+   * Gets whether the request processors spin instead of parking while they
+   * wait for requests, which saves the wakeup latency at the cost of a core
+   * each. Its default value is false.
+   *
+   * @return true if the processors busy spin.
+   */
+  public boolean getBusySpin() {
+    return this.busySpin;
+  }
+
+  /**
+   * Sets whether the request processors spin instead of parking while they
+   * wait for requests.
+   *
+   * @param busySpin true if the processors busy spin.
+   */
+  public void setBusySpin(boolean busySpin) {
+    this.busySpin = busySpin;
+  }
+
+  /**
+   * Gets the number of bytes of proposals the leader keeps in flight to a
+   * follower, queued or sent but not acknowledged. A follower which falls
+   * further behind is disconnected and catches up from the log once it
+   * rejoins, instead of having its proposals buffered. Its default value is
+   * 128MB.
+   *
+   * @return the window of a follower in bytes.
+   */
+  public long getPeerWindowBytes() {
+    return this.peerWindowBytes;
+  }
+
+  /**
+   * Sets the number of bytes of proposals the leader keeps in flight to a
+   * follower.
+   *
+   * @param bytes the window of a follower in bytes.
+   */
+  public void setPeerWindowBytes(long bytes) {
+    this.peerWindowBytes = bytes;
+  }
+
+  /**
+   * Gets the memory budget of pending requests, the bytes of requests sent
+   * but not delivered yet plus, on the leader, the bytes of proposals in
+   * flight to followers. New requests are refused with
+   * TooManyPendingRequests beyond it. Its default value is 512MB.
+   *
+   * @return the budget in bytes.
+   */
+  public long getMaxPendingBytes() {
+    return this.maxPendingBytes;
+  }
+
+  /**
+   * Sets the memory budget of pending requests.
+   *
+   * @param bytes the budget in bytes.
+   */
+  public void setMaxPendingBytes(long bytes) {
+    this.maxPendingBytes = bytes;
+  }
+
   /**
    * Sets the SSL parameters for Jzab.
    *
@@ -4,6 +4,15 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 public class ClientTest extends TestCase {
 
   /**
@@ -31,4 +40,48 @@ public class ClientTest extends TestCase {
   {
     assertTrue( true );
   }
+
+  // Reads a request of the binary protocol and returns its id.
+  private static long read(DataInputStream in) throws IOException {
+    byte[] frame = new byte[in.readInt()];
+    in.readFully(frame);
+    return ByteBuffer.wrap(frame).getLong();
+  }
+
+  // Answers a request with an empty message.
+  private static void answer(DataOutputStream out, long id) throws IOException {
+    out.writeInt(8);
+    out.writeLong(id);
+    out.flush();
+  }
+
+  public void testAsyncDoesNotBlock() throws Exception {
+    // A server that holds back its answers keeps the one permit taken.
+    try(ServerSocket server = new ServerSocket(0)) {
+      server.setSoTimeout(10000);
+      try(Client client = new Client("tcp://localhost:" + server.getLocalPort(), "t", 10000, 1);
+          Socket conn = server.accept()) {
+        conn.setSoTimeout(10000);
+        DataInputStream in = new DataInputStream(conn.getInputStream());
+        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
+        // The second request is chained on the event loop that completes
+        // the first one, which must not park waiting for its own permit.
+        CompletableFuture<Client.Result> first = client.getAsync(Client.QueryType.Equal, "a".getBytes(), 1);
+        CompletableFuture<Client.Result> second = first.thenCompose(r -> client.getAsync(Client.QueryType.Equal, "b".getBytes(), 1));
+        // The third is queued rather than blocking the caller.
+        CompletableFuture<Client.Result> third = client.getAsync(Client.QueryType.Equal, "c".getBytes(), 1);
+        long id = read(in);
+        Thread.sleep(100);
+        assertEquals(0, in.available());
+        assertFalse(third.isDone());
+        // Each one completing hands its permit to the next in line.
+        answer(out, id);
+        first.get(10, TimeUnit.SECONDS);
+        answer(out, read(in));
+        answer(out, read(in));
+        second.get(10, TimeUnit.SECONDS);
+        third.get(10, TimeUnit.SECONDS);
+      }
+    }
+  }
 }
@@ -0,0 +1,87 @@
+package kdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import kdb.proto.XMessage.DeleteOperation;
+import kdb.proto.XMessage.Message;
+
+public class ExpiryTest extends TestCase {
+
+  public ExpiryTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(ExpiryTest.class);
+  }
+
+  private static long utc(int hour, int minute) {
+    return LocalDateTime.of(2017, 1, 2, hour, minute).toInstant(ZoneOffset.UTC).toEpochMilli();
+  }
+
+  private static void assertRange(Message msg, byte[] key, byte[] key2, long cutoff) {
+    DeleteOperation op = msg.getDeleteOp();
+    assertEquals("t", op.getTable());
+    assertTrue(Arrays.equals(key, op.getKey().toByteArray()));
+    assertTrue(Arrays.equals(key2, op.getKey2().toByteArray()));
+    assertEquals(key2.length == 0, op.getToEnd());
+    assertEquals(cutoff, op.getExpiry());
+  }
+
+  public void testTimestamp() {
+    long now = utc(10, 7);
+    List<Message> msgs = Expiry.deletes("t", 3600, 0, now);
+    assertEquals(1, msgs.size());
+    byte[] cutoff = ByteBuffer.allocate(8).putLong(now - 3600*1000).array();
+    assertRange(msgs.get(0), new byte[1], cutoff, now - 3600*1000);
+  }
+
+  public void testBuckets() {
+    // 5 minute buckets kept for 23 hours: at 10:07 the buckets from 10:10
+    // to 11:00 hold yesterday's data.
+    long now = utc(10, 7);
+    long cutoff = now - 23*3600*1000L;
+    List<Message> msgs = Expiry.deletes("t", 23*3600, 300, now);
+    assertEquals(1, msgs.size());
+    assertRange(msgs.get(0), new byte[] {10, 2}, new byte[] {11, 1}, cutoff);
+  }
+
+  public void testBucketsWrapAround() {
+    // Kept for an hour: at 23:50 everything but 22:50 to 23:50 goes, which
+    // wraps around the end of the day.
+    long now = utc(23, 50);
+    long cutoff = now - 3600*1000L;
+    List<Message> msgs = Expiry.deletes("t", 3600, 300, now);
+    assertEquals(2, msgs.size());
+    assertRange(msgs.get(0), new byte[] {23, 11}, new byte[0], cutoff);
+    assertRange(msgs.get(1), new byte[] {0, 0}, new byte[] {22, 10}, cutoff);
+  }
+
+  public void testBucketKey() {
+    assertTrue(Arrays.equals(new byte[] {0, 0}, Expiry.bucketKey(0, 300)));
+    assertTrue(Arrays.equals(new byte[] {1, 3}, Expiry.bucketKey(15, 300)));
+    assertTrue(Arrays.equals(new byte[] {23, 59}, Expiry.bucketKey(1439, 60)));
+  }
+
+  public void testCheck() {
+    Expiry.check(3600, 0);
+    Expiry.check(23*3600, 300);
+    try {
+      Expiry.check(24*3600, 300);
+      fail("a whole day of buckets never expires");
+    } catch(KdbException e) {
+    }
+    try {
+      Expiry.check(3600, 7);
+      fail("buckets must divide an hour");
+    } catch(KdbException e) {
+    }
+  }
+}
@@ -7,6 +7,7 @@ import junit.framework.TestSuite;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -276,4 +277,243 @@ public class KdbIntegrationTest extends TestCase {
     Client.dropTable("http://localhost:8000/", table);
   }
 
+  public void test10() throws Exception {
+    String table = "test10";
+    int writers = 8;
+    int count = 10;
+    Client.createTable("http://localhost:8000/", table);
+    ExecutorService es = Executors.newFixedThreadPool(writers);
+    List<Future<Client.Status>> results = new ArrayList<Future<Client.Status>>();
+    for (int w = 0; w < writers; w++) {
+      final int id = w;
+      results.add(es.submit(() -> {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            List<byte[]> values = new ArrayList<byte[]>();
+            for (int i = 0; i < count; i++) {
+              keys.add(("key"+id+"-"+i).getBytes());
+              values.add(("value"+id+"-"+i).getBytes());
+            }
+            try (Client client = new Client("http://localhost:8000/", table)) {
+              return client.insert(keys, values).status();
+            }
+          }));
+    }
+    for (Future<Client.Status> r : results) {
+      assertTrue(r.get() == Client.Status.OK);
+    }
+    es.shutdown();
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      Client.Result rsp = client.get("key".getBytes(), "key999".getBytes(), 1000);
+      assertTrue(rsp.count() == writers*count);
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test11() {
+    List<byte[]> keys = Arrays.asList("key1".getBytes(), "testKey".getBytes());
+    List<byte[]> values = Arrays.asList("val1".getBytes(), "testvalue".getBytes());
+    String table = "test11";
+    Client.createTable("tcp://localhost:9000/", table);
+    try (Client client = new Client("tcp://localhost:9001/", table)) {
+      Client.Result rsp = client.insert(keys, values);
+      assertTrue(rsp.status() == Client.Status.OK);
+      rsp = client.get(Client.QueryType.Equal, "testKey".getBytes(), 1);
+      assertTrue(rsp.count() == 1 && new String(rsp.getValue(0)).equals("testvalue"));
+    }
+    Client.dropTable("tcp://localhost:9000/", table);
+  }
+
+  public void test12() throws Exception {
+    String table = "test12";
+    int count = 100;
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table, Integer.MAX_VALUE, 16)) {
+      List<CompletableFuture<Client.Result>> results = new ArrayList<CompletableFuture<Client.Result>>();
+      for (int i = 0; i < count; i++) {
+        results.add(client.insertAsync(Arrays.asList(("key"+i).getBytes()), Arrays.asList(("value"+i).getBytes())));
+      }
+      for (CompletableFuture<Client.Result> r : results) {
+        assertTrue(r.get().status() == Client.Status.OK);
+      }
+      Client.Result rsp = client.getAsync(Client.QueryType.Equal, "key42".getBytes(), 1).get();
+      assertTrue(rsp.count() == 1 && new String(rsp.getValue(0)).equals("value42"));
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test13() {
+    List<byte[]> keys = Arrays.asList("key1".getBytes(), "key2".getBytes(), "key3".getBytes());
+    List<byte[]> values = Arrays.asList("val1".getBytes(), "val2".getBytes(), "val3".getBytes());
+    String table = "test13";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      Client.Result rsp = client.insert(keys, values);
+      assertTrue(rsp.status() == Client.Status.OK);
+      rsp = client.get(Arrays.asList("key3".getBytes(), "nokey".getBytes(), "key1".getBytes()));
+      assertTrue(rsp.count() == 3);
+      assertTrue(rsp.found(0) && new String(rsp.getValue(0)).equals("val3"));
+      assertTrue(!rsp.found(1));
+      assertTrue(rsp.found(2) && new String(rsp.getValue(2)).equals("val1"));
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test14() {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (int i = 0; i < 10; i++) {
+      keys.add(("key"+i).getBytes());
+      values.add(("val"+i).getBytes());
+    }
+    String table = "test14";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      Client.Result rsp = client.insert(keys, values);
+      assertTrue(rsp.status() == Client.Status.OK);
+      rsp = client.delete(Arrays.asList("key0".getBytes(), "key9".getBytes()));
+      assertTrue(rsp.status() == Client.Status.OK);
+      rsp = client.delete("key2".getBytes(), "key5".getBytes());
+      assertTrue(rsp.status() == Client.Status.OK);
+      rsp = client.get("key".getBytes(), "key999".getBytes(), 100);
+      assertTrue(rsp.count() == 5);
+      assertTrue(new String(rsp.getKey(0)).equals("key1") && new String(rsp.getKey(1)).equals("key5"));
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test15() {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(String.format("key%04d", i).getBytes());
+      values.add(("val"+i).getBytes());
+    }
+    String table = "test15";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      assertTrue(client.insert(keys, values).status() == Client.Status.OK);
+    }
+    for (String uri : Arrays.asList("tcp://localhost:9000/", "http://localhost:8000/")) {
+      try (Client client = new Client(uri, table)) {
+        AtomicInteger count = new AtomicInteger();
+        client.scan("key0000".getBytes(), "key9999".getBytes(), 100, r -> count.addAndGet(r.count()));
+        assertTrue(count.get() == 1000);
+        count.set(0);
+        client.scan(Client.QueryType.GreaterEqual, "key0500".getBytes(), 100, r -> count.addAndGet(r.count()));
+        assertTrue(count.get() == 500);
+      }
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test16() {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    for (int i = 0; i < 10; i++) {
+      keys.add(("a"+i%3+"-"+i).getBytes());
+    }
+    String table = "test16";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      assertTrue(client.increment(keys).status() == Client.Status.OK);
+      assertTrue(client.increment(keys.subList(0, 4)).status() == Client.Status.OK);
+      byte[] k1 = "a".getBytes(), k2 = "b".getBytes();
+      assertTrue(client.aggregate(Client.Aggregate.Count, k1, k2, 0).aggregate() == 10);
+      assertTrue(client.aggregate(Client.Aggregate.Sum, k1, k2, 0).aggregate() == 14);
+      assertTrue(client.aggregate(Client.Aggregate.Distinct, k1, k2, 2).aggregate() == 3);
+      assertTrue(new String(client.aggregate(Client.Aggregate.Min, k1, k2, 0).getKey(0)).equals("a0-0"));
+      assertTrue(new String(client.aggregate(Client.Aggregate.Max, k1, k2, 0).getKey(0)).equals("a2-8"));
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test17() {
+    List<byte[]> keys = new ArrayList<byte[]>();
+    List<byte[]> values = new ArrayList<byte[]>();
+    for (int i = 0; i < 100; i++) {
+      keys.add(String.format("b%d-dev%d-%03d", i%2, i%5, i).getBytes());
+      values.add(("val"+i%4).getBytes());
+    }
+    String table = "test17";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      assertTrue(client.insert(keys, values).status() == Client.Status.OK);
+      byte[] k1 = "b".getBytes(), k2 = "c".getBytes();
+      Client.Result rsp = client.get(k1, k2, 1000, new Client.Filter().keyPrefix("b1".getBytes()));
+      assertTrue(rsp.count() == 50);
+      rsp = client.get(k1, k2, 1000, new Client.Filter().key(3, "dev3".getBytes(), null));
+      assertTrue(rsp.count() == 20);
+      rsp = client.get(k1, k2, 1000, new Client.Filter().key(3, "dev3".getBytes(), null).value(3, "1".getBytes(), null));
+      assertTrue(rsp.count() == 5);
+      assertTrue(client.aggregate(Client.Aggregate.Count, k1, k2, 0, new Client.Filter().keyPrefix("b0".getBytes())).aggregate() == 50);
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  private static byte[] int64(long v) {
+    return ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN).putLong(v).array();
+  }
+
+  public void test18() {
+    String table = "test18";
+    Client.createTable("http://localhost:8000/", table);
+    try (Client client = new Client("http://localhost:8000/", table)) {
+      List<byte[]> keys = Arrays.asList("sum".getBytes(), "sum".getBytes(), "sum".getBytes());
+      assertTrue(client.merge(Client.Merge.Add, keys, Arrays.asList(int64(1), int64(2), int64(3))).status() == Client.Status.OK);
+      assertTrue(client.merge(Client.Merge.Add, keys.subList(0, 1), Arrays.asList(int64(4))).status() == Client.Status.OK);
+      Client.Result rsp = client.get(Client.QueryType.Equal, "sum".getBytes(), 1);
+      assertTrue(ByteBuffer.wrap(rsp.getValue(0)).getLong() == 10);
+
+      keys = Arrays.asList("max".getBytes(), "max".getBytes());
+      client.merge(Client.Merge.Max, keys, Arrays.asList(int64(7), int64(3)));
+      rsp = client.get(Client.QueryType.Equal, "max".getBytes(), 1);
+      assertTrue(ByteBuffer.wrap(rsp.getValue(0)).getLong() == 7);
+
+      keys = Arrays.asList("bits".getBytes(), "bits".getBytes());
+      client.merge(Client.Merge.Or, keys, Arrays.asList(new byte[] {1}, new byte[] {2, 4}));
+      rsp = client.get(Client.QueryType.Equal, "bits".getBytes(), 1);
+      assertTrue(Arrays.equals(rsp.getValue(0), new byte[] {3, 4}));
+
+      keys = Arrays.asList("log".getBytes(), "log".getBytes());
+      client.merge(Client.Merge.Append, keys, Arrays.asList("a".getBytes(), "b".getBytes()));
+      rsp = client.get(Client.QueryType.Equal, "log".getBytes(), 1);
+      assertTrue(new String(rsp.getValue(0)).equals("ab"));
+
+      // Increments and Add merges of one key share its 4 byte counter.
+      keys = Arrays.asList("mixed".getBytes());
+      client.increment(keys);
+      client.merge(Client.Merge.Add, keys, Arrays.asList(int64(5)));
+      client.increment(keys);
+      rsp = client.get(Client.QueryType.Equal, "mixed".getBytes(), 1);
+      assertTrue(rsp.getValue(0).length == 4);
+      assertTrue(ByteBuffer.wrap(rsp.getValue(0)).getInt() == 7);
+      assertTrue(client.aggregate(Client.Aggregate.Sum, "mixed".getBytes(), "mixee".getBytes(), 0).aggregate() == 7);
+      assertTrue(client.aggregate(Client.Aggregate.Sum, "sum".getBytes(), "sun".getBytes(), 0).aggregate() == 10);
+    }
+    Client.dropTable("http://localhost:8000/", table);
+  }
+
+  public void test19() {
+    String events = "test19events", states = "test19states";
+    Client.createTable("http://localhost:8000/", events);
+    Client.createTable("http://localhost:8000/", states);
+    try (Client client = new Client("http://localhost:8000/", events)) {
+      Client.Batch batch = new Client.Batch()
+        .insert(events, Arrays.asList("e1".getBytes(), "e2".getBytes()), Arrays.asList("v1".getBytes(), "v2".getBytes()))
+        .update(states, Arrays.asList("s1".getBytes()), Arrays.asList("2".getBytes()));
+      assertTrue(client.write(batch).status() == Client.Status.OK);
+      assertTrue(client.get("e".getBytes(), "f".getBytes(), 10).count() == 2);
+      batch = new Client.Batch()
+        .insert(events, Arrays.asList("e3".getBytes()), Arrays.asList("v3".getBytes()))
+        .insert("test19missing", Arrays.asList("x".getBytes()), Arrays.asList("x".getBytes()));
+      assertTrue(client.write(batch).status() == Client.Status.Error);
+      assertTrue(client.get("e".getBytes(), "f".getBytes(), 10).count() == 2);
+    }
+    try (Client client = new Client("http://localhost:8000/", states)) {
+      Client.Result rsp = client.get(Client.QueryType.Equal, "s1".getBytes(), 1);
+      assertTrue(rsp.count() == 1 && new String(rsp.getValue(0)).equals("2"));
+    }
+    Client.dropTable("http://localhost:8000/", events);
+    Client.dropTable("http://localhost:8000/", states);
+  }
+
 }
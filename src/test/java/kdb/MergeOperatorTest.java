@@ -0,0 +1,80 @@
+package kdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import kdb.proto.XMessage.UpdateOperation.Merge;
+
+public class MergeOperatorTest extends TestCase {
+
+  public MergeOperatorTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(MergeOperatorTest.class);
+  }
+
+  private static byte[] int32(int v) {
+    return ByteBuffer.allocate(4).putInt(v).array();
+  }
+
+  private static byte[] int64(long v) {
+    return ByteBuffer.allocate(8).putLong(v).array();
+  }
+
+  public void testAddKeepsStoredWidth() {
+    byte[] r = MergeOperator.merge(Merge.Add, int32(1), int64(5));
+    assertTrue(Arrays.equals(int32(6), r));
+    r = MergeOperator.merge(Merge.Add, int64(1), int32(5));
+    assertTrue(Arrays.equals(int64(6), r));
+    r = MergeOperator.merge(Merge.Add, new byte[0], int64(5));
+    assertTrue(Arrays.equals(int64(5), r));
+  }
+
+  public void testOperandsFoldToWidest() {
+    assertTrue(Arrays.equals(int64(3), MergeOperator.apply(Merge.Add, int32(1), int64(2))));
+    assertTrue(Arrays.equals(int64(7), MergeOperator.apply(Merge.Max, int32(7), int64(2))));
+  }
+
+  public void testSigned() {
+    assertEquals(-1, MergeOperator.decode(int32(-1)));
+    assertEquals(-3, MergeOperator.decode(int64(-3)));
+    assertTrue(Arrays.equals(int32(-2), MergeOperator.merge(Merge.Add, int32(1), int32(-3))));
+    assertTrue(Arrays.equals(int32(1), MergeOperator.merge(Merge.Max, int32(1), int64(-3))));
+  }
+
+  public void testOverflow() {
+    // The result must fit the stored width rather than wrap around.
+    try {
+      MergeOperator.merge(Merge.Add, int32(Integer.MAX_VALUE), int32(1));
+      fail("overflows 4 bytes");
+    } catch(KdbException e) {
+    }
+    try {
+      MergeOperator.merge(Merge.Max, new byte[] {1}, int32(200));
+      fail("overflows 1 byte");
+    } catch(KdbException e) {
+    }
+    try {
+      MergeOperator.merge(Merge.Add, int64(Long.MAX_VALUE), int64(1));
+      fail("overflows 8 bytes");
+    } catch(KdbException e) {
+    }
+    try {
+      MergeOperator.merge(Merge.Add, new byte[9], int32(1));
+      fail("wider than 8 bytes");
+    } catch(KdbException e) {
+    }
+    assertTrue(Arrays.equals(int32(Integer.MIN_VALUE), MergeOperator.merge(Merge.Add, int32(Integer.MIN_VALUE + 1), int32(-1))));
+    assertTrue(Arrays.equals(new byte[] {-128}, MergeOperator.merge(Merge.Add, new byte[] {-1}, int32(-127))));
+  }
+
+  public void testBytes() {
+    assertTrue(Arrays.equals(new byte[] {3, 4}, MergeOperator.merge(Merge.Or, new byte[] {1}, new byte[] {2, 4})));
+    assertTrue(Arrays.equals("ab".getBytes(), MergeOperator.merge(Merge.Append, "a".getBytes(), "b".getBytes())));
+  }
+}
@@ -0,0 +1,308 @@
+package kdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import kdb.proto.XMessage.GetOperation;
+import kdb.proto.XMessage.Message;
+import kdb.rsm.Zxid;
+
+/**
+ * Runs a Store in process, so it needs the WiredTiger library on
+ * java.library.path.
+ */
+public class StoreIntegrationTest extends TestCase {
+  private File root;
+
+  public StoreIntegrationTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(StoreIntegrationTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    root = Files.createTempDirectory("kdb-store").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    deleteDir(root);
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if(files != null) {
+      for(File f : files)
+        deleteDir(f);
+    }
+    dir.delete();
+  }
+
+  private static List<byte[]> list(String... s) {
+    return Arrays.asList(Arrays.stream(s).map(String::getBytes).toArray(byte[][]::new));
+  }
+
+  private static Message get(Store store, String table, String key) {
+    try(Store.Context ctx = store.getContext(table)) {
+      return store.get(ctx, MessageBuilder.buildGetOp(table, GetOperation.Type.Equal, key.getBytes()));
+    }
+  }
+
+  public void testAppliedSurvivesReopen() {
+    String dir = new File(root, "db").getPath();
+    Store store = new Store(dir, 2, true);
+    store.create("t");
+    store.apply("ring0", new Zxid(1, 1), () -> store.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1"))));
+    store.checkpoint();
+    store.apply("ring0", new Zxid(1, 2), () -> store.handle(MessageBuilder.buildInsertOp("t", list("b"), list("2"))));
+    store.close();
+
+    Store reopened = new Store(dir, 2, true);
+    try {
+      assertEquals(new Zxid(1, 2), reopened.applied("ring0"));
+      assertEquals(1, get(reopened, "t", "b").getResponse().getValuesCount());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  private static byte[] backup(Store store) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    store.backup(out);
+    return out.toByteArray();
+  }
+
+  public void testRestore() throws IOException {
+    Store leader = new Store(new File(root, "leader").getPath(), 2, true);
+    Store follower = new Store(new File(root, "follower").getPath(), 2, true);
+    try {
+      leader.create("t");
+      follower.create("t");
+      leader.apply("ring0", new Zxid(1, 1), () -> leader.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1"))));
+      leader.apply("ring0", new Zxid(1, 2), () -> leader.handle(MessageBuilder.buildInsertOp("t", list("b"), list("2"))));
+      follower.apply("ring0", new Zxid(1, 1), () -> follower.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1"))));
+      byte[] snap = backup(leader);
+
+      // A follower with data behind the snapshot installs it.
+      follower.restore("ring0", new ByteArrayInputStream(snap));
+      assertEquals(new Zxid(1, 2), follower.applied("ring0"));
+      assertEquals(1, get(follower, "t", "b").getResponse().getValuesCount());
+
+      // Once it holds the snapshot's zxid the restore is a no-op.
+      follower.apply("ring0", new Zxid(1, 3), () -> follower.handle(MessageBuilder.buildInsertOp("t", list("c"), list("3"))));
+      follower.restore("ring0", new ByteArrayInputStream(snap));
+      assertEquals(1, get(follower, "t", "c").getResponse().getValuesCount());
+
+      try {
+        follower.restore("ring1", new ByteArrayInputStream(snap));
+        fail("the backup has no zxid for ring1");
+      } catch(KdbException e) {
+      }
+    } finally {
+      leader.close();
+      follower.close();
+    }
+  }
+
+  public void testRestoreClosesParkedReads() throws IOException {
+    Store leader = new Store(new File(root, "leader").getPath(), 2, true);
+    Store follower = new Store(new File(root, "follower").getPath(), 2, true);
+    try {
+      leader.create("t");
+      follower.create("t");
+      leader.apply("ring0", new Zxid(1, 1), () -> leader.handle(MessageBuilder.buildInsertOp("t", list("a", "b", "c"), list("1", "2", "3"))));
+      follower.apply("ring0", new Zxid(0, 1), () -> follower.handle(MessageBuilder.buildInsertOp("t", list("a", "b"), list("1", "2"))));
+      // A read that stopped after its first chunk and never came back.
+      Store.Context ctx = follower.getContext("t");
+      Message r = follower.get(ctx, MessageBuilder.buildGetOp("t", GetOperation.Type.GreaterEqual, "a".getBytes(), 1));
+      assertFalse(r.getResponse().getToken().equals(""));
+
+      follower.restore("ring0", new ByteArrayInputStream(backup(leader)));
+      assertEquals(1, get(follower, "t", "c").getResponse().getValuesCount());
+      try {
+        follower.get(ctx, MessageBuilder.buildGetOp(r.getResponse().getToken(), GetOperation.Type.GreaterEqual, 1));
+        fail("the parked read was closed by the restore");
+      } catch(KdbException e) {
+      }
+      ctx.close();
+    } finally {
+      leader.close();
+      follower.close();
+    }
+  }
+
+  public void testScratchReuse() {
+    Store store = new Store(new File(root, "db").getPath(), 2, true);
+    try {
+      store.create("t");
+      // A short key and value written after long ones through the same
+      // pooled cursor only take their own bytes.
+      char[] c = new char[1000];
+      Arrays.fill(c, 'x');
+      String big = new String(c);
+      store.handle(MessageBuilder.buildInsertOp("t", list(big), list(big)));
+      store.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1")));
+      assertEquals("1", get(store, "t", "a").getResponse().getValues(0).toStringUtf8());
+      assertEquals(big, get(store, "t", big).getResponse().getValues(0).toStringUtf8());
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testDeleteRange() {
+    Store store = new Store(new File(root, "db").getPath(), 2, true);
+    try {
+      store.create("t");
+      store.handle(MessageBuilder.buildInsertOp("t", list("a", "b", "c"), list("1", "2", "3")));
+      // A client range without an end is rejected rather than truncating
+      // the rest of the table.
+      try {
+        store.handle(MessageBuilder.buildDeleteOp("t", "b".getBytes(), new byte[0]));
+        fail("a range needs its end key");
+      } catch(KdbException e) {
+      }
+      assertEquals("3", get(store, "t", "c").getResponse().getValues(0).toStringUtf8());
+      store.handle(MessageBuilder.buildDeleteOp("t", "b".getBytes(), 1));
+      assertEquals("1", get(store, "t", "a").getResponse().getValues(0).toStringUtf8());
+      assertEquals(0, get(store, "t", "c").getResponse().getValuesCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testPooledContexts() throws Exception {
+    Store store = new Store(new File(root, "db").getPath(), 2, true);
+    try {
+      store.create("t");
+      // More contexts at once than the pool keeps, from several threads.
+      int threads = 8;
+      int count = 200;
+      List<Thread> writers = new ArrayList<Thread>();
+      List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+      for(int t = 0; t < threads; t++) {
+        final int id = t;
+        Thread thread = new Thread(() -> {
+            try {
+              for(int i = 0; i < count; i++) {
+                String key = id + "-" + i;
+                store.handle(MessageBuilder.buildInsertOp("t", list(key), list(key)));
+                assertEquals(key, get(store, "t", key).getResponse().getValues(0).toStringUtf8());
+              }
+            } catch(Throwable e) {
+              errors.add(e);
+            }
+        });
+        writers.add(thread);
+        thread.start();
+      }
+      for(Thread thread : writers)
+        thread.join();
+      assertTrue(errors.toString(), errors.isEmpty());
+      assertEquals("7-199", get(store, "t", "7-199").getResponse().getValues(0).toStringUtf8());
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testDropClosesPooledContexts() {
+    Store store = new Store(new File(root, "db").getPath(), 2, true);
+    try {
+      store.create("t");
+      store.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1")));
+      assertEquals(1, get(store, "t", "a").getResponse().getValuesCount());
+      // The idle sessions on t would keep the drop from going through.
+      store.drop("t");
+      store.create("t");
+      assertEquals(0, get(store, "t", "a").getResponse().getValuesCount());
+      store.handle(MessageBuilder.buildInsertOp("t", list("b"), list("2")));
+      assertEquals(1, get(store, "t", "b").getResponse().getValuesCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testCheckpointDuringApply() throws Exception {
+    Store leader = new Store(new File(root, "leader").getPath(), 2, true);
+    Store follower = new Store(new File(root, "follower").getPath(), 2, true);
+    try {
+      leader.create("t");
+      leader.apply("ring0", new Zxid(1, 1), () -> leader.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1"))));
+      CountDownLatch written = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      Thread writer = new Thread(() -> leader.apply("ring0", new Zxid(1, 2), () -> {
+          Message r = leader.handle(MessageBuilder.buildInsertOp("t", list("b"), list("2")));
+          written.countDown();
+          try {
+            release.await();
+          } catch(InterruptedException e) {
+          }
+          return r;
+        }));
+      writer.start();
+      written.await();
+      // Neither waits for the write in flight, nor holds it without its
+      // position.
+      leader.checkpoint();
+      byte[] snap = backup(leader);
+      release.countDown();
+      writer.join();
+      assertEquals(new Zxid(1, 2), leader.applied("ring0"));
+
+      follower.restore("ring0", new ByteArrayInputStream(snap));
+      assertEquals(new Zxid(1, 1), follower.applied("ring0"));
+      assertEquals(1, get(follower, "t", "a").getResponse().getValuesCount());
+      assertEquals(0, get(follower, "t", "b").getResponse().getValuesCount());
+    } finally {
+      leader.close();
+      follower.close();
+    }
+  }
+
+  public void testGroupPositions() {
+    String dir = new File(root, "db").getPath();
+    Store store = new Store(dir, 2, true);
+    store.create("t");
+    Zxid zxid = new Zxid(1, 1);
+    store.apply("ring0", zxid, 0, () -> store.handle(MessageBuilder.buildInsertOp("t", list("a"), list("1"))));
+    try {
+      store.apply("ring0", zxid, 1, () -> {
+          store.handle(MessageBuilder.buildInsertOp("t", list("b"), list("2")));
+          throw new KdbException("fails after a write");
+        });
+      fail("the failure reaches the ring");
+    } catch(KdbException e) {
+    }
+    // The failed message is rolled back but counts as applied.
+    assertEquals(0, get(store, "t", "b").getResponse().getValuesCount());
+    assertTrue(store.isApplied("ring0", zxid, 1));
+    assertFalse(store.isApplied("ring0", zxid, 2));
+    assertFalse(store.isApplied("ring1", zxid, 0));
+    store.apply("ring1", new Zxid(2, 5), () -> null);
+    store.close();
+
+    Store reopened = new Store(dir, 2, true);
+    try {
+      assertTrue(reopened.isApplied("ring0", zxid, 1));
+      assertFalse(reopened.isApplied("ring0", zxid, 2));
+      assertTrue(reopened.isApplied("ring0", new Zxid(1, 0), 7));
+      assertEquals(new Zxid(2, 5), reopened.applied("ring1"));
+      assertEquals(1, get(reopened, "t", "a").getResponse().getValuesCount());
+    } finally {
+      reopened.close();
+    }
+  }
+}
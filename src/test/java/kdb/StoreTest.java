@@ -0,0 +1,119 @@
+package kdb;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import kdb.proto.XMessage.Message;
+
+public class StoreTest extends TestCase {
+  private File root;
+
+  public StoreTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(StoreTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    root = Files.createTempDirectory("kdb-store").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for(File f : root.listFiles()) {
+      for(File g : f.listFiles())
+        g.delete();
+      f.delete();
+    }
+    root.delete();
+  }
+
+  private static File dir(File root, String name, String file) throws IOException {
+    File d = new File(root, name);
+    d.mkdirs();
+    try(FileOutputStream out = new FileOutputStream(new File(d, file))) {
+      out.write(1);
+    }
+    return d;
+  }
+
+  public void testInstall() throws IOException {
+    File db = dir(root, "db", "old");
+    File staging = dir(root, "db.restore", "new");
+    Store.install(staging, db);
+    assertTrue(new File(db, "new").exists());
+    assertFalse(new File(db, "old").exists());
+    assertFalse(staging.exists());
+    assertFalse(new File(root, "db.old").exists());
+  }
+
+  public void testRecoverBetweenRenames() throws IOException {
+    // A crash after the store moved aside but before the backup moved in.
+    File db = new File(root, "db");
+    dir(root, "db.old", "old");
+    dir(root, "db.restore", "new");
+    Store.recover(db);
+    assertTrue(new File(db, "old").exists());
+    assertFalse(new File(root, "db.old").exists());
+    assertFalse(new File(root, "db.restore").exists());
+  }
+
+  public void testRecoverAfterSwap() throws IOException {
+    // A crash after the swap but before the old files were removed.
+    File db = dir(root, "db", "new");
+    dir(root, "db.old", "old");
+    Store.recover(db);
+    assertTrue(new File(db, "new").exists());
+    assertFalse(new File(root, "db.old").exists());
+  }
+
+  private static Message insert() {
+    return MessageBuilder.buildInsertOp("t", Arrays.asList("key".getBytes()), Arrays.asList("value".getBytes()));
+  }
+
+  private static int indexOf(byte[] data, byte[] s) {
+    for(int i = 0; i + s.length <= data.length; i++) {
+      if(Arrays.equals(s, Arrays.copyOfRange(data, i, i + s.length)))
+        return i;
+    }
+    return -1;
+  }
+
+  public void testParseAliases() throws IOException {
+    byte[] msg = insert().toByteArray();
+    // The request sits in the middle of a larger buffer.
+    byte[] data = new byte[msg.length + 6];
+    System.arraycopy(msg, 0, data, 3, msg.length);
+    Message parsed = Store.parse(ByteBuffer.wrap(data, 3, msg.length));
+    assertEquals(insert(), parsed);
+    // The value points into the request instead of being copied out.
+    data[indexOf(data, "value".getBytes())] = 'V';
+    assertEquals("Value", parsed.getInsertOp().getValues(0).toStringUtf8());
+  }
+
+  public void testParseDirect() throws IOException {
+    byte[] msg = insert().toByteArray();
+    ByteBuffer data = ByteBuffer.allocateDirect(msg.length);
+    data.put(msg).flip();
+    assertEquals(insert(), Store.parse(data));
+  }
+
+  public void testParseInvalid() {
+    byte[] msg = insert().toByteArray();
+    try {
+      Store.parse(ByteBuffer.wrap(msg, 0, msg.length - 1));
+      fail("a truncated request can't be parsed");
+    } catch(IOException e) {
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LogCodecTest extends TestCase {
+
+  public LogCodecTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(LogCodecTest.class);
+  }
+
+  private static byte[] text(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      bytes[i] = (byte)('a' + i % 7);
+    }
+    return bytes;
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  public void testDeflateRoundTrip() {
+    byte[] payload = text(10000);
+    ByteBuffer frame = LogCodec.DEFLATE.encode(ByteBuffer.wrap(payload));
+    assertTrue(frame.remaining() < payload.length);
+    assertTrue(Arrays.equals(payload, toArray(LogCodec.DEFLATE.decode(frame))));
+  }
+
+  public void testCompress() {
+    Transaction txn = new Transaction(new Zxid(1, 2), 0,
+                                      ByteBuffer.wrap(text(10000)));
+    Transaction compressed = LogCodec.DEFLATE.compress(txn);
+    assertEquals(LogCodec.DEFLATE.ordinal(), compressed.getCodec());
+    assertEquals(txn.getZxid(), compressed.getZxid());
+    assertTrue(Arrays.equals(text(10000), toArray(compressed.getPayload())));
+  }
+
+  public void testLeftAlone() {
+    // Too small to be worth it.
+    Transaction small = new Transaction(new Zxid(1, 1),
+                                        ByteBuffer.wrap(text(100)));
+    assertSame(small, LogCodec.DEFLATE.compress(small));
+    // Random bytes don't get any smaller.
+    byte[] noise = new byte[10000];
+    new Random(1).nextBytes(noise);
+    Transaction random = new Transaction(new Zxid(1, 2),
+                                         ByteBuffer.wrap(noise));
+    assertSame(random, LogCodec.DEFLATE.compress(random));
+    assertSame(random, LogCodec.NONE.compress(random));
+  }
+
+  public void testTruncatedFrame() {
+    ByteBuffer frame = LogCodec.DEFLATE.encode(ByteBuffer.wrap(text(10000)));
+    frame.limit(frame.limit() - 10);
+    try {
+      LogCodec.DEFLATE.decode(frame);
+      fail("a truncated frame can't be decoded");
+    } catch (RuntimeException e) {
+    }
+  }
+
+  public void testUnknownCodec() {
+    try {
+      LogCodec.of(LogCodec.values().length);
+      fail("no such codec");
+    } catch (RuntimeException e) {
+    }
+  }
+
+  public void testCodecCarriedThroughLogAndProposal() throws IOException {
+    File dir = Files.createTempDirectory("logcodec").toFile();
+    File file = new File(dir, "log");
+    try {
+      MappedLog log = new MappedLog(file, 1 << 20);
+      Transaction txn = LogCodec.DEFLATE.compress(
+          new Transaction(new Zxid(0, 1), ByteBuffer.wrap(text(10000))));
+      log.append(txn);
+      try (Log.LogIterator iter = log.getIterator(new Zxid(0, 1))) {
+        Transaction read = iter.next();
+        assertEquals(LogCodec.DEFLATE.ordinal(), read.getCodec());
+        assertEquals(txn.getType(), read.getType());
+        assertTrue(Arrays.equals(text(10000), toArray(read.getPayload())));
+
+        // The frame goes to the followers as it is in the log.
+        byte[] frame = toArray(read.getBody());
+        Transaction sent = MessageBuilder.fromProposal(
+            MessageBuilder.buildProposal(read).getProposal());
+        assertEquals(LogCodec.DEFLATE.ordinal(), sent.getCodec());
+        assertTrue(Arrays.equals(frame, toArray(sent.getBody())));
+        assertTrue(Arrays.equals(text(10000), toArray(sent.getPayload())));
+      }
+      log.close();
+    } finally {
+      file.delete();
+      LogIndex.delete(file);
+      dir.delete();
+    }
+  }
+}
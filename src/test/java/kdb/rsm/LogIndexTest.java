@@ -0,0 +1,138 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import static kdb.rsm.MappedLogTest.append;
+import static kdb.rsm.MappedLogTest.assertLog;
+
+public class LogIndexTest extends TestCase {
+  private File dir;
+  private File file;
+
+  public LogIndexTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(LogIndexTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    this.dir = Files.createTempDirectory("logindex").toFile();
+    this.file = new File(this.dir, "log");
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File f : this.dir.listFiles()) {
+      f.delete();
+    }
+    this.dir.delete();
+  }
+
+  // Writes transactions 1..count without sealing the segment, and returns
+  // the offset of each.
+  private int[] write(int count) throws IOException {
+    int[] offsets = new int[count + 2];
+    MappedLog log = new MappedLog(this.file, 1 << 20);
+    for (int xid = 1; xid <= count; ++xid) {
+      offsets[xid] = (int)log.length();
+      append(log, xid, xid);
+    }
+    offsets[count + 1] = (int)log.length();
+    log.sync();
+    return offsets;
+  }
+
+  private void flip(int offset) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+      raf.seek(offset);
+      int b = raf.read();
+      raf.seek(offset);
+      raf.write(b ^ 0xff);
+    }
+  }
+
+  public void testIncompleteTail() throws IOException {
+    int[] offsets = write(10);
+    try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+      raf.setLength(offsets[10] + 12);
+    }
+    LogIndex index = LogIndex.load(this.file);
+    assertEquals(new Zxid(0, 9), index.getLastZxid());
+    assertEquals(offsets[10], index.getEnd());
+  }
+
+  public void testBadLastTransaction() throws IOException {
+    int[] offsets = write(10);
+    // The body of the last transaction, followed by the zeroed tail.
+    flip(offsets[10] + 30);
+    LogIndex index = LogIndex.load(this.file);
+    assertEquals(new Zxid(0, 9), index.getLastZxid());
+    MappedLog log = new MappedLog(this.file, 1 << 20);
+    assertLog(log, 1, 9);
+    log.close();
+  }
+
+  public void testBadTransactionInTheMiddle() throws IOException {
+    int[] offsets = write(10);
+    flip(offsets[5] + 30);
+    try {
+      LogIndex.load(this.file);
+      fail("a bad checksum with transactions after it is corruption");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testBadLength() throws IOException {
+    int[] offsets = write(10);
+    try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+      raf.seek(offsets[5] + 4);
+      raf.writeInt(3);
+    }
+    try {
+      new MappedLog(this.file, 1 << 20);
+      fail("a garbled length is corruption");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testSparseEntries() throws IOException {
+    // Enough transactions to span a few index intervals.
+    int count = 20000;
+    int[] offsets = write(count);
+    LogIndex index = LogIndex.load(this.file);
+    assertEquals(new Zxid(0, count), index.getLastZxid());
+    assertEquals(0, index.floor(new Zxid(0, 1)));
+    for (int xid : new int[] {100, 5000, 12345, count}) {
+      int floor = index.floor(new Zxid(0, xid));
+      assertTrue(floor <= offsets[xid]);
+      assertTrue(offsets[xid] - floor < LogIndex.INTERVAL + 64);
+    }
+    assertTrue(LogIndex.indexFile(this.file).length() > 0);
+  }
+
+  public void testStaleIndexIsRebuilt() throws IOException {
+    int count = 20000;
+    write(count);
+    LogIndex.load(this.file);
+    // Points the first entry at another transaction.
+    try (RandomAccessFile raf =
+           new RandomAccessFile(LogIndex.indexFile(this.file), "rw")) {
+      raf.seek(8);
+      raf.writeLong(1);
+    }
+    LogIndex index = LogIndex.load(this.file);
+    assertEquals(new Zxid(0, count), index.getLastZxid());
+    MappedLog log = new MappedLog(this.file, 1 << 20);
+    assertLog(log, 15000, count);
+    log.close();
+  }
+}
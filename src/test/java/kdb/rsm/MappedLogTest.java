@@ -0,0 +1,130 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class MappedLogTest extends TestCase {
+  private File dir;
+
+  public MappedLogTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(MappedLogTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    this.dir = Files.createTempDirectory("mappedlog").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File f : this.dir.listFiles()) {
+      f.delete();
+    }
+    this.dir.delete();
+  }
+
+  static Transaction txn(long xid) {
+    return new Transaction(new Zxid(0, xid),
+                           ByteBuffer.wrap(("txn" + xid).getBytes()));
+  }
+
+  static void append(Log log, long from, long to) throws IOException {
+    for (long xid = from; xid <= to; ++xid) {
+      log.append(txn(xid));
+    }
+  }
+
+  // Reads the log from zxid and checks it holds from..to in order.
+  static void assertLog(Log log, long from, long to) throws IOException {
+    long xid = from;
+    try (Log.LogIterator iter = log.getIterator(new Zxid(0, from))) {
+      while (iter.hasNext()) {
+        Transaction txn = iter.next();
+        assertEquals(new Zxid(0, xid), txn.getZxid());
+        assertEquals("txn" + xid,
+                     new String(txn.getPayload().array(),
+                                txn.getPayload().arrayOffset()
+                                  + txn.getPayload().position(),
+                                txn.getPayload().remaining()));
+        ++xid;
+      }
+    }
+    assertEquals(to + 1, xid);
+  }
+
+  public void testRoundTrip() throws IOException {
+    File file = new File(this.dir, "log");
+    MappedLog log = new MappedLog(file, 1 << 20);
+    append(log, 1, 100);
+    assertEquals(new Zxid(0, 1), log.getFirstZxid());
+    assertEquals(new Zxid(0, 100), log.getLatestZxid());
+    assertLog(log, 1, 100);
+    assertLog(log, 42, 100);
+    log.close();
+  }
+
+  public void testGrows() throws IOException {
+    File file = new File(this.dir, "log");
+    MappedLog log = new MappedLog(file, 64);
+    append(log, 1, 1000);
+    assertLog(log, 1, 1000);
+    log.close();
+  }
+
+  public void testSealAndReopen() throws IOException {
+    File file = new File(this.dir, "log");
+    MappedLog log = new MappedLog(file, 1 << 20);
+    append(log, 1, 50);
+    int end = (int)log.length();
+    log.close();
+    // The preallocated tail is gone, the footer ends the file.
+    assertEquals(end + SegmentFooter.LENGTH, file.length());
+    SegmentFooter footer = SegmentFooter.read(file);
+    assertEquals(end, footer.end);
+    assertEquals(new Zxid(0, 50), footer.zxid);
+
+    log = new MappedLog(file, 1 << 20);
+    assertEquals(new Zxid(0, 50), log.getLatestZxid());
+    append(log, 51, 60);
+    assertLog(log, 1, 60);
+    log.close();
+  }
+
+  public void testTruncate() throws IOException {
+    File file = new File(this.dir, "log");
+    MappedLog log = new MappedLog(file, 1 << 20);
+    append(log, 1, 100);
+    log.truncate(new Zxid(0, 40));
+    assertEquals(new Zxid(0, 40), log.getLatestZxid());
+    assertLog(log, 1, 40);
+    append(log, 41, 45);
+    assertLog(log, 1, 45);
+    log.sync();
+
+    // Without a close the zeroed tail still ends the log on reopen.
+    MappedLog reopened = new MappedLog(file, 1 << 20);
+    assertEquals(new Zxid(0, 45), reopened.getLatestZxid());
+    reopened.close();
+  }
+
+  public void testTruncateAll() throws IOException {
+    File file = new File(this.dir, "log");
+    MappedLog log = new MappedLog(file, 1 << 20);
+    append(log, 1, 10);
+    log.truncate(Zxid.ZXID_NOT_EXIST);
+    assertEquals(Zxid.ZXID_NOT_EXIST, log.getLatestZxid());
+    assertEquals(0, log.length());
+    append(log, 1, 3);
+    assertLog(log, 1, 3);
+    log.close();
+  }
+}
@@ -0,0 +1,297 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import kdb.rsm.proto.ZabMessage;
+import kdb.rsm.proto.ZabMessage.Message;
+import kdb.rsm.proto.ZabMessage.Message.MessageType;
+
+public class NettyTransportTest extends TestCase {
+  private final List<NettyTransport> transports =
+    new ArrayList<NettyTransport>();
+  private File dir;
+
+  public NettyTransportTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(NettyTransportTest.class);
+  }
+
+  /**
+   * Queues what it receives.
+   */
+  static class QueueReceiver implements Transport.Receiver {
+    final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+
+    @Override
+    public void onReceived(String source, Message message) {
+      this.received.add(message);
+    }
+
+    @Override
+    public void onDisconnected(String destination) {
+    }
+
+    Message take() throws InterruptedException {
+      Message msg = this.received.poll(10, TimeUnit.SECONDS);
+      assertNotNull("nothing received", msg);
+      return msg;
+    }
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    this.dir = Files.createTempDirectory("transport").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws InterruptedException {
+    for (NettyTransport transport : this.transports) {
+      transport.shutdown();
+    }
+    deleteDir(this.dir);
+  }
+
+  static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        deleteDir(f);
+      }
+    }
+    dir.delete();
+  }
+
+  static String localAddress() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return "localhost:" + socket.getLocalPort();
+    }
+  }
+
+  NettyTransport transport(String hostPort, Transport.Receiver receiver)
+      throws Exception {
+    File d = new File(this.dir, hostPort.replace(':', '_'));
+    d.mkdirs();
+    NettyTransport transport = new NettyTransport(hostPort, receiver, d);
+    this.transports.add(transport);
+    return transport;
+  }
+
+  static Message proposal(Zxid zxid) {
+    return MessageBuilder.buildProposal(
+        new Transaction(zxid, ByteBuffer.wrap(new byte[8])));
+  }
+
+  static Message proposal(long xid, int size) {
+    byte[] body = new byte[size];
+    body[0] = (byte)xid;
+    return MessageBuilder.buildProposal(
+        new Transaction(new Zxid(0, xid), ByteBuffer.wrap(body)));
+  }
+
+  public void testAwaitPendingBytes() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    transport(b, rb);
+    // Nothing was ever sent to b.
+    assertTrue(ta.awaitPendingBytes(b, 0, 10));
+    int count = 200;
+    for (long xid = 1; xid <= count; ++xid) {
+      ta.send(b, proposal(xid, 64 * 1024));
+    }
+    assertTrue(ta.awaitPendingBytes(b, 0, 10000));
+    assertEquals(0, ta.getPendingBytes(b));
+    for (long xid = 1; xid <= count; ++xid) {
+      Message msg = rb.take();
+      assertEquals(MessageType.PROPOSAL, msg.getType());
+      assertEquals(xid, msg.getProposal().getZxid().getXid());
+    }
+  }
+
+  public void testBatchesKeepOrder() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    final NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    transport(b, rb);
+    // Each thread's messages arrive in the order it sent them, whatever the
+    // batches the sender writes them in.
+    final int threads = 4;
+    final int count = 2000;
+    final String destination = b;
+    List<Thread> senders = new ArrayList<Thread>();
+    for (int t = 0; t < threads; ++t) {
+      final int id = t;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < count; ++i) {
+          ta.send(destination, proposal(new Zxid(id, i)));
+        }
+      });
+      senders.add(thread);
+      thread.start();
+    }
+    for (Thread thread : senders) {
+      thread.join();
+    }
+    long[] next = new long[threads];
+    for (int i = 0; i < threads * count; ++i) {
+      ZabMessage.Zxid zxid = rb.take().getProposal().getZxid();
+      assertEquals(next[(int)zxid.getEpoch()]++, zxid.getXid());
+    }
+  }
+
+  public void testFileBetweenMessages() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    transport(b, rb);
+    File file = new File(this.dir, "file");
+    Files.write(file.toPath(), new byte[1000]);
+    // The messages queued before the file are flushed ahead of it.
+    ta.send(b, proposal(1, 10));
+    ta.send(b, proposal(2, 10));
+    ta.send(b, file);
+    ta.send(b, proposal(3, 10));
+    assertEquals(1, rb.take().getProposal().getZxid().getXid());
+    assertEquals(2, rb.take().getProposal().getZxid().getXid());
+    assertEquals(MessageType.FILE_RECEIVED, rb.take().getType());
+    assertEquals(3, rb.take().getProposal().getZxid().getXid());
+  }
+
+  public void testPayloadsIntact() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    transport(b, rb);
+    // Bodies of every size, across the boundaries of the pooled buffers.
+    Random random = new Random(1);
+    List<byte[]> bodies = new ArrayList<byte[]>();
+    for (int size = 1; size <= 4 * 1024 * 1024; size = size * 3 + 1) {
+      byte[] body = new byte[size];
+      random.nextBytes(body);
+      bodies.add(body);
+      ta.send(b, MessageBuilder.buildProposal(
+          new Transaction(new Zxid(0, bodies.size()), ByteBuffer.wrap(body))));
+    }
+    List<Message> received = new ArrayList<Message>();
+    for (int i = 0; i < bodies.size(); ++i) {
+      received.add(rb.take());
+    }
+    // The decoded bodies outlive the buffers they were read from.
+    for (int i = 0; i < bodies.size(); ++i) {
+      Transaction txn =
+        MessageBuilder.fromProposal(received.get(i).getProposal());
+      assertEquals(i + 1, txn.getZxid().getXid());
+      ByteBuffer body = txn.getBody();
+      byte[] bytes = new byte[body.remaining()];
+      body.get(bytes);
+      assertTrue(Arrays.equals(bodies.get(i), bytes));
+    }
+  }
+
+  static File randomFile(File dir, String name, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    File file = new File(dir, name);
+    Files.write(file.toPath(), bytes);
+    return file;
+  }
+
+  public void testSendFile() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    NettyTransport tb = transport(b, rb);
+    int length = NettyTransport.FILE_CHUNK_SIZE * 2 + 12345;
+    File file = randomFile(this.dir, "snapshot", length);
+    ta.send(b, file);
+    Message msg = rb.take();
+    assertEquals(MessageType.FILE_RECEIVED, msg.getType());
+    File received = new File(msg.getFileReceived().getFullPath());
+    assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()),
+                             Files.readAllBytes(received.toPath())));
+    // Nothing is left to resume.
+    assertTrue(tb.partialFiles.isEmpty());
+  }
+
+  public void testResumeFile() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    NettyTransport tb = transport(b, rb);
+    int length = NettyTransport.FILE_CHUNK_SIZE * 2 + 12345;
+    File file = randomFile(this.dir, "snapshot", length);
+    byte[] content = Files.readAllBytes(file.toPath());
+
+    // b got the first chunk before the connection was cut. It's marked so
+    // it shows whether it was sent again.
+    File partial = new File(this.dir, "partial");
+    byte[] first = Arrays.copyOf(content, NettyTransport.FILE_CHUNK_SIZE);
+    first[0] ^= 1;
+    Files.write(partial.toPath(), first);
+    String id = file.getName() + "-" + length + "-" + file.lastModified();
+    NettyTransport.PartialFile pf =
+      new NettyTransport.PartialFile(id, partial, length);
+    pf.verified = NettyTransport.FILE_CHUNK_SIZE;
+    tb.partialFiles.put(a, pf);
+
+    ta.send(b, file);
+    Message msg = rb.take();
+    assertEquals(MessageType.FILE_RECEIVED, msg.getType());
+    assertEquals(partial.getPath(), msg.getFileReceived().getFullPath());
+    byte[] received = Files.readAllBytes(partial.toPath());
+    assertEquals(length, received.length);
+    // Only the chunks after the verified ones were sent.
+    assertEquals(first[0], received[0]);
+    received[0] ^= 1;
+    assertTrue(Arrays.equals(content, received));
+    assertTrue(tb.partialFiles.isEmpty());
+  }
+
+  public void testStaleFileStartsOver() throws Exception {
+    String a = localAddress();
+    String b = localAddress();
+    NettyTransport ta = transport(a, new QueueReceiver());
+    QueueReceiver rb = new QueueReceiver();
+    NettyTransport tb = transport(b, rb);
+    File file = randomFile(this.dir, "snapshot", 100000);
+
+    // A partial of another file isn't resumed, it's dropped.
+    File stale = new File(this.dir, "stale");
+    Files.write(stale.toPath(), new byte[10]);
+    NettyTransport.PartialFile pf =
+      new NettyTransport.PartialFile("other", stale, 20);
+    pf.verified = 10;
+    tb.partialFiles.put(a, pf);
+
+    ta.send(b, file);
+    Message msg = rb.take();
+    assertEquals(MessageType.FILE_RECEIVED, msg.getType());
+    File received = new File(msg.getFileReceived().getFullPath());
+    assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()),
+                             Files.readAllBytes(received.toPath())));
+    assertFalse(stale.exists());
+  }
+}
@@ -0,0 +1,137 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import kdb.rsm.proto.ZabMessage.Message;
+import kdb.rsm.proto.ZabMessage.Message.MessageType;
+
+public class PeerHandlerTest extends TestCase {
+
+  public PeerHandlerTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(PeerHandlerTest.class);
+  }
+
+  /**
+   * Records what is sent instead of sending it.
+   */
+  static class RecordingTransport extends Transport {
+    final List<Message> sent = new ArrayList<Message>();
+
+    RecordingTransport() {
+      super(null);
+    }
+
+    @Override
+    public synchronized void send(String destination, Message message) {
+      this.sent.add(message);
+    }
+
+    @Override
+    public void send(String destination, File file) {
+    }
+
+    @Override
+    public void clear(String destination) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  private static Message proposal(long xid, int size) {
+    return MessageBuilder.buildProposal(
+        new Transaction(new Zxid(0, xid), ByteBuffer.wrap(new byte[size])));
+  }
+
+  public void testWindow() {
+    RecordingTransport transport = new RecordingTransport();
+    PeerHandler ph = new PeerHandler("peer", transport, 1000);
+    AtomicLong broadcastBytes = new AtomicLong();
+    Message p1 = proposal(1, 100);
+    ph.setFlowControl(p1.getSerializedSize() * 2 + 10, broadcastBytes);
+    ph.broadcasting = true;
+    ph.queueMessage(p1);
+    ph.queueMessage(proposal(2, 100));
+    assertEquals(2, ph.broadcastingQueue.size());
+    assertEquals(p1.getSerializedSize() * 2, broadcastBytes.get());
+    // The acknowledged proposal leaves the window.
+    ph.setLastAckedZxid(new Zxid(0, 1));
+    assertEquals(p1.getSerializedSize(), broadcastBytes.get());
+    assertFalse(ph.isLagging());
+  }
+
+  public void testLaggingPeerGetsNothing() {
+    RecordingTransport transport = new RecordingTransport();
+    PeerHandler ph = new PeerHandler("peer", transport, 1000);
+    AtomicLong broadcastBytes = new AtomicLong();
+    Message p1 = proposal(1, 100);
+    ph.setFlowControl(p1.getSerializedSize() + 10, broadcastBytes);
+    ph.broadcasting = true;
+    ph.queueMessage(p1);
+    ph.queueMessage(proposal(2, 100));
+    assertTrue(ph.isLagging());
+    assertEquals(0, broadcastBytes.get());
+
+    // Neither a COMMIT nor a HEARTBEAT goes out after a dropped proposal,
+    // nor does what was queued before the peer fell behind.
+    ph.queueMessage(MessageBuilder.buildCommit(new Zxid(0, 2)));
+    assertEquals(1, ph.broadcastingQueue.size());
+    ph.sendMessage(MessageBuilder.buildHeartbeat());
+    ph.sendMessage(ph.broadcastingQueue.poll());
+    assertTrue(transport.sent.isEmpty());
+  }
+
+  public void testNoWindow() {
+    RecordingTransport transport = new RecordingTransport();
+    PeerHandler ph = new PeerHandler("peer", transport, 1000);
+    for (long xid = 1; xid <= 100; ++xid) {
+      ph.queueMessage(proposal(xid, 1000));
+    }
+    ph.queueMessage(MessageBuilder.buildCommit(new Zxid(0, 100)));
+    assertEquals(101, ph.broadcastingQueue.size());
+    assertFalse(ph.isLagging());
+    ph.sendMessage(ph.broadcastingQueue.peek());
+    assertEquals(MessageType.PROPOSAL, transport.sent.get(0).getType());
+  }
+
+  public void testSynchronizingPeer() {
+    RecordingTransport transport = new RecordingTransport();
+    PeerHandler ph = new PeerHandler("peer", transport, 1000);
+    AtomicLong broadcastBytes = new AtomicLong();
+    int size = proposal(1, 100).getSerializedSize();
+    ph.setFlowControl(size * 2 + 10, broadcastBytes);
+    // The proposals queued while the peer synchronizes are kept, and count
+    // against the leader's pending bytes.
+    for (long xid = 1; xid <= 10; ++xid) {
+      ph.queueMessage(proposal(xid, 100));
+    }
+    assertFalse(ph.isLagging());
+    assertEquals(10, ph.broadcastingQueue.size());
+    assertEquals(size * 10, broadcastBytes.get());
+
+    // Nor does it lag while it works them off after the sync.
+    ph.broadcasting = true;
+    ph.queueMessage(proposal(11, 100));
+    assertFalse(ph.isLagging());
+    ph.setLastAckedZxid(new Zxid(0, 10));
+    assertEquals(size, broadcastBytes.get());
+
+    // Caught up, the window applies.
+    ph.queueMessage(proposal(12, 100));
+    assertFalse(ph.isLagging());
+    ph.queueMessage(proposal(13, 100));
+    assertTrue(ph.isLagging());
+    assertEquals(0, broadcastBytes.get());
+  }
+}
@@ -0,0 +1,131 @@
+package kdb.rsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class RequestQueueTest extends TestCase {
+
+  public RequestQueueTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(RequestQueueTest.class);
+  }
+
+  private static MessageTuple request(String producer, long seq) {
+    return new MessageTuple(producer, null, new Zxid(0, seq));
+  }
+
+  public void testDrainsInOrder() {
+    RequestQueue queue = new RequestQueue(false);
+    for (int i = 0; i < 10; ++i) {
+      queue.add(request("a", i));
+    }
+    List<MessageTuple> batch = new ArrayList<MessageTuple>();
+    queue.drainTo(batch);
+    assertEquals(10, batch.size());
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(i, batch.get(i).getZxid().getXid());
+    }
+    queue.add(request("a", 10));
+    batch.clear();
+    queue.drainTo(batch);
+    assertEquals(1, batch.size());
+    assertEquals(10, batch.get(0).getZxid().getXid());
+  }
+
+  public void testWrapsAround() {
+    RequestQueue queue = new RequestQueue(false);
+    List<MessageTuple> batch = new ArrayList<MessageTuple>();
+    long seq = 0;
+    long next = 0;
+    for (int round = 0; round < 3; ++round) {
+      for (int i = 0; i < RequestQueue.CAPACITY * 2 / 3; ++i) {
+        queue.add(request("a", seq++));
+      }
+      while (next < seq) {
+        batch.clear();
+        queue.drainTo(batch);
+        for (MessageTuple request : batch) {
+          assertEquals(next++, request.getZxid().getXid());
+        }
+      }
+    }
+  }
+
+  public void testParkedProcessorWakesUp() throws Exception {
+    final RequestQueue queue = new RequestQueue(false);
+    final List<MessageTuple> batch = new ArrayList<MessageTuple>();
+    Thread processor = new Thread(() -> queue.drainTo(batch));
+    processor.start();
+    // Gives it time to spin, yield and park.
+    Thread.sleep(100);
+    assertTrue(processor.isAlive());
+    queue.add(request("a", 1));
+    processor.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(processor.isAlive());
+    assertEquals(1, batch.size());
+  }
+
+  public void testFullQueueHoldsProducers() throws Exception {
+    final RequestQueue queue = new RequestQueue(false);
+    for (int i = 0; i < RequestQueue.CAPACITY; ++i) {
+      queue.add(request("a", i));
+    }
+    Thread producer = new Thread(() ->
+        queue.add(request("a", RequestQueue.CAPACITY)));
+    producer.start();
+    Thread.sleep(100);
+    assertTrue(producer.isAlive());
+
+    List<MessageTuple> batch = new ArrayList<MessageTuple>();
+    queue.drainTo(batch);
+    assertEquals(RequestQueue.CAPACITY, batch.size());
+    producer.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(producer.isAlive());
+    batch.clear();
+    queue.drainTo(batch);
+    assertEquals(1, batch.size());
+    assertEquals(RequestQueue.CAPACITY, batch.get(0).getZxid().getXid());
+  }
+
+  public void testConcurrentProducers() throws Exception {
+    final RequestQueue queue = new RequestQueue(false);
+    final int producers = 4;
+    final int count = 200000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int p = 0; p < producers; ++p) {
+      final String id = "p" + p;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < count; ++i) {
+          queue.add(request(id, i));
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    // Each producer's requests come out in the order it added them, none
+    // lost or repeated.
+    long[] next = new long[producers];
+    List<MessageTuple> batch = new ArrayList<MessageTuple>();
+    int received = 0;
+    while (received < producers * count) {
+      batch.clear();
+      queue.drainTo(batch);
+      for (MessageTuple request : batch) {
+        int p = Integer.parseInt(request.getServerId().substring(1));
+        assertEquals(next[p]++, request.getZxid().getXid());
+      }
+      received += batch.size();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(producers * count, received);
+  }
+}
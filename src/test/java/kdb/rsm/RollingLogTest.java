@@ -0,0 +1,205 @@
+package kdb.rsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import static kdb.rsm.MappedLogTest.append;
+import static kdb.rsm.MappedLogTest.assertLog;
+import static kdb.rsm.MappedLogTest.txn;
+
+public class RollingLogTest extends TestCase {
+  private File dir;
+
+  public RollingLogTest(String testName) {
+    super(testName);
+  }
+
+  public static Test suite() {
+    return new TestSuite(RollingLogTest.class);
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    this.dir = Files.createTempDirectory("rollinglog").toFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File f : this.dir.listFiles()) {
+      f.delete();
+    }
+    this.dir.delete();
+  }
+
+  private File[] segments() {
+    File[] files = this.dir.listFiles(
+        (d, name) -> name.matches("transaction\\.\\d+_\\d+"));
+    Arrays.sort(files);
+    return files;
+  }
+
+  // Writes 1..count in segments of about 1KB and closes the log.
+  private void write(int count) throws IOException {
+    RollingLog log = new RollingLog(this.dir, 1024);
+    append(log, 1, count);
+    log.close();
+  }
+
+  public void testRollAndRecover() throws IOException {
+    write(500);
+    assertTrue(segments().length > 5);
+    RollingLog log = new RollingLog(this.dir, 1024);
+    assertEquals(new Zxid(0, 1), log.getFirstZxid());
+    assertEquals(new Zxid(0, 500), log.getLatestZxid());
+    assertLog(log, 1, 500);
+    assertLog(log, 321, 500);
+    append(log, 501, 510);
+    assertLog(log, 1, 510);
+    log.close();
+  }
+
+  public void testTruncateAcrossSegments() throws IOException {
+    write(500);
+    RollingLog log = new RollingLog(this.dir, 1024);
+    log.truncate(new Zxid(0, 123));
+    assertEquals(new Zxid(0, 123), log.getLatestZxid());
+    append(log, 124, 130);
+    log.close();
+    log = new RollingLog(this.dir, 1024);
+    assertLog(log, 1, 130);
+    log.close();
+  }
+
+  public void testUnsealedSegmentIsSealed() throws IOException {
+    write(500);
+    File first = segments()[0];
+    SegmentFooter footer = SegmentFooter.read(first);
+    try (RandomAccessFile raf = new RandomAccessFile(first, "rw")) {
+      raf.setLength(footer.end);
+    }
+    LogIndex.delete(first);
+    RollingLog log = new RollingLog(this.dir, 1024);
+    assertNotNull(SegmentFooter.read(first));
+    assertLog(log, 1, 500);
+    log.close();
+  }
+
+  public void testCorruptSealedSegment() throws IOException {
+    write(500);
+    File middle = segments()[2];
+    try (RandomAccessFile raf = new RandomAccessFile(middle, "rw")) {
+      raf.seek(30);
+      int b = raf.read();
+      raf.seek(30);
+      raf.write(b ^ 0xff);
+    }
+    try {
+      new RollingLog(this.dir, 1024);
+      fail("a sealed segment failing its checksum must fail recovery");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testFooterNotMatchingSegment() throws IOException {
+    write(500);
+    File middle = segments()[2];
+    SegmentFooter footer = SegmentFooter.read(middle);
+    try (RandomAccessFile raf = new RandomAccessFile(middle, "rw")) {
+      SegmentFooter.write(raf, footer.end,
+                          new Zxid(0, footer.zxid.getXid() + 1));
+    }
+    try {
+      new RollingLog(this.dir, 1024);
+      fail("a footer naming the wrong zxid must fail recovery");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testTrim() throws IOException {
+    write(500);
+    int before = segments().length;
+    RollingLog log = new RollingLog(this.dir, 1024);
+    log.trim(new Zxid(0, 250));
+    // Only the files wholly at or below 250 go, 250 itself stays.
+    File[] files = segments();
+    assertTrue(files.length < before);
+    Zxid first = log.getFirstZxid();
+    assertTrue(first.compareTo(new Zxid(0, 250)) <= 0);
+    assertEquals(first, log.getZxidFromFileName(files[0]));
+    assertEquals(new Zxid(0, 500), log.getLatestZxid());
+    assertLog(log, first.getXid(), 500);
+    append(log, 501, 510);
+    log.close();
+
+    log = new RollingLog(this.dir, 1024);
+    assertEquals(first, log.getFirstZxid());
+    assertLog(log, first.getXid(), 510);
+    // The file being appended to is always kept.
+    log.trim(new Zxid(0, 1000));
+    assertEquals(1, segments().length);
+    assertEquals(new Zxid(0, 510), log.getLatestZxid());
+    append(log, 511, 520);
+    assertLog(log, log.getFirstZxid().getXid(), 520);
+    log.close();
+  }
+
+  public void testTrimUnderIterator() throws IOException {
+    write(500);
+    RollingLog log = new RollingLog(this.dir, 1024);
+    try (Log.LogIterator iter = log.getIterator(new Zxid(0, 1))) {
+      assertEquals(new Zxid(0, 1), iter.next().getZxid());
+      log.trim(new Zxid(0, 250));
+      assertFalse(segments()[0].getName().equals("transaction.0_1"));
+      // The file being read stays readable until the iterator moves on.
+      for (long xid = 2; xid <= 5; ++xid) {
+        assertEquals(new Zxid(0, xid), iter.next().getZxid());
+      }
+    }
+    log.close();
+  }
+
+  // Counts the transactions from the start of the log below zxid.
+  private static long countBelow(Log log, Zxid zxid) throws IOException {
+    long count = 0;
+    try (Log.LogIterator iter = log.getIterator(log.getFirstZxid())) {
+      while (iter.hasNext() && iter.next().getZxid().compareTo(zxid) < 0) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  public void testTrimZxidAcrossEpochs() throws IOException {
+    RollingLog log = new RollingLog(this.dir, 1024);
+    // A snapshot early in a new epoch still keeps the end of the last one.
+    for (long xid = 1; xid <= 300; ++xid) {
+      log.append(new Transaction(new Zxid(1, xid), txn(xid).getBody()));
+    }
+    for (long xid = 1; xid <= 50; ++xid) {
+      log.append(new Transaction(new Zxid(2, xid), txn(xid).getBody()));
+    }
+    Zxid snapshot = new Zxid(2, 50);
+    assertEquals(Zxid.ZXID_NOT_EXIST, log.getTrimZxid(snapshot, 1000));
+    Zxid trim = log.getTrimZxid(snapshot, 100);
+    assertEquals(1, trim.getEpoch());
+    log.trim(trim);
+    assertEquals(trim, log.getFirstZxid());
+    long kept = countBelow(log, snapshot);
+    assertTrue(kept >= 100);
+    // No more than a file beyond what's asked for.
+    assertTrue(kept < 100 + 60);
+    // Within one epoch the files are counted from their bounds alone.
+    log.close();
+    log = new RollingLog(this.dir, 1024);
+    Zxid near = log.getTrimZxid(new Zxid(2, 40), 10);
+    assertEquals(2, near.getEpoch());
+    assertTrue(countBelow(log, new Zxid(2, 40)) - countBelow(log, near) >= 10);
+    log.close();
+  }
+}